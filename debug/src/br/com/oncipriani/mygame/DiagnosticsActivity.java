@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+import br.com.oncipriani.mygame.engine.GameRunningState;
+import br.com.oncipriani.mygame.engine.GameStateManager;
+import br.com.oncipriani.mygame.engine.SpriteRegistry;
+import br.com.oncipriani.mygame.profiling.AllocationHarness;
+import br.com.oncipriani.mygame.profiling.BroadPhaseBenchmark;
+import br.com.oncipriani.mygame.profiling.CollisionBenchmark;
+import br.com.oncipriani.mygame.profiling.InputLatency;
+import br.com.oncipriani.mygame.profiling.LatencyHarness;
+import br.com.oncipriani.mygame.profiling.ParallelUpdateBenchmark;
+
+/**
+ * This activity runs the headless harnesses that check the engine for regressions
+ * without anybody playing. It lives in the debug source set, declared by the debug
+ * manifest, so neither it nor the harnesses are part of a release build. It is started
+ * from the command line with the name of the harness to be run, while the game is closed:
+ * <pre>
+ *     adb shell am start -n br.com.oncipriani.mygame/.DiagnosticsActivity -e harness allocations
+ * </pre>
+ * The harnesses are <code>allocations</code> (the steady state must not allocate),
+ * <code>latency</code> (synthetic taps must show up within two frames),
+ * <code>parallel</code> (how the update of a crowded game scales with the cores),
+ * <code>collisions</code> (the swept collision tests must never be wrong, timed against the discrete ones) and
+ * <code>broadphase</code> (how the sweep and prune scales from 3 to 5,000 stars, against testing every pair).
+ * The harness runs on a background thread, and its report is shown on the screen and
+ * written to the log. Reports of harnesses that found a regression start with FAILED.
+ */
+public class DiagnosticsActivity extends Activity {
+    private static final String TAG = DiagnosticsActivity.class.getSimpleName();
+
+    // Name of the extra holding the harness to be run
+    public static final String EXTRA_HARNESS = "harness";
+
+    // The harnesses that can be run
+    private static final String HARNESS_ALLOCATIONS = "allocations";
+    private static final String HARNESS_LATENCY = "latency";
+    private static final String HARNESS_PARALLEL = "parallel";
+    private static final String HARNESS_COLLISIONS = "collisions";
+    private static final String HARNESS_BROAD_PHASE = "broadphase";
+
+    // Size of the offscreen screen the game is drawn on
+    private static final int SCREEN_WIDTH = MainGameView.MAX_WIDTH;
+    private static final int SCREEN_HEIGHT = MainGameView.MAX_HEIGHT;
+
+    // Seed of the scripted input, so every run touches the screen the same way
+    private static final long SEED = 42;
+
+    // How long the game runs when checking for allocations
+    private static final int ALLOCATION_TICKS = 5000;
+    private static final int ALLOCATION_WARM_UP_TICKS = 500;
+
+    // How long the game runs when measuring the latency of the taps, and how long the taps may take to show up
+    private static final int LATENCY_TICKS = 1500;
+    private static final int LATENCY_BUDGET = MainGameThread.FRAME_PERIOD * 2;
+
+    // How crowded the game is when measuring the parallel update, how long it takes to fill up and how long each pool runs
+    private static final int PARALLEL_DENSITY = 256;
+    private static final int PARALLEL_WARM_UP_TICKS = 1000;
+    private static final int PARALLEL_TICKS = 500;
+
+    // How many moves, swipes and pairs the collision tests are compared on
+    private static final int COLLISION_MOVES = 100000;
+
+    // How many ticks the broad phases are measured for on each number of stars
+    private static final int BROAD_PHASE_TICKS = 50;
+
+    // Shows the report of the harness
+    private TextView reportView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        final String harness = getIntent().getStringExtra(EXTRA_HARNESS);
+
+        reportView = new TextView(this);
+        reportView.setText("Running " + harness + "...");
+        setContentView(reportView);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String report = runHarness(harness);
+                Log.i(TAG, report);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        reportView.setText(report);
+                    }
+                });
+            }
+        }, "Diagnostics").start();
+    }
+
+    /**
+     * Runs a harness.
+     *
+     * @param harness The name of the harness.
+     * @return The harness' report.
+     */
+    private String runHarness(String harness) {
+        try {
+            if (HARNESS_ALLOCATIONS.equals(harness)) return runAllocations();
+            if (HARNESS_LATENCY.equals(harness)) return runLatency();
+            if (HARNESS_PARALLEL.equals(harness)) return runParallel();
+            if (HARNESS_COLLISIONS.equals(harness)) return runCollisions();
+            if (HARNESS_BROAD_PHASE.equals(harness)) return runBroadPhase();
+
+            return "Unknown harness: " + harness;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "The " + harness + " harness failed", e);
+            return "FAILED: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Runs the game headless under scripted taps and checks that it stops allocating.
+     *
+     * @return The harness' report.
+     */
+    private String runAllocations() {
+        final Bitmap bitmap = Bitmap.createBitmap(SCREEN_WIDTH, SCREEN_HEIGHT, Bitmap.Config.ARGB_8888);
+        final GameStateManager gameStateManager = createGame(1);
+
+        try {
+            AllocationHarness.run(gameStateManager, new Canvas(bitmap), ALLOCATION_TICKS, ALLOCATION_WARM_UP_TICKS, SEED);
+        } finally {
+            destroyGame(gameStateManager, bitmap);
+        }
+
+        return "PASSED: no allocations on " + (ALLOCATION_TICKS - ALLOCATION_WARM_UP_TICKS) + " ticks after the warm-up";
+    }
+
+    /**
+     * Runs the game headless at the pace of the game loop, tapping the stars, and checks
+     * how long the taps take to show up.
+     *
+     * @return The harness' report.
+     */
+    private String runLatency() {
+        final Bitmap bitmap = Bitmap.createBitmap(SCREEN_WIDTH, SCREEN_HEIGHT, Bitmap.Config.ARGB_8888);
+        final GameStateManager gameStateManager = createGame(1);
+
+        try {
+            LatencyHarness.run(gameStateManager, (GameRunningState) gameStateManager.peek(), new Canvas(bitmap),
+                    LATENCY_TICKS, MainGameThread.FRAME_PERIOD, LATENCY_BUDGET, SEED);
+        } finally {
+            destroyGame(gameStateManager, bitmap);
+        }
+
+        return "PASSED: " + InputLatency.getPresentHistogram().getTotalCount() + " taps shown after " +
+                InputLatency.getPresentHistogram().getValueAtPercentile(95) + " us, queued for " +
+                InputLatency.getQueueHistogram().getValueAtPercentile(95) + " us (95th percentile)";
+    }
+
+    /**
+     * Runs a crowded game on worker pools of every size and reports how the update scales.
+     *
+     * @return The harness' report.
+     */
+    private String runParallel() {
+        final GameStateManager gameStateManager = createGame(PARALLEL_DENSITY);
+        final double[] speedups;
+
+        try {
+            speedups = ParallelUpdateBenchmark.run(gameStateManager, (GameRunningState) gameStateManager.peek(),
+                    PARALLEL_TICKS, PARALLEL_WARM_UP_TICKS, SEED);
+        } finally {
+            destroyGame(gameStateManager, null);
+        }
+
+        final StringBuilder report = new StringBuilder("Speedup of the update over a single thread:");
+        for (int i = 0; i < speedups.length; i++) {
+            report.append(i == 0 ? " " : ", ").append(i + 1).append(" -> ").append(String.format("%.2f", speedups[i]));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Compares the swept collision tests with the discrete ones and checks that the swept
+     * ones are never wrong.
+     *
+     * @return The harness' report.
+     */
+    private String runCollisions() {
+        final CollisionBenchmark.Result result = CollisionBenchmark.run(SCREEN_WIDTH, SCREEN_HEIGHT, COLLISION_MOVES, SEED);
+
+        if (result.sweptWallErrors > 0 || result.sweptSliceMisses > 0 || result.sweptPairMisses > 0) {
+            throw new IllegalStateException("The swept tests put " + result.sweptWallErrors + " boxes in the wrong place, " +
+                    "missed " + result.sweptSliceMisses + " of " + result.sliceHits + " swipes and " +
+                    result.sweptPairMisses + " of " + result.pairHits + " pairs");
+        }
+
+        return "PASSED: walls swept in " + result.sweptWallTime / 1000 + " us (discrete " +
+                result.discreteWallTime / 1000 + " us, " + result.discreteWallErrors + " wrong), swipes swept in " +
+                result.sweptSliceTime / 1000 + " us (discrete " + result.discreteSliceTime / 1000 + " us, missed " +
+                result.discreteSliceMisses + " of " + result.sliceHits + "), pairs swept in " +
+                result.sweptPairTime / 1000 + " us (discrete " + result.discretePairTime / 1000 + " us, missed " +
+                result.discretePairMisses + " of " + result.pairHits + ")";
+    }
+
+    /**
+     * Measures the sweep and prune and testing every pair on more and more stars, and
+     * checks that both find the same pairs.
+     *
+     * @return The harness' report.
+     */
+    private String runBroadPhase() {
+        final BroadPhaseBenchmark.Result result = BroadPhaseBenchmark.run(SCREEN_WIDTH, SCREEN_HEIGHT, BROAD_PHASE_TICKS,
+                SEED);
+
+        final StringBuilder report = new StringBuilder("PASSED: sweep and prune against every pair, per tick:");
+        for (int i = 0; i < result.starCounts.length; i++) {
+            report.append(i == 0 ? " " : ", ").append(result.starCounts[i]).append(" stars ")
+                    .append(result.sweepAndPruneTimes[i] / 1000).append('/')
+                    .append(result.bruteForceTimes[i] / 1000).append(" us");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Creates a new game on the offscreen screen.
+     *
+     * @param density How many times the normal number of stars and explosions, see
+     *                {@link br.com.oncipriani.mygame.engine.GameRunningState#setDensity(int)}.
+     * @return The game state manager running the game.
+     */
+    private GameStateManager createGame(int density) {
+        final GameStateManager gameStateManager = new GameStateManager();
+        final GameRunningState game = new GameRunningState(gameStateManager, getResources(), SCREEN_WIDTH,
+                SCREEN_HEIGHT, DeviceCalibration.getTier());
+
+        game.setDensity(density);
+        gameStateManager.setScreenSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        gameStateManager.push(game);
+
+        return gameStateManager;
+    }
+
+    /**
+     * Ends a game created by {@link #createGame(int)} and recycles its bitmaps. Nothing
+     * was drawn by a render thread, so they are recycled right away.
+     *
+     * @param gameStateManager The game state manager running the game.
+     * @param bitmap           The bitmap the game was drawn on, or <code>null</code> if it was not drawn.
+     */
+    private static void destroyGame(GameStateManager gameStateManager, Bitmap bitmap) {
+        gameStateManager.popAll();
+        SpriteRegistry.advance(0, Long.MAX_VALUE);
+        if (bitmap != null) bitmap.recycle();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+import br.com.oncipriani.mygame.engine.DisplayList;
+import br.com.oncipriani.mygame.engine.GameStateManager;
+
+import java.util.Random;
+
+/**
+ * This class runs the game headless, without a screen or a frame limit, tapping the
+ * screen at random positions and checking with an {@link AllocationVerifier} that the
+ * steady state does not allocate.
+ */
+public final class AllocationHarness {
+    private static final String TAG = AllocationHarness.class.getSimpleName();
+
+    private AllocationHarness() {
+    }
+
+    /**
+     * Runs the game headless and checks that the steady state does not allocate.
+     * The same seed always produces the same taps.
+     *
+     * @param gameStateManager The game states to be run, already initialized.
+     * @param canvas           The canvas used to draw the game (e.g. backed by an offscreen bitmap).
+     * @param ticks            How many ticks to run, including the warm-up.
+     * @param warmUpTicks      How many ticks may allocate before the game reaches its steady state.
+     * @param seed             The seed used to generate the taps.
+     * @throws java.lang.IllegalStateException if a phase allocated anything after the warm-up.
+     */
+    public static void run(GameStateManager gameStateManager, Canvas canvas, int ticks, int warmUpTicks, long seed) {
+        final AllocationVerifier verifier = new AllocationVerifier(warmUpTicks);
+        final Random random = new Random(seed);
+        final DisplayList displayList = new DisplayList();
+        final int width = canvas.getWidth();
+        final int height = canvas.getHeight();
+
+        try {
+            for (int i = 0; i < ticks; i++) {
+                verifier.beginPhase();
+                if (random.nextInt(4) == 0) {
+                    gameStateManager.handleActionDown(random.nextInt(width), random.nextInt(height), SystemClock.uptimeMillis());
+                }
+                gameStateManager.update();
+                verifier.endPhase(FrameProfiler.PHASE_UPDATE);
+
+                verifier.beginPhase();
+                displayList.reset(i);
+                gameStateManager.draw(displayList);
+                verifier.endPhase(FrameProfiler.PHASE_DRAW);
+
+                verifier.beginPhase();
+                displayList.draw(canvas);
+                verifier.endPhase(FrameProfiler.PHASE_RENDER);
+
+                verifier.endTick();
+            }
+        } finally {
+            verifier.stop();
+        }
+
+        Log.d(TAG, "No allocations on " + (ticks - warmUpTicks) + " ticks after a warm-up of " + warmUpTicks + " ticks");
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.util.Log;
+import br.com.oncipriani.mygame.helpers.SweepAndPrune;
+import br.com.oncipriani.mygame.objects.Star;
+
+import java.util.Random;
+
+/**
+ * This class measures how finding the stars that touch each other scales with the
+ * number of stars, from a normal game up to the most crowded one. On every count, the
+ * same moving boxes are checked by the {@link br.com.oncipriani.mygame.helpers.SweepAndPrune}
+ * broad phase and by testing every pair, and both must find the same pairs.
+ * <p>
+ * The stars are spread over a field that grows with their number, so they are as
+ * crowded on every count and only the cost of finding the pairs changes. It is run by
+ * the <code>broadphase</code> harness of the diagnostics activity.
+ * </p>
+ */
+public final class BroadPhaseBenchmark {
+    private static final String TAG = BroadPhaseBenchmark.class.getSimpleName();
+
+    // Numbers of stars measured
+    private static final int[] STAR_COUNTS = {3, 10, 30, 100, 300, 1000, 3000, 5000};
+
+    // Half the size of the boxes, about the size of a star
+    private static final int HALF_SIZE = 32;
+
+    // How many stars there are on each screen worth of the field
+    private static final int STARS_PER_SCREEN = 30;
+
+    /**
+     * Holds the results of a run.
+     */
+    public static final class Result {
+        // Numbers of stars measured
+        public final int[] starCounts = STAR_COUNTS.clone();
+
+        // Average time of a tick for every number of stars, in nanoseconds
+        public final long[] sweepAndPruneTimes = new long[STAR_COUNTS.length];
+        public final long[] bruteForceTimes = new long[STAR_COUNTS.length];
+    }
+
+    private BroadPhaseBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param screenWidth  The width of a screen worth of the field.
+     * @param screenHeight The height of a screen worth of the field.
+     * @param ticks        How many ticks are measured for each number of stars.
+     * @param seed         The seed of the stars, so every run moves them the same way.
+     * @return The results.
+     * @throws java.lang.IllegalStateException if the sweep and prune does not find the same pairs as testing every pair.
+     */
+    public static Result run(int screenWidth, int screenHeight, int ticks, long seed) {
+        final Random random = new Random(seed);
+        final Result result = new Result();
+
+        for (int i = 0; i < STAR_COUNTS.length; i++) {
+            measure(result, i, random, screenWidth, screenHeight, ticks);
+            Log.d(TAG, STAR_COUNTS[i] + " stars: sweep and prune " + result.sweepAndPruneTimes[i] / 1000 +
+                    " us, brute force " + result.bruteForceTimes[i] / 1000 + " us per tick");
+        }
+
+        return result;
+    }
+
+    /**
+     * Moves a number of stars around their field, finding the ones touching each other on every tick.
+     *
+     * @param result       Receives the times.
+     * @param index        The index of the number of stars measured.
+     * @param random       Places the stars.
+     * @param screenWidth  The width of a screen worth of the field.
+     * @param screenHeight The height of a screen worth of the field.
+     * @param ticks        How many ticks are measured.
+     */
+    private static void measure(Result result, int index, Random random, int screenWidth, int screenHeight, int ticks) {
+        final int count = STAR_COUNTS[index];
+        final double scale = Math.sqrt(Math.max(1.0, (double) count / STARS_PER_SCREEN));
+        final int width = (int) (screenWidth * scale);
+        final int height = (int) (screenHeight * scale);
+        final int[] posX = new int[count];
+        final int[] posY = new int[count];
+        final int[] speedX = new int[count];
+        final int[] speedY = new int[count];
+        final int[] proxies = new int[count];
+        final SweepAndPrune sweepAndPrune = new SweepAndPrune();
+        long sweepAndPruneTime = 0, bruteForceTime = 0, startTime;
+        int i, j, sweepAndPrunePairs, bruteForcePairs;
+
+        for (i = 0; i < count; i++) {
+            posX[i] = HALF_SIZE + random.nextInt(width - 2 * HALF_SIZE);
+            posY[i] = HALF_SIZE + random.nextInt(height - 2 * HALF_SIZE);
+            speedX[i] = random.nextInt(2 * Star.MAX_SPEED + 1) - Star.MAX_SPEED;
+            speedY[i] = random.nextInt(2 * Star.MAX_SPEED + 1) - Star.MAX_SPEED;
+            proxies[i] = sweepAndPrune.createProxy(posX[i] - HALF_SIZE, posY[i] - HALF_SIZE, posX[i] + HALF_SIZE,
+                    posY[i] + HALF_SIZE);
+        }
+
+        // The first ticks warm up the compiler and are not measured
+        for (int tick = -ticks / 4; tick < ticks; tick++) {
+            // Move the stars, bouncing on the sides of the field
+            for (i = 0; i < count; i++) {
+                posX[i] += speedX[i];
+                posY[i] += speedY[i];
+                if (posX[i] < HALF_SIZE || posX[i] > width - HALF_SIZE) speedX[i] = -speedX[i];
+                if (posY[i] < HALF_SIZE || posY[i] > height - HALF_SIZE) speedY[i] = -speedY[i];
+            }
+
+            startTime = System.nanoTime();
+            for (i = 0; i < count; i++) {
+                sweepAndPrune.moveProxy(proxies[i], posX[i] - HALF_SIZE, posY[i] - HALF_SIZE, posX[i] + HALF_SIZE,
+                        posY[i] + HALF_SIZE);
+            }
+            sweepAndPrunePairs = sweepAndPrune.findPairs();
+            if (tick >= 0) sweepAndPruneTime += System.nanoTime() - startTime;
+
+            // Boxes of the same size touch if their centers are close enough on both axes
+            startTime = System.nanoTime();
+            bruteForcePairs = 0;
+            for (i = 0; i < count; i++) {
+                for (j = i + 1; j < count; j++) {
+                    if (Math.abs(posX[i] - posX[j]) <= 2 * HALF_SIZE && Math.abs(posY[i] - posY[j]) <= 2 * HALF_SIZE) {
+                        bruteForcePairs++;
+                    }
+                }
+            }
+            if (tick >= 0) bruteForceTime += System.nanoTime() - startTime;
+
+            if (sweepAndPrunePairs != bruteForcePairs) {
+                throw new IllegalStateException("The sweep and prune found " + sweepAndPrunePairs + " pairs of " + count +
+                        " stars, testing every pair found " + bruteForcePairs);
+            }
+        }
+
+        result.sweepAndPruneTimes[index] = sweepAndPruneTime / Math.max(1, ticks);
+        result.bruteForceTimes[index] = bruteForceTime / Math.max(1, ticks);
+    }
+}
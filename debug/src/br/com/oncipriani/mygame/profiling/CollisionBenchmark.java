@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.util.Log;
+import br.com.oncipriani.mygame.helpers.SweptAabb;
+
+import java.util.Random;
+
+/**
+ * This class compares the swept collision tests the game runs with the discrete tests
+ * they replaced, on the same random moves. The discrete tests move a box by a whole
+ * tick and then look at where it ended up: a star going past a wall is snapped onto it,
+ * a swipe only hits a star if it ends inside it, and two stars only collide if they
+ * overlap at the end of the tick.
+ * <p>
+ * The swept tests are the ones called by {@link br.com.oncipriani.mygame.objects.Star}:
+ * {@link br.com.oncipriani.mygame.helpers.SweptAabb#sweepInterval(int, int, int, int, br.com.oncipriani.mygame.helpers.SweptAabb.Hit)}
+ * for the walls,
+ * {@link br.com.oncipriani.mygame.helpers.SweptAabb#sweepSegment(float, float, float, float, float, float, float, float, br.com.oncipriani.mygame.helpers.SweptAabb.Hit)}
+ * for a swipe against where the star was seen, and
+ * {@link br.com.oncipriani.mygame.helpers.SweptAabb#sweepBoxes(float, float, float, float, float, float, float, float, float, float, float, float, br.com.oncipriani.mygame.helpers.SweptAabb.Hit)}
+ * for the pairs of stars found by the broad phase.
+ * </p>
+ * <p>
+ * Both versions are checked against a reference that moves everything a step at a
+ * time, and the benchmark reports how long each one takes and how often it is wrong.
+ * It is run by the <code>collisions</code> harness of the diagnostics activity.
+ * </p>
+ */
+public final class CollisionBenchmark {
+    private static final String TAG = CollisionBenchmark.class.getSimpleName();
+
+    // Half the size of the boxes, about the size of a star
+    private static final int HALF_SIZE = 32;
+
+    // How far a box may move on a single tick (a fast star after a few skipped frames) and how long a swipe may be
+    private static final int MAX_DISPLACEMENT = 150;
+    private static final int MAX_SWIPE_LENGTH = 400;
+
+    // How many steps a swipe or a tick is divided into to find out if something was really hit
+    private static final int REFERENCE_STEPS = 64;
+
+    /**
+     * Holds the results of a run.
+     */
+    public static final class Result {
+        // Time spent moving the boxes between the walls, in nanoseconds, and how many moves ended in the wrong place
+        public long sweptWallTime, discreteWallTime;
+        public int sweptWallErrors, discreteWallErrors;
+
+        // Time spent testing the swipes, in nanoseconds, how many swipes crossed a box and how many of those were missed
+        public long sweptSliceTime, discreteSliceTime;
+        public int sliceHits;
+        public int sweptSliceMisses, discreteSliceMisses;
+
+        // Time spent testing the pairs of boxes, in nanoseconds, how many pairs touched and how many of those were missed
+        public long sweptPairTime, discretePairTime;
+        public int pairHits;
+        public int sweptPairMisses, discretePairMisses;
+    }
+
+    private CollisionBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param screenWidth  The width of the screen the boxes move on.
+     * @param screenHeight The height of the screen the boxes move on.
+     * @param moves        How many moves (and swipes and pairs) are tested.
+     * @param seed         The seed of the moves, so every run tests the same ones.
+     * @return The results.
+     */
+    public static Result run(int screenWidth, int screenHeight, int moves, long seed) {
+        Random random;
+        Result result = null;
+
+        // The first run only warms up the compiler, the second one tests the same moves again
+        for (int run = 0; run < 2; run++) {
+            random = new Random(seed);
+            result = new Result();
+            runWalls(result, random, screenWidth, moves);
+            runSlices(result, random, screenWidth, screenHeight, moves);
+            runPairs(result, random, screenWidth, screenHeight, moves);
+        }
+
+        Log.d(TAG, "Walls: swept " + result.sweptWallTime / 1000 + " us with " + result.sweptWallErrors +
+                " errors, discrete " + result.discreteWallTime / 1000 + " us with " + result.discreteWallErrors + " errors");
+        Log.d(TAG, "Slices: swept " + result.sweptSliceTime / 1000 + " us missing " + result.sweptSliceMisses +
+                " of " + result.sliceHits + " hits, discrete " + result.discreteSliceTime / 1000 + " us missing " +
+                result.discreteSliceMisses);
+        Log.d(TAG, "Pairs: swept " + result.sweptPairTime / 1000 + " us missing " + result.sweptPairMisses +
+                " of " + result.pairHits + " hits, discrete " + result.discretePairTime / 1000 + " us missing " +
+                result.discretePairMisses);
+
+        return result;
+    }
+
+    /**
+     * Moves boxes between the sides of the screen, bouncing on them.
+     *
+     * @param result      Receives the times and errors.
+     * @param random      Chooses the moves.
+     * @param screenWidth The width of the screen.
+     * @param moves       How many moves are tested.
+     */
+    private static void runWalls(Result result, Random random, int screenWidth, int moves) {
+        final int min = HALF_SIZE;
+        final int max = screenWidth - HALF_SIZE;
+        final int[] positions = new int[moves];
+        final int[] displacements = new int[moves];
+        final int[] expected = new int[moves];
+        final int[] ended = new int[moves];
+        final SweptAabb.Hit hit = new SweptAabb.Hit();
+        int i, pos, displacement, step;
+        long startTime;
+
+        for (i = 0; i < moves; i++) {
+            positions[i] = min + random.nextInt(max - min + 1);
+            displacements[i] = random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+
+            // Move a pixel at a time, turning around at the walls
+            pos = positions[i];
+            step = displacements[i] < 0 ? -1 : 1;
+            for (displacement = Math.abs(displacements[i]); displacement > 0; displacement--) {
+                if (pos + step > max || pos + step < min) step = -step;
+                pos += step;
+            }
+            expected[i] = pos;
+        }
+
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) ended[i] = SweptAabb.sweepInterval(positions[i], displacements[i], min, max, hit);
+        result.sweptWallTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (ended[i] != expected[i]) result.sweptWallErrors++;
+
+        // The bounce Star.update(int) did before the sweep
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) {
+            pos = positions[i] + displacements[i];
+            if (pos + HALF_SIZE > screenWidth) {
+                pos = screenWidth;
+            } else if (pos - HALF_SIZE < 0) {
+                pos = 0;
+            }
+            ended[i] = pos;
+        }
+        result.discreteWallTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (ended[i] != expected[i]) result.discreteWallErrors++;
+    }
+
+    /**
+     * Tests swipes against boxes, the way a star is tested against a swipe at the
+     * position where it was seen.
+     *
+     * @param result       Receives the times and misses.
+     * @param random       Chooses the boxes and swipes.
+     * @param screenWidth  The width of the screen.
+     * @param screenHeight The height of the screen.
+     * @param moves        How many swipes are tested.
+     */
+    private static void runSlices(Result result, Random random, int screenWidth, int screenHeight, int moves) {
+        final int[] boxes = new int[moves * 2];
+        final int[] swipes = new int[moves * 4];
+        final boolean[] expected = new boolean[moves];
+        final boolean[] hits = new boolean[moves];
+        final SweptAabb.Hit hit = new SweptAabb.Hit();
+        int i, j, k, boxX, boxY, startX, startY, endX, endY, step;
+        float time;
+        long startTime;
+
+        for (i = 0; i < moves; i++) {
+            j = i * 2;
+            k = i * 4;
+            boxX = boxes[j] = random.nextInt(screenWidth);
+            boxY = boxes[j + 1] = random.nextInt(screenHeight);
+            startX = swipes[k] = boxX + random.nextInt(2 * MAX_SWIPE_LENGTH + 1) - MAX_SWIPE_LENGTH;
+            startY = swipes[k + 1] = boxY + random.nextInt(2 * MAX_SWIPE_LENGTH + 1) - MAX_SWIPE_LENGTH;
+            endX = swipes[k + 2] = startX + random.nextInt(2 * MAX_SWIPE_LENGTH + 1) - MAX_SWIPE_LENGTH;
+            endY = swipes[k + 3] = startY + random.nextInt(2 * MAX_SWIPE_LENGTH + 1) - MAX_SWIPE_LENGTH;
+
+            // Move along the swipe a step at a time, checking if it is inside the box
+            for (step = 0; step <= REFERENCE_STEPS && !expected[i]; step++) {
+                time = (float) step / REFERENCE_STEPS;
+                expected[i] = Math.abs(startX + (endX - startX) * time - boxX) <= HALF_SIZE &&
+                        Math.abs(startY + (endY - startY) * time - boxY) <= HALF_SIZE;
+            }
+            if (expected[i]) result.sliceHits++;
+        }
+
+        // The test Star.handleSlice(int, int, int, int, long) runs
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) {
+            j = i * 2;
+            k = i * 4;
+            hits[i] = SweptAabb.sweepSegment(swipes[k], swipes[k + 1], swipes[k + 2], swipes[k + 3],
+                    boxes[j] - HALF_SIZE, boxes[j + 1] - HALF_SIZE, boxes[j] + HALF_SIZE, boxes[j + 1] + HALF_SIZE, hit);
+        }
+        result.sweptSliceTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (expected[i] && !hits[i]) result.sweptSliceMisses++;
+
+        // Only where the swipe ended up is checked against the box, like a tap
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) {
+            j = i * 2;
+            k = i * 4;
+            hits[i] = Math.abs(swipes[k + 2] - boxes[j]) <= HALF_SIZE && Math.abs(swipes[k + 3] - boxes[j + 1]) <= HALF_SIZE;
+        }
+        result.discreteSliceTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (expected[i] && !hits[i]) result.discreteSliceMisses++;
+    }
+
+    /**
+     * Tests pairs of moving boxes against each other, the way the pairs of stars found
+     * by the broad phase are tested.
+     *
+     * @param result       Receives the times and misses.
+     * @param random       Chooses the boxes and their moves.
+     * @param screenWidth  The width of the screen.
+     * @param screenHeight The height of the screen.
+     * @param moves        How many pairs are tested.
+     */
+    private static void runPairs(Result result, Random random, int screenWidth, int screenHeight, int moves) {
+        final int[] pairs = new int[moves * 8];
+        final boolean[] expected = new boolean[moves];
+        final boolean[] hits = new boolean[moves];
+        final SweptAabb.Hit hit = new SweptAabb.Hit();
+        int i, j, aX, aY, aVelX, aVelY, bX, bY, bVelX, bVelY, step;
+        float time;
+        long startTime;
+
+        for (i = 0; i < moves; i++) {
+            j = i * 8;
+            aX = pairs[j] = random.nextInt(screenWidth);
+            aY = pairs[j + 1] = random.nextInt(screenHeight);
+            aVelX = pairs[j + 2] = random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+            aVelY = pairs[j + 3] = random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+
+            // The second box starts close enough to be paired by the broad phase
+            bX = pairs[j + 4] = aX + random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+            bY = pairs[j + 5] = aY + random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+            bVelX = pairs[j + 6] = random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+            bVelY = pairs[j + 7] = random.nextInt(2 * MAX_DISPLACEMENT + 1) - MAX_DISPLACEMENT;
+
+            // Move both boxes a step at a time, checking if they touch
+            for (step = 0; step <= REFERENCE_STEPS && !expected[i]; step++) {
+                time = (float) step / REFERENCE_STEPS;
+                expected[i] = Math.abs(aX + aVelX * time - (bX + bVelX * time)) <= 2 * HALF_SIZE &&
+                        Math.abs(aY + aVelY * time - (bY + bVelY * time)) <= 2 * HALF_SIZE;
+            }
+            if (expected[i]) result.pairHits++;
+        }
+
+        // The test Star.collide(Star) runs
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) {
+            j = i * 8;
+            hits[i] = SweptAabb.sweepBoxes(pairs[j] - HALF_SIZE, pairs[j + 1] - HALF_SIZE, pairs[j] + HALF_SIZE,
+                    pairs[j + 1] + HALF_SIZE, pairs[j + 2], pairs[j + 3], pairs[j + 4] - HALF_SIZE,
+                    pairs[j + 5] - HALF_SIZE, pairs[j + 4] + HALF_SIZE, pairs[j + 5] + HALF_SIZE, pairs[j + 6],
+                    pairs[j + 7], hit);
+        }
+        result.sweptPairTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (expected[i] && !hits[i]) result.sweptPairMisses++;
+
+        // Only where the boxes ended up is checked, like Star.collide(Star) did before the sweep
+        startTime = System.nanoTime();
+        for (i = 0; i < moves; i++) {
+            j = i * 8;
+            hits[i] = Math.abs(pairs[j] + pairs[j + 2] - pairs[j + 4] - pairs[j + 6]) <= 2 * HALF_SIZE &&
+                    Math.abs(pairs[j + 1] + pairs[j + 3] - pairs[j + 5] - pairs[j + 7]) <= 2 * HALF_SIZE;
+        }
+        result.discretePairTime = System.nanoTime() - startTime;
+        for (i = 0; i < moves; i++) if (expected[i] && !hits[i]) result.discretePairMisses++;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+import br.com.oncipriani.mygame.engine.DisplayList;
+import br.com.oncipriani.mygame.engine.GameRunningState;
+import br.com.oncipriani.mygame.engine.GameStateManager;
+import br.com.oncipriani.mygame.engine.InputQueue;
+import br.com.oncipriani.mygame.objects.Star;
+
+import java.util.Random;
+
+/**
+ * This class runs the game headless at the pace of the game loop, tapping the stars,
+ * and checks the latency of the taps recorded by {@link InputLatency}.
+ */
+public final class LatencyHarness {
+    private static final String TAG = LatencyHarness.class.getSimpleName();
+
+    private LatencyHarness() {
+    }
+
+    /**
+     * Runs the game headless, tapping the stars where they were last drawn at random moments
+     * between the ticks, and checks the latency of the taps. The taps go through an
+     * {@link InputQueue} just like the real ones, and a frame counts as shown once it is
+     * drawn on the canvas. The same seed always produces the same taps. The histograms of
+     * {@link InputLatency} are reset before the run and hold its results.
+     *
+     * @param gameStateManager The game states to be run, already initialized.
+     * @param game             The running game, exposed by the game state manager, whose stars are tapped.
+     * @param canvas           The canvas used to draw the game (e.g. backed by an offscreen bitmap).
+     * @param ticks            How many ticks to run.
+     * @param framePeriod      How long each tick lasts, in milliseconds.
+     * @param maxMillis        The longest time the 95th percentile of the taps may take to show up.
+     * @param seed             The seed used to generate the taps.
+     * @throws java.lang.IllegalStateException if no tap hit a star or if the taps took too long to show up.
+     */
+    public static void run(GameStateManager gameStateManager, GameRunningState game, Canvas canvas, int ticks,
+                           int framePeriod, int maxMillis, long seed) {
+        final LatencyHistogram queueHistogram = InputLatency.getQueueHistogram();
+        final LatencyHistogram presentHistogram = InputLatency.getPresentHistogram();
+        final InputQueue inputQueue = new InputQueue();
+        final DisplayList displayList = new DisplayList();
+        final Random random = new Random(seed);
+        long tickStartTime, tapTime;
+        int presentedEventCount, starCount;
+        Star star;
+
+        queueHistogram.reset();
+        presentHistogram.reset();
+
+        for (int tick = 0; tick < ticks; tick++) {
+            tickStartTime = SystemClock.uptimeMillis();
+
+            inputQueue.dispatch(gameStateManager);
+            gameStateManager.update();
+            displayList.reset(tick);
+            gameStateManager.draw(displayList);
+            displayList.draw(canvas);
+
+            final long now = SystemClock.uptimeMillis();
+            presentedEventCount = displayList.getPresentedEventCount();
+            for (int i = 0; i < presentedEventCount; i++) {
+                InputLatency.recordPresented(displayList.getPresentedEventTime(i), now);
+            }
+
+            // Tap a star at a random moment before the next tick, where the player sees it
+            starCount = game.getStarCount();
+            if (starCount > 0) {
+                tapTime = tickStartTime + random.nextInt(framePeriod);
+                sleepUntil(tapTime);
+                star = game.getStar(random.nextInt(starCount));
+                inputQueue.queueActionDown(star.getPosX(), star.getPosY(), SystemClock.uptimeMillis());
+            }
+            sleepUntil(tickStartTime + framePeriod);
+        }
+
+        final long hits = presentHistogram.getTotalCount();
+        final long presentMicros = presentHistogram.getValueAtPercentile(95);
+        Log.d(TAG, hits + " taps shown, queued for " + queueHistogram.getValueAtPercentile(95) + " us and shown after " +
+                presentMicros + " us (95th percentile)");
+
+        if (hits == 0) throw new IllegalStateException("No tap hit a star in " + ticks + " ticks");
+        if (presentMicros > maxMillis * 1000L) {
+            throw new IllegalStateException("The taps took " + presentMicros + " us to show up (95th percentile), over " +
+                    "the budget of " + maxMillis + " ms");
+        }
+    }
+
+    /**
+     * Sleeps until the specified time.
+     *
+     * @param time The time to wake up, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     */
+    private static void sleepUntil(long time) {
+        final long sleepTime = time - SystemClock.uptimeMillis();
+        if (sleepTime > 0) SystemClock.sleep(sleepTime);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.os.SystemClock;
+import android.util.Log;
+import br.com.oncipriani.mygame.engine.GameRunningState;
+import br.com.oncipriani.mygame.engine.GameStateManager;
+import br.com.oncipriani.mygame.engine.WorkerPool;
+import br.com.oncipriani.mygame.objects.Star;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class measures how the update of a crowded game scales with the number of
+ * cores. It runs the game on worker pools of every size from one thread up to the
+ * number of cores, tapping a few stars on every tick so the explosions keep coming,
+ * and reports the speedup of the update on each pool over the single threaded one.
+ * Every pool starts from the same snapshot of the world and gets the same taps, so
+ * they all do the same work and must end on the same world.
+ * <p>
+ * The game must be in one of the stress or high-density modes (see
+ * {@link br.com.oncipriani.mygame.engine.GameRunningState#setDensity(int)}), since a
+ * normal game has no loop large enough to be run in parallel. It is run by the
+ * <code>parallel</code> harness of the diagnostics activity on the devices we care
+ * about, to tune the threshold above which the loops are run in parallel.
+ * </p>
+ */
+public final class ParallelUpdateBenchmark {
+    private static final String TAG = ParallelUpdateBenchmark.class.getSimpleName();
+
+    // How many stars are tapped on every tick (fewer than are spawned, so the screen stays full)
+    private static final int TAPS_PER_TICK = 2;
+
+    // Initial size of the buffers holding the snapshots of the world (grown until they fit)
+    private static final int INITIAL_SNAPSHOT_SIZE = 64 * 1024;
+
+    private ParallelUpdateBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark. The game is first run on the default pool until the screen is
+     * full of stars and then saved. Every pool restores it and runs the same ticks with
+     * the same taps.
+     *
+     * @param gameStateManager The game state manager running the game, with nothing on top of it.
+     * @param game             The running game.
+     * @param ticks            How many ticks are measured for each number of threads.
+     * @param warmUpTicks      How many ticks are run before the first measure, to fill the screen.
+     * @param seed             The seed of the taps, so every run touches the stars the same way.
+     * @return The speedup over a single thread, indexed by the number of threads minus one.
+     * @throws java.lang.IllegalStateException if a pool ends on a different world than the single thread.
+     */
+    public static double[] run(GameStateManager gameStateManager, GameRunningState game, int ticks, int warmUpTicks,
+                               long seed) {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final double[] speedups = new double[cores];
+
+        // The stars are left alone while the screen fills up
+        measure(gameStateManager, game, new Random(seed), warmUpTicks, 0);
+        final byte[] startSnapshot = writeSnapshot(game);
+
+        long singleThreadTime = 0;
+        byte[] singleThreadSnapshot = null;
+        for (int threads = 1; threads <= cores; threads++) {
+            final WorkerPool pool = new WorkerPool(threads);
+            final Random random = new Random(seed);
+            final long time;
+
+            game.readSnapshot(ByteBuffer.wrap(startSnapshot));
+            game.setWorkerPool(pool);
+            try {
+                // Warm up the pool and the compiler, and let the explosions build up, before measuring
+                measure(gameStateManager, game, random, ticks / 4, TAPS_PER_TICK);
+                time = measure(gameStateManager, game, random, ticks, TAPS_PER_TICK);
+            } finally {
+                game.setWorkerPool(null);
+                pool.shutdown();
+            }
+
+            // Splitting the loops must not change what the update does
+            final byte[] endSnapshot = writeSnapshot(game);
+            if (threads == 1) {
+                singleThreadTime = time;
+                singleThreadSnapshot = endSnapshot;
+            } else if (!Arrays.equals(endSnapshot, singleThreadSnapshot)) {
+                throw new IllegalStateException("The update on " + threads + " threads diverged from the single threaded one");
+            }
+
+            speedups[threads - 1] = (double) singleThreadTime / Math.max(1, time);
+            Log.d(TAG, threads + " thread(s): " + time / 1000 + " us with " + game.getEntityCount() +
+                    " entities, speedup " + speedups[threads - 1]);
+        }
+
+        return speedups;
+    }
+
+    /**
+     * Saves the world, growing the buffer until the crowded game fits.
+     *
+     * @param game The running game.
+     * @return The bytes of the snapshot.
+     */
+    private static byte[] writeSnapshot(GameRunningState game) {
+        int size = INITIAL_SNAPSHOT_SIZE;
+
+        while (true) {
+            final ByteBuffer buffer = ByteBuffer.allocate(size);
+            try {
+                game.writeSnapshot(buffer);
+            } catch (BufferOverflowException e) {
+                size *= 2;
+                continue;
+            }
+
+            final byte[] snapshot = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(snapshot);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Runs the game for a number of ticks, tapping random stars before every update.
+     *
+     * @param gameStateManager The game state manager running the game.
+     * @param game             The running game.
+     * @param random           Chooses the stars tapped.
+     * @param ticks            How many ticks are run.
+     * @param tapsPerTick      How many stars are tapped before every update.
+     * @return The time spent updating the game, in nanoseconds.
+     */
+    private static long measure(GameStateManager gameStateManager, GameRunningState game, Random random, int ticks,
+                                int tapsPerTick) {
+        long time = 0;
+        long startTime;
+        Star star;
+
+        for (int tick = 0; tick < ticks; tick++) {
+            for (int i = 0; i < tapsPerTick && game.getStarCount() > 0; i++) {
+                star = game.getStar(random.nextInt(game.getStarCount()));
+                game.handleActionDown(star.getPosX(), star.getPosY(), SystemClock.uptimeMillis());
+            }
+
+            startTime = System.nanoTime();
+            gameStateManager.update();
+            time += System.nanoTime() - startTime;
+        }
+
+        return time;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import br.com.oncipriani.mygame.profiling.FlightRecorder;
+import br.com.oncipriani.mygame.profiling.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Offline tool that reads a file written by {@link FlightRecorder}, prints summary
+ * statistics for every phase of the main game loop and optionally writes the whole
+ * timeline as CSV. It is not part of the game: it only depends on the standard library
+ * and on the game's profiling classes, so it is built and run on a desktop JVM after
+ * pulling the file from the device:
+ * <pre>
+ *     ./analyze_flight_record.sh flight_record.bin [timeline.csv]
+ * </pre>
+ */
+public final class FlightRecordAnalyzer {
+    // Names of the timing columns of each record, in order
+    private static final String[] TIMINGS = {"lock", "update", "draw", "post", "frame"};
+
+    private FlightRecordAnalyzer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FlightRecordAnalyzer <flight record> [timeline.csv]");
+            System.exit(1);
+        }
+
+        final ByteBuffer buffer = read(new File(args[0]));
+
+        // Check the header
+        if (buffer.getInt() != FlightRecorder.MAGIC) throw new IOException("Not a flight record file");
+        final int version = buffer.getInt();
+        if (version != FlightRecorder.VERSION) throw new IOException("Unsupported flight record version " + version);
+        final int recordSize = buffer.getInt();
+        final int recordCount = buffer.getInt();
+
+        final PrintWriter csv = args.length > 1 ? new PrintWriter(args[1], "UTF-8") : null;
+        if (csv != null) csv.println("tick,lock_us,update_us,draw_us,post_us,frame_us,entities,frames_skipped,gcs");
+
+        final LatencyHistogram[] histograms = new LatencyHistogram[TIMINGS.length];
+        final long[] totals = new long[TIMINGS.length];
+        for (int i = 0; i < TIMINGS.length; i++) histograms[i] = new LatencyHistogram();
+
+        long firstTick = 0, lastTick = 0, framesSkipped = 0, collections = 0;
+        int maxEntities = 0, value, entities, skipped, gcs;
+
+        for (int record = 0; record < recordCount; record++) {
+            buffer.position(FlightRecorder.HEADER_SIZE + record * recordSize);
+
+            lastTick = buffer.getLong();
+            if (record == 0) firstTick = lastTick;
+            if (csv != null) csv.print(lastTick);
+
+            for (int i = 0; i < TIMINGS.length; i++) {
+                value = buffer.getInt();
+                histograms[i].record(value);
+                totals[i] += value;
+                if (csv != null) csv.print("," + value);
+            }
+
+            entities = buffer.getInt();
+            skipped = buffer.getInt();
+            gcs = buffer.getInt();
+
+            maxEntities = Math.max(maxEntities, entities);
+            framesSkipped += skipped;
+            collections += gcs;
+            if (csv != null) csv.println("," + entities + "," + skipped + "," + gcs);
+        }
+
+        if (csv != null) csv.close();
+
+        // Print the summary
+        System.out.println("Frames recorded: " + recordCount + " (ticks " + firstTick + " to " + lastTick + ")");
+        System.out.println("Frames skipped: " + framesSkipped);
+        System.out.println("Garbage collections: " + collections);
+        System.out.println("Maximum entity count: " + maxEntities);
+        System.out.println();
+        System.out.println(String.format("%-8s %10s %10s %10s %10s %10s", "phase", "mean", "p50", "p95", "p99", "max"));
+
+        for (int i = 0; i < TIMINGS.length; i++) {
+            System.out.println(String.format("%-8s %10d %10d %10d %10d %10d", TIMINGS[i],
+                    recordCount == 0 ? 0 : totals[i] / recordCount,
+                    histograms[i].getValueAtPercentile(50), histograms[i].getValueAtPercentile(95),
+                    histograms[i].getValueAtPercentile(99), histograms[i].getMaxValue()));
+        }
+    }
+
+    /**
+     * Reads a whole file into a little endian buffer.
+     *
+     * @param file The file to be read.
+     * @return The buffer holding the file's contents.
+     * @throws java.io.IOException if the file could not be read.
+     */
+    private static ByteBuffer read(File file) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the whole file is in memory
+            }
+            buffer.flip();
+
+            return buffer;
+        } finally {
+            stream.close();
+        }
+    }
+}
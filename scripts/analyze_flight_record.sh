@@ -0,0 +1,19 @@
+#!/bin/bash
+#
+# Prints the statistics of a flight record pulled from the device and optionally
+# writes its whole timeline as CSV.
+#
+#   adb pull /data/data/br.com.oncipriani.mygame/files/flight_record.bin
+#   ./analyze_flight_record.sh flight_record.bin [timeline.csv]
+#
+# The analyzer is built on a desktop JVM along with the game's profiling classes
+# it depends on, which only use the standard library.
+
+SCRIPTS_DIR=$(cd "$(dirname "$0")" && pwd)
+SRC_DIR="$SCRIPTS_DIR/../src"
+BUILD_DIR=$(mktemp -d)
+
+trap 'rm -rf "$BUILD_DIR"' EXIT
+
+javac -d "$BUILD_DIR" -sourcepath "$SRC_DIR" "$SCRIPTS_DIR/FlightRecordAnalyzer.java" || exit 1
+java -cp "$BUILD_DIR" FlightRecordAnalyzer "$@"
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.util.Log;
+import br.com.oncipriani.mygame.engine.QualityGovernor;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
+import br.com.oncipriani.mygame.objects.Star;
+import br.com.oncipriani.mygame.objects.components.Particle;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * This class classifies the device into one of the {@link QualityGovernor} tiers,
+ * so the game can start with a configuration it is able to run.
+ * <p>
+ * The classification is done by a short benchmark timing the same kind of work the
+ * game does on every frame: updating the stars and the particles and drawing the sky
+ * and the clouds. Since the benchmark takes a while, the tier is cached on a file and
+ * only measured again when the game is updated.
+ * </p>
+ */
+public final class DeviceCalibration {
+    private static final String TAG = DeviceCalibration.class.getSimpleName();
+
+    // The file where the tier is cached
+    private static final String CACHE_FILE_NAME = "device_tier.bin";
+
+    // How much work the benchmark does
+    private static final int ITERATIONS = 50;
+    private static final int STAR_COUNT = 64;
+    private static final int PARTICLE_COUNT = 256;
+    private static final int BLIT_WIDTH = 360;
+    private static final int BLIT_HEIGHT = 640;
+
+    // How long the benchmark may take for each tier, in milliseconds
+    private static final long HIGH_TIER_MAX_TIME = 150;
+    private static final long MEDIUM_TIER_MAX_TIME = 400;
+
+    // The tier of this device, starting at the highest until it is known
+    private static volatile int tier = QualityGovernor.TIER_HIGH;
+
+    private DeviceCalibration() {
+    }
+
+    /**
+     * Returns the tier of this device.
+     *
+     * @return One of the {@link QualityGovernor} <code>TIER_*</code> constants.
+     */
+    public static int getTier() {
+        return tier;
+    }
+
+    /**
+     * Returns how the resolution of the game's backbuffer should be scaled on a tier.
+     *
+     * @param tier One of the {@link QualityGovernor} <code>TIER_*</code> constants.
+     * @return The scale applied to the maximum supported resolution.
+     */
+    public static float getBackbufferScale(int tier) {
+        switch (tier) {
+            case QualityGovernor.TIER_HIGH:
+                return 1.0f;
+
+            case QualityGovernor.TIER_MEDIUM:
+                return 0.75f;
+
+            default:
+                return 0.5f;
+        }
+    }
+
+    /**
+     * Finds the tier of this device, either from the cache or by running the benchmark.
+     * This may take a while, so it should not be called from the UI thread.
+     *
+     * @param context The context used to access the game's files and resources.
+     * @return One of the {@link QualityGovernor} <code>TIER_*</code> constants.
+     */
+    public static int calibrate(Context context) {
+        final File cacheFile = new File(context.getFilesDir(), CACHE_FILE_NAME);
+        final int versionCode = getVersionCode(context);
+
+        int cachedTier = readCachedTier(cacheFile, versionCode);
+        if (cachedTier < 0) {
+            final long time = runBenchmark(context);
+
+            if (time <= HIGH_TIER_MAX_TIME) {
+                cachedTier = QualityGovernor.TIER_HIGH;
+            } else if (time <= MEDIUM_TIER_MAX_TIME) {
+                cachedTier = QualityGovernor.TIER_MEDIUM;
+            } else {
+                cachedTier = QualityGovernor.TIER_LOW;
+            }
+
+            Log.d(TAG, "Benchmark took " + time + " ms, device tier is " + cachedTier);
+            writeCachedTier(cacheFile, versionCode, cachedTier);
+        }
+
+        tier = cachedTier;
+        return cachedTier;
+    }
+
+    /**
+     * Times the benchmark.
+     *
+     * @param context The context used to access the game's resources.
+     * @return How long the benchmark took, in milliseconds.
+     */
+    private static long runBenchmark(Context context) {
+        // Create the objects first, so only the work itself is timed
+        final Bitmap starBitmap = BitmapFactory.decodeResource(context.getResources(), R.drawable.star_large);
+        final Bitmap cloudBitmap = BitmapFactory.decodeResource(context.getResources(), R.drawable.cloud_l1);
+        final Bitmap skyBitmap = Bitmap.createBitmap(BLIT_WIDTH, BLIT_HEIGHT, Bitmap.Config.ARGB_8888);
+        final Bitmap target = Bitmap.createBitmap(BLIT_WIDTH, BLIT_HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(target);
+
+        final Star[] stars = new Star[STAR_COUNT];
+        for (int i = 0; i < STAR_COUNT; i++) {
+            stars[i] = new Star(starBitmap, null, i * BLIT_WIDTH / STAR_COUNT, 0, Star.MAX_SPEED, 270 + i % 15, Star.MAX_ENERGY);
+        }
+
+        // A fixed seed, so every run of the calibration does the same work
+        final XorShiftRandom random = new XorShiftRandom(0);
+        final Particle[] particles = new Particle[PARTICLE_COUNT];
+        for (int i = 0; i < PARTICLE_COUNT; i++) particles[i] = new Particle(BLIT_WIDTH / 2, BLIT_HEIGHT / 2, i, random);
+
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (int j = 0; j < STAR_COUNT; j++) stars[j].update(BLIT_WIDTH);
+            for (int j = 0; j < PARTICLE_COUNT; j++) particles[j].update();
+
+            canvas.drawBitmap(skyBitmap, 0, 0, null);
+            for (int j = 0; j < 3; j++) canvas.drawBitmap(cloudBitmap, j * cloudBitmap.getWidth() / 2, j * BLIT_HEIGHT / 4, null);
+        }
+        final long time = (System.nanoTime() - startTime) / 1000000;
+
+        // Nothing was drawn by the game, so every bitmap can be recycled right away
+        starBitmap.recycle();
+        cloudBitmap.recycle();
+        skyBitmap.recycle();
+        target.recycle();
+
+        return time;
+    }
+
+    /**
+     * Returns the version of the game, used to measure the tier again after updates.
+     *
+     * @param context The context used to access the package manager.
+     * @return The game's version code or <code>0</code> if it is unknown.
+     */
+    private static int getVersionCode(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Could not find the game's version", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the tier cached by a previous calibration.
+     *
+     * @param file        The cache file.
+     * @param versionCode The game's version code.
+     * @return The cached tier or <code>-1</code> if there is none for this version.
+     */
+    private static int readCachedTier(File file, int versionCode) {
+        if (!file.exists()) return -1;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            if (input.readInt() != versionCode) return -1;
+
+            final int cachedTier = input.readInt();
+            if (cachedTier < QualityGovernor.TIER_HIGH || cachedTier > QualityGovernor.TIER_LOW) return -1;
+
+            return cachedTier;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the cached device tier", e);
+            return -1;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close the cached device tier", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Caches the tier of the device.
+     *
+     * @param file        The cache file.
+     * @param versionCode The game's version code.
+     * @param tier        The device's tier.
+     */
+    private static void writeCachedTier(File file, int versionCode, int tier) {
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(file));
+            output.writeInt(versionCode);
+            output.writeInt(tier);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache the device tier", e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close the cached device tier", e);
+                }
+            }
+        }
+    }
+}
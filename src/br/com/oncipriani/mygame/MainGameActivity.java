@@ -29,9 +29,28 @@ import android.view.SurfaceView;
  * This activity is where our game actually takes place.
  */
 public class MainGameActivity extends Activity {
+    // The view where the game is drawn, which owns the game thread
+    private MainGameView gameView;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(new MainGameView(this));
+
+        gameView = new MainGameView(this);
+        if (savedInstanceState != null) gameView.restoreState(savedInstanceState);
+        setContentView(gameView);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        gameView.saveState(outState);
+    }
+
+    @Override
+    protected void onDestroy() {
+        // The game thread survives the surface being destroyed, but not the activity
+        gameView.destroy();
+        super.onDestroy();
     }
 }
@@ -17,15 +17,46 @@
 package br.com.oncipriani.mygame;
 
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.util.Log;
 import android.view.SurfaceHolder;
+import br.com.oncipriani.mygame.engine.DisplayList;
 import br.com.oncipriani.mygame.engine.GameRunningState;
 import br.com.oncipriani.mygame.engine.GameStateManager;
+import br.com.oncipriani.mygame.engine.InputQueue;
+import br.com.oncipriani.mygame.engine.QualityGovernor;
+import br.com.oncipriani.mygame.engine.SpriteRegistry;
+import br.com.oncipriani.mygame.engine.TripleBuffer;
+import br.com.oncipriani.mygame.engine.WarmUp;
+import br.com.oncipriani.mygame.engine.WorldSnapshot;
+import br.com.oncipriani.mygame.profiling.AllocationVerifier;
+import br.com.oncipriani.mygame.profiling.FlightRecorder;
+import br.com.oncipriani.mygame.profiling.FrameProfiler;
+import br.com.oncipriani.mygame.profiling.FrameWatchdog;
+import br.com.oncipriani.mygame.profiling.LatencyHistogram;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.ProfilerOverlay;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * This class is responsible for updating the game logic and drawing the game
  * on the screen provided by {@link br.com.oncipriani.mygame.MainGameView}.
+ * <p>
+ * Every tick is recorded on a {@link br.com.oncipriani.mygame.engine.DisplayList},
+ * which is drawn on the screen by the {@link br.com.oncipriani.mygame.RenderThread}
+ * while this thread goes on to the next tick.
+ * </p>
+ * <p>
+ * Frames are only recorded when something on the screen changed. While nothing
+ * changes, this thread blocks until a touch arrives or a timer goes off, instead of
+ * waking up on every tick.
+ * </p>
  *
  * @see android.view.SurfaceView
  */
@@ -37,14 +68,75 @@ public final class MainGameThread extends Thread {
     public static final int STATE_RUNNING = 2;
     public static final int STATE_EXITING = 3;
 
-    // Constants for controlling the game's FPS
+    // Constants for controlling the game's FPS (the frame period is also used by the headless harnesses)
     private static final int MAX_FPS = 50;
-    private static final int FRAME_PERIOD = 1000 / MAX_FPS;
+    static final int FRAME_PERIOD = 1000 / MAX_FPS;
     private static final int MAX_FRAME_SKIPS = 5;
 
+    // How long the game thread may block while nothing changes on the screen
+    private static final int IDLE_WAKE_UP_PERIOD = 250;
+
+    // Draw the frame time percentiles on top of the game on debug builds
+    private static final boolean SHOW_PROFILER_OVERLAY = BuildConfig.DEBUG;
+
     // Objects for controlling our game's states
     private final GameStateManager gameStateManager = new GameStateManager();
 
+    // Run the game offscreen for a while before the first frame, so the first seconds don't stutter
+    private static final int WARM_UP_BUDGET = 750;
+    private static final int WARM_UP_MAX_TICKS = MAX_FPS * 10;
+
+    // Lowers the quality of the effects when the frames take too long
+    private final QualityGovernor qualityGovernor = new QualityGovernor(FRAME_PERIOD * 1000000L, DeviceCalibration.getTier());
+
+    // Touch events waiting to be handled by the game thread
+    private final InputQueue inputQueue = new InputQueue();
+
+    // Objects for measuring how long each phase of the loop takes
+    private final FrameProfiler profiler = new FrameProfiler();
+    private final ProfilerOverlay profilerOverlay = SHOW_PROFILER_OVERLAY ? new ProfilerOverlay() : null;
+
+    // Keeps a record of the last frames, dumped to a file when something goes wrong
+    private static final String FLIGHT_RECORD_FILE_NAME = "flight_record.bin";
+    private final FlightRecorder flightRecorder = new FlightRecorder();
+    private final File flightRecordFile;
+
+    // Record a trace of the engine's spans, exported when the game thread ends
+    private static final boolean ENABLE_TRACING = false;
+    private static final String TRACE_FILE_NAME = "trace.json";
+    private final File traceFile;
+
+    // Samples the game thread's stack when a tick takes much longer than it should
+    private static final int WATCHDOG_THRESHOLD = FRAME_PERIOD * 5;
+    private static final String LONG_TICKS_FILE_NAME = "long_ticks.folded";
+    private final FrameWatchdog watchdog;
+
+    // Fail as soon as the loop allocates anything after the game has loaded
+    private static final boolean VERIFY_ALLOCATIONS = false;
+    private static final int ALLOCATION_WARM_UP_TICKS = MAX_FPS * 10;
+    private final AllocationVerifier allocationVerifier = VERIFY_ALLOCATIONS ? new AllocationVerifier(ALLOCATION_WARM_UP_TICKS) : null;
+
+    // Names of the spans on the trace
+    private static final int TRACE_FRAME = Tracer.registerName("MainGameThread.frame");
+    private static final int TRACE_UPDATE = Tracer.registerName("MainGameThread.update");
+    private static final int TRACE_DRAW = Tracer.registerName("MainGameThread.draw");
+    private static final int TRACE_SLEEP = Tracer.registerName("MainGameThread.sleep");
+    private static final int TRACE_CATCH_UP = Tracer.registerName("MainGameThread.catchUp");
+    private static final int TRACE_IDLE = Tracer.registerName("MainGameThread.idle");
+    private static final int TRACE_ENTITIES = Tracer.registerName("entities");
+
+    // Metrics published by the loop
+    private static final int METRIC_FRAMES_SKIPPED = Metrics.registerCounter("frames.skipped");
+    private static final int METRIC_FRAMES_UNCHANGED = Metrics.registerCounter("frames.unchanged");
+    private static final int METRIC_WAKE_UPS = Metrics.registerCounter("loop.wakeups");
+    private static final int METRIC_TOUCHES = Metrics.registerCounter("touches.processed");
+    private static final int METRIC_ENTITIES = Metrics.registerGauge("entities");
+    private static final int METRIC_QUALITY_TIER = Metrics.registerGauge("quality.tier");
+    private static final int METRIC_RESUMES = Metrics.registerCounter("resumes");
+    private static final int METRIC_SNAPSHOT_BYTES = Metrics.registerGauge("snapshot.bytes");
+    private static final int METRIC_SNAPSHOT_TIME = Metrics.registerGauge("snapshot.write_us");
+    private static final int METRIC_RESIZE_TIME = Metrics.registerGauge("resize.time_us");
+
     // Handlers providing access to some important stuff
     private final SurfaceHolder surfaceHolder;
     private final Resources resources;
@@ -52,6 +144,31 @@ public final class MainGameThread extends Thread {
     // Determines if this thread should keep running or not
     private boolean keepRunning = false;
 
+    // Determines if there is a surface to draw on and if the thread is waiting for one
+    private boolean hasSurface = false;
+    private boolean isParked = false;
+
+    // Determines if the game states must be informed of a new screen size
+    private boolean isResizePending = false;
+
+    // Determines if the game thread is blocked because nothing changed, so touches must wake it up
+    private volatile boolean isIdle = false;
+
+    // Determines if a frame must be drawn even if nothing changed (e.g. on a new surface)
+    private boolean isRedrawPending = true;
+
+    // Draws the display lists recorded by this thread, which are handed over through a triple buffer
+    private final TripleBuffer<DisplayList> displayLists = new TripleBuffer<DisplayList>(new DisplayList(),
+            new DisplayList(), new DisplayList());
+    private final RenderThread renderThread;
+
+    // Snapshots of the game world, so it can be restored if the process is killed
+    private static final int SNAPSHOT_CAPACITY = 16 * 1024;
+    private final ByteBuffer snapshotBuffer = ByteBuffer.allocate(SNAPSHOT_CAPACITY);
+    private boolean isSnapshotRequested = false;
+    private byte[] savedSnapshot;
+    private byte[] restoredSnapshot;
+
     // The screen size
     private int screenWidth;
     private int screenHeight;
@@ -61,14 +178,19 @@ public final class MainGameThread extends Thread {
      *
      * @param surfaceHolder The SurfaceHolder providing access and control over the screen.
      * @param resources     Handler providing access to our game's resource files.
+     * @param dataDirectory Directory where diagnostic files (such as the flight record) are written.
      */
-    public MainGameThread(SurfaceHolder surfaceHolder, Resources resources) {
+    public MainGameThread(SurfaceHolder surfaceHolder, Resources resources, File dataDirectory) {
         super();
 
         Log.d(TAG, "Constructing the main game thread");
 
         this.surfaceHolder = surfaceHolder;
         this.resources = resources;
+        this.flightRecordFile = new File(dataDirectory, FLIGHT_RECORD_FILE_NAME);
+        this.traceFile = new File(dataDirectory, TRACE_FILE_NAME);
+        this.watchdog = new FrameWatchdog(this, WATCHDOG_THRESHOLD, new File(dataDirectory, LONG_TICKS_FILE_NAME));
+        this.renderThread = new RenderThread(surfaceHolder, displayLists, profiler, profilerOverlay);
     }
 
     /**
@@ -76,6 +198,7 @@ public final class MainGameThread extends Thread {
      */
     public synchronized void quitGame() {
         keepRunning = false;
+        notifyAll();
     }
 
     @Override
@@ -84,79 +207,549 @@ public final class MainGameThread extends Thread {
             throw new RuntimeException("The main game thread was started without being initialized!");
         }
 
+        Tracer.setEnabled(ENABLE_TRACING);
+        watchdog.start();
+
+        try {
+            runGameLoop();
+        } catch (RuntimeException e) {
+            // Keep a record of what happened right before the crash
+            Log.e(TAG, "The game thread crashed", e);
+            dumpFlightRecord();
+            throw e;
+        } catch (Error e) {
+            Log.e(TAG, "The game thread crashed", e);
+            dumpFlightRecord();
+            throw e;
+        } finally {
+            exitGameStates();
+            stopRenderThread();
+            watchdog.quit();
+            if (VERIFY_ALLOCATIONS) allocationVerifier.stop();
+
+            // Nobody should wait for this thread to park anymore
+            synchronized (this) {
+                isParked = true;
+                notifyAll();
+            }
+        }
+
+        dumpFlightRecord();
+        if (ENABLE_TRACING) exportTrace();
+    }
+
+    /**
+     * Runs the main game loop until the game is quit.
+     */
+    private void runGameLoop() {
+        warmUp();
+
         // Initialize our game's states
-        gameStateManager.push(new GameRunningState(gameStateManager, resources, screenWidth, screenHeight));
+        gameStateManager.setQualityTier(qualityGovernor.getTier());
+        gameStateManager.setScreenSize(screenWidth, screenHeight);
+        gameStateManager.push(new GameRunningState(gameStateManager, resources, screenWidth, screenHeight, DeviceCalibration.getTier()));
+
+        // Continue the game where it was if the process was killed
+        final byte[] snapshot = takeRestoredSnapshot();
+        if (snapshot != null && !WorldSnapshot.read(gameStateManager, ByteBuffer.wrap(snapshot))) {
+            Log.w(TAG, "Could not restore the saved game, starting a new one");
+            gameStateManager.pop();
+            gameStateManager.push(new GameRunningState(gameStateManager, resources, screenWidth, screenHeight, DeviceCalibration.getTier()));
+        }
 
-        // The canvas for the screen
-        Canvas canvas;
+        // Draw the frames on their own thread from now on
+        renderThread.start();
+
+        // The display list being recorded
+        DisplayList displayList;
 
         // Variable for controlling the game update speed
         long beginTime, timeDiff, sleepTime;
         int framesSkipped;
 
+        // Variables for measuring each phase of the loop
+        long updateTime, drawTime, drawEndTime, endTime, catchUpTime, catchUpStartTime;
+        long tick = 0;
+        int entityCount;
+        boolean isFrameChanged;
+
         Log.d(TAG, "Starting game thread loop");
-        while (keepRunning) {
-            // Lock the screen for editing
-            canvas = surfaceHolder.lockCanvas();
+        while (waitForSurface()) {
+            updateTime = System.nanoTime();
+            watchdog.beginTick(tick);
+            Tracer.begin(TRACE_FRAME);
+            beginTime = System.currentTimeMillis();
+            framesSkipped = 0;
+            catchUpTime = 0;
 
-            // If the lock was successful, update and draw the game on screen
-            if (canvas != null) {
-                beginTime = System.currentTimeMillis();
-                framesSkipped = 0;
+            // Bitmaps retired on earlier ticks are recycled once the render thread is done with them
+            SpriteRegistry.advance(tick, renderThread.getRenderedSequence());
 
+            Tracer.begin(TRACE_UPDATE);
+            if (VERIFY_ALLOCATIONS) allocationVerifier.beginPhase();
+            Metrics.add(METRIC_TOUCHES, inputQueue.dispatch(gameStateManager));
+            gameStateManager.update();
+            if (VERIFY_ALLOCATIONS) allocationVerifier.endPhase(FrameProfiler.PHASE_UPDATE);
+            Tracer.end(TRACE_UPDATE);
+            drawTime = recordPhase(FrameProfiler.PHASE_UPDATE, updateTime);
+
+            // Record the frame and hand it over to the render thread, unless the screen would not change
+            Tracer.begin(TRACE_DRAW);
+            if (VERIFY_ALLOCATIONS) allocationVerifier.beginPhase();
+            isFrameChanged = isRedrawPending || gameStateManager.hasChanged();
+            if (isFrameChanged) {
+                displayList = displayLists.getBackBuffer();
+                displayList.reset(tick);
+                gameStateManager.draw(displayList);
+                if (SHOW_PROFILER_OVERLAY) profilerOverlay.update(profiler, gameStateManager);
+                displayLists.publish();
+                renderThread.requestRender();
+                isRedrawPending = false;
+            } else {
+                Metrics.increment(METRIC_FRAMES_UNCHANGED);
+            }
+            if (VERIFY_ALLOCATIONS) allocationVerifier.endPhase(FrameProfiler.PHASE_DRAW);
+            Tracer.end(TRACE_DRAW);
+            drawEndTime = recordPhase(FrameProfiler.PHASE_DRAW, drawTime);
+
+            // Calculate how long did the cycle take and the sleep time
+            timeDiff = System.currentTimeMillis() - beginTime;
+            sleepTime = FRAME_PERIOD - timeDiff;
+
+            if (!isFrameChanged) {
+                // Nothing to catch up with, the thread blocks until something happens once the tick ends
+                sleepTime = 0;
+            } else if (sleepTime > 0) {
+                // If sleepTime > 0 we're OK and we can rest for a while...
+                Tracer.begin(TRACE_SLEEP);
+                try {
+                    MainGameThread.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Thread interrupted while sleeping", e);
+                }
+                Tracer.end(TRACE_SLEEP);
+                Metrics.increment(METRIC_WAKE_UPS);
+            }
+
+            while (sleepTime < 0 && framesSkipped < MAX_FRAME_SKIPS) {
+                // We need to catch up! Update without recording a frame
+                catchUpStartTime = System.nanoTime();
+                Tracer.begin(TRACE_CATCH_UP);
+                if (VERIFY_ALLOCATIONS) allocationVerifier.beginPhase();
                 gameStateManager.update();
-                gameStateManager.draw(canvas);
+                if (VERIFY_ALLOCATIONS) allocationVerifier.endPhase(FrameProfiler.PHASE_UPDATE);
+                Tracer.end(TRACE_CATCH_UP);
+                catchUpTime += recordPhase(FrameProfiler.PHASE_UPDATE, catchUpStartTime) - catchUpStartTime;
+
+                // Pretend we spent time drawing
+                sleepTime += FRAME_PERIOD;
+                framesSkipped++;
+            }
+
+            endTime = System.nanoTime();
+            profiler.getHistogram(FrameProfiler.PHASE_FRAME).recordNanos(updateTime, endTime);
+            profiler.recordFrame(framesSkipped);
+
+            // The lock, render and post times come from the last frame drawn by the render thread
+            entityCount = gameStateManager.getEntityCount();
+            flightRecorder.record(tick++, renderThread.getLastLockMicros(), toMicros(drawTime - updateTime + catchUpTime),
+                    toMicros(drawEndTime - drawTime) + renderThread.getLastRenderMicros(), renderThread.getLastPostMicros(),
+                    toMicros(endTime - updateTime), entityCount, framesSkipped);
+            Tracer.counter(TRACE_ENTITIES, entityCount);
+            Metrics.set(METRIC_ENTITIES, entityCount);
+            Metrics.add(METRIC_FRAMES_SKIPPED, framesSkipped);
 
-                // Calculate how long did the cycle take and the sleep time
-                timeDiff = System.currentTimeMillis() - beginTime;
-                sleepTime = FRAME_PERIOD - timeDiff;
+            // Adjust the quality of the effects to the slowest of the two threads (on the frames drawn only)
+            if (isFrameChanged && qualityGovernor.recordFrame(Math.max(drawEndTime - updateTime + catchUpTime, renderThread.getLastFrameTime()))) {
+                gameStateManager.setQualityTier(qualityGovernor.getTier());
+                Metrics.set(METRIC_QUALITY_TIER, qualityGovernor.getTier());
+                Log.d(TAG, "Quality tier changed to " + qualityGovernor.getTier());
+            }
+            if (VERIFY_ALLOCATIONS) allocationVerifier.endTick();
+
+            Tracer.end(TRACE_FRAME);
+            watchdog.endTick();
+
+            if (!isFrameChanged) waitForWakeUp();
+        }
+        Log.d(TAG, "Game thread loop ended");
+    }
+
+    /**
+     * Parks the game thread while there is no surface to draw on. The game states and
+     * their bitmaps are kept, so the game resumes right where it was as soon as a new
+     * surface is available.
+     * <p>
+     * The flight record is dumped as soon as the thread parks, since the process may
+     * be killed while the game is in the background.
+     * </p>
+     *
+     * @return <code>true</code> if the game loop should keep running.
+     */
+    private boolean waitForSurface() {
+        synchronized (this) {
+            // This is a safe point to take a snapshot, since the world is not being updated
+            if (isSnapshotRequested) {
+                writeSnapshot();
+                isSnapshotRequested = false;
+                notifyAll();
+            }
 
-                if (sleepTime > 0) {
-                    // If sleepTime > 0 we're OK and we can rest for a while...
+            if (keepRunning && !hasSurface) {
+                Log.d(TAG, "Game thread parked until a new surface is available");
+                isParked = true;
+                notifyAll();
+            }
+        }
+
+        // Written without holding the lock, so the UI thread is not kept waiting
+        if (isParked) dumpFlightRecord();
+
+        synchronized (this) {
+            if (isParked) {
+                while (keepRunning && !hasSurface) {
                     try {
-                        MainGameThread.sleep(sleepTime);
+                        wait();
                     } catch (InterruptedException e) {
-                        Log.d(TAG, "Thread interrupted while sleeping", e);
+                        Log.d(TAG, "Thread interrupted while parked", e);
                     }
                 }
 
-                while (sleepTime < 0 && framesSkipped < MAX_FRAME_SKIPS) {
-                    // We need to catch up! Update without rendering
-                    gameStateManager.update();
+                isParked = false;
+                isRedrawPending = true;
+                Metrics.increment(METRIC_RESUMES);
+            }
 
-                    // Pretend we spent time drawing
-                    sleepTime += FRAME_PERIOD;
-                    framesSkipped++;
-                }
+            // Lay the game out again if the screen changed its size
+            if (isResizePending) {
+                final long startTime = System.nanoTime();
+                gameStateManager.resize(screenWidth, screenHeight);
+                isResizePending = false;
 
-                surfaceHolder.unlockCanvasAndPost(canvas);
+                final long time = (System.nanoTime() - startTime) / 1000;
+                Metrics.set(METRIC_RESIZE_TIME, time);
+                Log.d(TAG, "Resized to " + screenWidth + "x" + screenHeight + " in " + time + " us");
             }
+
+            return keepRunning;
         }
-        Log.d(TAG, "Game thread loop ended");
+    }
+
+    /**
+     * Returns if there is a surface to draw on and the game was not quit.
+     *
+     * @return <code>true</code> if the game loop may go on drawing.
+     */
+    private synchronized boolean isSurfaceAvailable() {
+        return keepRunning && hasSurface;
+    }
+
+    /**
+     * Blocks the game thread while nothing changes on the screen, until a touch is queued,
+     * the surface or the game need attention, or {@link #IDLE_WAKE_UP_PERIOD} passes.
+     */
+    private synchronized void waitForWakeUp() {
+        final long deadline = System.currentTimeMillis() + IDLE_WAKE_UP_PERIOD;
+        long timeout = IDLE_WAKE_UP_PERIOD;
+
+        Tracer.begin(TRACE_IDLE);
+
+        // Flagged before checking the queue, so a touch queued meanwhile is either seen or wakes us up
+        isIdle = true;
+        while (timeout > 0 && keepRunning && hasSurface && !isResizePending && !isSnapshotRequested
+                && !inputQueue.hasPendingEvents()) {
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Thread interrupted while idle", e);
+            }
+            timeout = deadline - System.currentTimeMillis();
+        }
+        isIdle = false;
+
+        Tracer.end(TRACE_IDLE);
+        Metrics.increment(METRIC_WAKE_UPS);
+    }
+
+    /**
+     * Wakes the game thread up if it is blocked because nothing changed on the screen.
+     */
+    private void wakeUpIfIdle() {
+        // The lock is only taken while the thread is idle, so touches are cheap during the game
+        if (isIdle) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the game world. If the game thread is running, the snapshot is
+     * taken by it between two ticks, and this method waits for it (at most a frame).
+     *
+     * @return The snapshot or <code>null</code> if it could not be taken.
+     */
+    public synchronized byte[] saveSnapshot() {
+        // Nothing ran yet, so the world is still the one we were asked to restore
+        if (getState() == State.NEW) return restoredSnapshot;
+
+        // The world can be read right away if the game thread is not touching it
+        if (isParked || getState() == State.TERMINATED) {
+            writeSnapshot();
+            return savedSnapshot;
+        }
+
+        isSnapshotRequested = true;
+        notifyAll();
+        while (isSnapshotRequested && !isParked) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Thread interrupted while waiting for a snapshot", e);
+            }
+        }
+
+        // The game thread may have parked before seeing the request
+        if (isSnapshotRequested) {
+            writeSnapshot();
+            isSnapshotRequested = false;
+        }
+
+        return savedSnapshot;
+    }
+
+    /**
+     * Sets a snapshot to be restored when the game starts. Must be called before
+     * the game thread is started.
+     *
+     * @param snapshot A snapshot returned by {@link #saveSnapshot()}.
+     */
+    public synchronized void restoreSnapshot(byte[] snapshot) {
+        restoredSnapshot = snapshot;
+    }
+
+    private synchronized byte[] takeRestoredSnapshot() {
+        final byte[] snapshot = restoredSnapshot;
+        restoredSnapshot = null;
+        return snapshot;
+    }
+
+    /**
+     * Writes a snapshot of the game world. Must be called while the world is not being updated.
+     */
+    private void writeSnapshot() {
+        final long startTime = System.nanoTime();
+
+        try {
+            WorldSnapshot.write(gameStateManager, snapshotBuffer);
+        } catch (BufferOverflowException e) {
+            Log.w(TAG, "The game world does not fit on the snapshot buffer", e);
+            savedSnapshot = null;
+            return;
+        }
+
+        savedSnapshot = new byte[snapshotBuffer.remaining()];
+        snapshotBuffer.get(savedSnapshot);
+
+        final long time = (System.nanoTime() - startTime) / 1000;
+        Metrics.set(METRIC_SNAPSHOT_BYTES, savedSnapshot.length);
+        Metrics.set(METRIC_SNAPSHOT_TIME, time);
+        Log.d(TAG, "Snapshot of " + savedSnapshot.length + " bytes taken in " + time + " us");
+    }
+
+    /**
+     * Runs a throwaway game on an offscreen bitmap, so the hot paths get compiled and
+     * the object pools get filled before the real game starts.
+     */
+    private void warmUp() {
+        final Bitmap bitmap = Bitmap.createBitmap(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
+        final GameStateManager warmUpStateManager = new GameStateManager();
+
+        warmUpStateManager.setQualityTier(qualityGovernor.getTier());
+        warmUpStateManager.push(new GameRunningState(warmUpStateManager, resources, screenWidth, screenHeight, DeviceCalibration.getTier()));
+        WarmUp.run(warmUpStateManager, new Canvas(bitmap), WARM_UP_BUDGET, WARM_UP_MAX_TICKS, new WarmUp.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                // Don't keep the UI thread waiting for the warm-up when the surface goes away
+                return !isSurfaceAvailable();
+            }
+        });
+
+        // Exiting gives the objects back to the pools, nothing was drawn by the render thread yet
+        warmUpStateManager.pop();
+        SpriteRegistry.advance(0, Long.MAX_VALUE);
+        bitmap.recycle();
+    }
+
+    /**
+     * Makes every game state exit, so the bitmaps they registered (including the layers
+     * of the obscured states) are retired and recycled once the render thread stops.
+     * Otherwise they would stay on the sprite registry, which outlives this thread.
+     */
+    private void exitGameStates() {
+        try {
+            gameStateManager.popAll();
+        } catch (RuntimeException e) {
+            // Don't hide the reason the game thread is ending
+            Log.w(TAG, "Could not exit the game states", e);
+        }
+    }
+
+    /**
+     * Stops the render thread and recycles every bitmap it was still allowed to draw.
+     */
+    private void stopRenderThread() {
+        renderThread.quit();
+
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Thread interrupted while waiting for the render thread", e);
+        }
+
+        SpriteRegistry.advance(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Records how long a phase of the loop took.
+     *
+     * @param phase     One of the {@link FrameProfiler} <code>PHASE_*</code> constants.
+     * @param startTime The value of {@link System#nanoTime()} when the phase started.
+     * @return The value of {@link System#nanoTime()} when the phase ended.
+     */
+    private long recordPhase(int phase, long startTime) {
+        final long endTime = System.nanoTime();
+        profiler.getHistogram(phase).recordNanos(startTime, endTime);
+        return endTime;
+    }
+
+    /**
+     * Converts a duration from nanoseconds to microseconds.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in microseconds.
+     */
+    private static int toMicros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+    }
+
+    /**
+     * Writes the record of the last frames to the data directory. This is done
+     * automatically when the game thread parks, ends or crashes, but may also be
+     * requested at any time (e.g. right after a noticeable stutter).
+     */
+    public void dumpFlightRecord() {
+        try {
+            flightRecorder.dump(flightRecordFile);
+            Log.d(TAG, "Flight record written to " + flightRecordFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the flight record", e);
+        }
+    }
+
+    /**
+     * Exports the spans recorded so far as a Chrome trace-event JSON file on the data directory.
+     */
+    public void exportTrace() {
+        try {
+            Tracer.export(traceFile);
+            Log.d(TAG, "Trace written to " + traceFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the trace", e);
+        }
+    }
+
+    /**
+     * Returns the profiler holding the frame time histograms of the main game loop.
+     *
+     * @return The main game loop's profiler.
+     */
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Returns the histogram of the time between a new surface being available and the
+     * first frame being shown on it, after the game thread was parked.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public LatencyHistogram getResumeHistogram() {
+        return renderThread.getResumeHistogram();
     }
 
     /**
      * Informs the rendering thread that the surface changed its format or size.
-     * This method <b>must</b> be called at least once before starting the main game thread.
+     * This method <b>must</b> be called at least once before starting the main game thread
+     * and every time a new surface is created afterwards, which wakes the thread up if it
+     * was parked.
      *
      * @param width  The new screen width in pixels.
      * @param height The new screen height in pixels.
      */
     public synchronized void handleSurfaceChanged(int width, int height) {
-        // TODO: Correctly handle surface changes
+        if (getState() == State.NEW) {
+            keepRunning = true;
+            renderThread.resumeRendering(0);
+        } else {
+            if (!hasSurface) renderThread.resumeRendering(System.nanoTime());
+
+            // The game thread lays the game out again before its next tick
+            if (width != screenWidth || height != screenHeight) isResizePending = true;
+        }
+
         screenHeight = height;
         screenWidth = width;
 
-        keepRunning = true;
+        hasSurface = true;
+        notifyAll();
+    }
+
+    /**
+     * Informs the rendering thread that the surface is being destroyed. This method
+     * blocks until the render thread stops drawing and the game thread parks, waiting
+     * for a new surface. If the game is still warming up, the warm-up stops right away.
+     */
+    public synchronized void handleSurfaceDestroyed() {
+        hasSurface = false;
+        notifyAll();
+        renderThread.pauseRendering();
+
+        while (!isParked && getState() != State.NEW) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Thread interrupted while waiting for the game thread to park", e);
+            }
+        }
+    }
+
+    /**
+     * Handles {@link android.view.MotionEvent}.ACTION_DOWN events. The event is
+     * queued and handled by the game thread at the beginning of the next tick.
+     *
+     * @param eventX    The location of the touch on the X axis.
+     * @param eventY    The location of the touch on the Y axis.
+     * @param eventTime The time the touch happened, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     */
+    public void handleActionDown(int eventX, int eventY, long eventTime) {
+        inputQueue.queueActionDown(eventX, eventY, eventTime);
+        wakeUpIfIdle();
     }
 
     /**
-     * Handles {@link android.view.MotionEvent}.ACTION_DOWN events.
+     * Handles {@link android.view.MotionEvent}.ACTION_MOVE events. Each call represents
+     * a single segment of the path the touch went through. The event is queued and
+     * handled by the game thread at the beginning of the next tick.
      *
-     * @param eventX The location of the touch on the X axis.
-     * @param eventY The location of the touch on the Y axis.
+     * @param startX    Where the touch started on the X axis.
+     * @param startY    Where the touch started on the Y axis.
+     * @param endX      Where the touch ended on the X axis.
+     * @param endY      Where the touch ended on the Y axis.
+     * @param eventTime The time the touch reached its end, in the {@link android.os.SystemClock#uptimeMillis()} time base.
      */
-    public void handleActionDown(int eventX, int eventY) {
-        gameStateManager.handleActionDown(eventX, eventY);
+    public void handleActionMove(int startX, int startY, int endX, int endY, long eventTime) {
+        inputQueue.queueActionMove(startX, startY, endX, endY, eventTime);
+        wakeUpIfIdle();
     }
 }
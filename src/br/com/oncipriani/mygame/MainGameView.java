@@ -18,6 +18,7 @@ package br.com.oncipriani.mygame;
 
 import android.content.Context;
 import android.graphics.PixelFormat;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
@@ -35,10 +36,21 @@ public class MainGameView extends SurfaceView implements SurfaceHolder.Callback
     // The thread responsible for rendering on the screen and much more
     private final MainGameThread gameThread;
 
+    // Key of the game's snapshot on the saved instance state
+    private static final String SNAPSHOT_KEY = "world_snapshot";
+
     // The maximum supported screen resolution
     public static final int MAX_WIDTH = 720;
     public static final int MAX_HEIGHT = 1280;
 
+    // Last known position of the touch, used to build the swipe segments
+    private int lastTouchX;
+    private int lastTouchY;
+
+    // Converts the touch coordinates from the view to the (possibly smaller) backbuffer
+    private float touchScaleX = 1.0f;
+    private float touchScaleY = 1.0f;
+
     public MainGameView(Context context) {
         super(context);
 
@@ -48,37 +60,62 @@ public class MainGameView extends SurfaceView implements SurfaceHolder.Callback
         surfaceHolder.setFormat(PixelFormat.RGBA_8888);
         surfaceHolder.addCallback(this);
 
-        gameThread = new MainGameThread(surfaceHolder, getResources());
+        gameThread = new MainGameThread(surfaceHolder, getResources(), context.getFilesDir());
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         Log.d(TAG, "Surface created");
 
-        // TODO: Use hardware scaling if the screen is too big
-
-        //        Rect surfaceFrame = holder.getSurfaceFrame();
-        //        if (surfaceFrame != null) {
-        //            int surfaceWidth = Math.abs(surfaceFrame.width());
-        //            int surfaceHeight = Math.abs(surfaceFrame.height());
-        //
-        //            if (surfaceWidth > MAX_WIDTH || surfaceHeight > MAX_HEIGHT) {
-        //                // Since we only support portrait orientation, width is always smaller than height.
-        //                final float aspectRatio = (float) surfaceHeight / (float) surfaceWidth;
-        //                holder.setFixedSize(MAX_WIDTH, MAX_HEIGHT);
-        //            }
-        //        }
+        updateFixedSize(getWidth(), getHeight());
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        // The backbuffer must follow the view (e.g. in multi-window mode) before the surface changes
+        updateFixedSize(width, height);
+    }
+
+    /**
+     * Uses hardware scaling if the view is too big for the device's tier, so the game
+     * is drawn on a smaller backbuffer with the same aspect ratio as the view.
+     *
+     * @param viewWidth  The view's width in pixels.
+     * @param viewHeight The view's height in pixels.
+     */
+    private void updateFixedSize(int viewWidth, int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) return;
+
+        final float scale = DeviceCalibration.getBackbufferScale(DeviceCalibration.getTier());
+        final int maxWidth = Math.round(MAX_WIDTH * scale);
+        final int maxHeight = Math.round(MAX_HEIGHT * scale);
+
+        if (viewWidth > maxWidth || viewHeight > maxHeight) {
+            // Keep the aspect ratio of the screen
+            final float ratio = Math.min((float) maxWidth / viewWidth, (float) maxHeight / viewHeight);
+            getHolder().setFixedSize(Math.round(viewWidth * ratio), Math.round(viewHeight * ratio));
+        } else {
+            getHolder().setSizeFromLayout();
+        }
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         Log.d(TAG, "Surface changed");
 
-        if (holder.isCreating()) {
-            Log.d(TAG, "Surface is in the process of being created from Callback methods");
+        // The touch events are still reported in the view's coordinates
+        if (getWidth() > 0 && getHeight() > 0) {
+            touchScaleX = (float) width / getWidth();
+            touchScaleY = (float) height / getHeight();
+        }
+
+        // This also wakes the game thread up if it was waiting for a new surface
+        gameThread.handleSurfaceChanged(width, height);
 
-            // TODO: Maybe create the MainGameThread here to avoid having to call handleSurfaceChanged
-            gameThread.handleSurfaceChanged(width, height);
+        if (gameThread.getState() == Thread.State.NEW) {
+            Log.d(TAG, "Starting the game thread");
             gameThread.start();
         }
     }
@@ -86,10 +123,42 @@ public class MainGameView extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
         Log.d(TAG, "Surface is being destroyed");
+
+        // Make the game thread stop drawing and wait for a new surface, keeping the game as it is
+        gameThread.handleSurfaceDestroyed();
+        Log.d(TAG, "Game thread is waiting for a new surface");
+    }
+
+    /**
+     * Saves a snapshot of the game, so it can be restored if the process is killed.
+     *
+     * @param outState The bundle where the snapshot is saved.
+     */
+    public void saveState(Bundle outState) {
+        final byte[] snapshot = gameThread.saveSnapshot();
+        if (snapshot != null) outState.putByteArray(SNAPSHOT_KEY, snapshot);
+    }
+
+    /**
+     * Restores the game saved by {@link #saveState(android.os.Bundle)}, once the game starts.
+     *
+     * @param savedState The bundle where the snapshot was saved.
+     */
+    public void restoreState(Bundle savedState) {
+        final byte[] snapshot = savedState.getByteArray(SNAPSHOT_KEY);
+        if (snapshot != null) gameThread.restoreSnapshot(snapshot);
+    }
+
+    /**
+     * Shuts the game thread down. Must be called when the activity is destroyed.
+     */
+    public void destroy() {
         boolean retry = true;
 
         // Tell the game thread to shut down and wait for it to finish
         gameThread.quitGame();
+        if (gameThread.getState() == Thread.State.NEW) return;
+
         while (retry) {
             try {
                 Log.d(TAG, "Waiting for the game thread to finish...");
@@ -104,9 +173,35 @@ public class MainGameView extends SurfaceView implements SurfaceHolder.Callback
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        int touchX, touchY;
+
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
-                gameThread.handleActionDown(Math.round(event.getX()), Math.round(event.getY()));
+                lastTouchX = Math.round(event.getX() * touchScaleX);
+                lastTouchY = Math.round(event.getY() * touchScaleY);
+                gameThread.handleActionDown(lastTouchX, lastTouchY, event.getEventTime());
+                return true;
+
+            case MotionEvent.ACTION_MOVE:
+                // Send every point batched since the last event as a separate segment
+                final int historySize = event.getHistorySize();
+                for (int i = 0; i < historySize; i++) {
+                    touchX = Math.round(event.getHistoricalX(i) * touchScaleX);
+                    touchY = Math.round(event.getHistoricalY(i) * touchScaleY);
+                    gameThread.handleActionMove(lastTouchX, lastTouchY, touchX, touchY, event.getHistoricalEventTime(i));
+                    lastTouchX = touchX;
+                    lastTouchY = touchY;
+                }
+
+                touchX = Math.round(event.getX() * touchScaleX);
+                touchY = Math.round(event.getY() * touchScaleY);
+                gameThread.handleActionMove(lastTouchX, lastTouchY, touchX, touchY, event.getEventTime());
+                lastTouchX = touchX;
+                lastTouchY = touchY;
+                return true;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
                 return true;
 
             default:
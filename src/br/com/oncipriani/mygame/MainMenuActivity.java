@@ -31,6 +31,22 @@ public class MainMenuActivity extends Activity {
 
         // TODO: Create a main menu for the game.
 
+        // Find out what the device can handle before starting the game, without blocking the UI thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DeviceCalibration.calibrate(getApplicationContext());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        startGame();
+                    }
+                });
+            }
+        }, "DeviceCalibration").start();
+    }
+
+    private void startGame() {
         // Right now we don't have a main menu, so we go straight to the game
         startActivity(new Intent(this, MainGameActivity.class));
     }
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame;
+
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import br.com.oncipriani.mygame.engine.DisplayList;
+import br.com.oncipriani.mygame.engine.TripleBuffer;
+import br.com.oncipriani.mygame.profiling.FrameProfiler;
+import br.com.oncipriani.mygame.profiling.InputLatency;
+import br.com.oncipriani.mygame.profiling.LatencyHistogram;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.ProfilerOverlay;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is responsible for drawing the display lists recorded by the
+ * {@link br.com.oncipriani.mygame.MainGameThread} on the screen provided by
+ * {@link br.com.oncipriani.mygame.MainGameView}.
+ * <p>
+ * The display lists are handed over through a {@link br.com.oncipriani.mygame.engine.TripleBuffer},
+ * so the game thread goes on updating the game while a frame is drawn, and neither
+ * thread ever waits for the other: the render thread always draws the newest frame
+ * and sleeps when there is nothing new to draw.
+ * </p>
+ *
+ * @see android.view.SurfaceView
+ */
+public final class RenderThread extends Thread {
+    private static final String TAG = RenderThread.class.getSimpleName();
+
+    // Names of the spans on the trace
+    private static final int TRACE_FRAME = Tracer.registerName("RenderThread.frame");
+    private static final int TRACE_LOCK = Tracer.registerName("RenderThread.lockCanvas");
+    private static final int TRACE_RENDER = Tracer.registerName("RenderThread.render");
+    private static final int TRACE_POST = Tracer.registerName("RenderThread.unlockCanvasAndPost");
+
+    // Metrics published by the render thread
+    private static final int METRIC_FRAMES_RENDERED = Metrics.registerCounter("frames.rendered");
+    private static final int METRIC_RESUME_LATENCY = Metrics.registerGauge("resume.latency_us");
+
+    // Handler providing access to the screen
+    private final SurfaceHolder surfaceHolder;
+
+    // The display lists recorded by the game thread
+    private final TripleBuffer<DisplayList> displayLists;
+
+    // Objects for measuring how long each phase of the frame takes
+    private final FrameProfiler profiler;
+    private final ProfilerOverlay profilerOverlay;
+
+    // Determines if this thread should keep running or not
+    private volatile boolean keepRunning = true;
+
+    // Determines if there is a surface to draw on and if a frame is being drawn on it
+    private boolean hasSurface = false;
+    private boolean isRendering = false;
+
+    // When the surface came back, and how long it took to show a frame on it
+    private long resumeStartTime;
+    private final LatencyHistogram resumeHistogram = new LatencyHistogram();
+
+    // The last display list this thread is done with (drawn or dropped)
+    private volatile long renderedSequence = -1;
+
+    // How long the phases of the last frame took
+    private volatile long lastFrameTime;
+    private volatile int lastLockMicros;
+    private volatile int lastRenderMicros;
+    private volatile int lastPostMicros;
+
+    /**
+     * Constructs a new render thread.
+     *
+     * @param surfaceHolder   The SurfaceHolder providing access and control over the screen.
+     * @param displayLists    The buffers the game thread publishes the display lists to.
+     * @param profiler        The profiler where the time spent on each phase is recorded.
+     * @param profilerOverlay The overlay drawn on top of the game (may be null).
+     */
+    public RenderThread(SurfaceHolder surfaceHolder, TripleBuffer<DisplayList> displayLists,
+                        FrameProfiler profiler, ProfilerOverlay profilerOverlay) {
+        super(TAG);
+
+        this.surfaceHolder = surfaceHolder;
+        this.displayLists = displayLists;
+        this.profiler = profiler;
+        this.profilerOverlay = profilerOverlay;
+    }
+
+    /**
+     * Signals the render thread to stop.
+     */
+    public void quit() {
+        keepRunning = false;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Informs the render thread that a new display list was published.
+     */
+    public void requestRender() {
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        DisplayList displayList;
+
+        Log.d(TAG, "Starting render thread loop");
+        while (keepRunning) {
+            displayList = displayLists.swapFront();
+
+            // Sleep until the game thread publishes something new
+            if (displayList == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            if (beginFrame()) endFrame(render(displayList));
+            renderedSequence = displayList.getSequence();
+        }
+        Log.d(TAG, "Render thread loop ended");
+    }
+
+    /**
+     * Draws a display list on the screen.
+     *
+     * @param displayList The display list to be drawn.
+     * @return The value of {@link System#nanoTime()} when the frame was posted or 0 if it could not be drawn.
+     */
+    private long render(DisplayList displayList) {
+        final long lockTime = System.nanoTime();
+
+        Tracer.begin(TRACE_FRAME);
+        Tracer.begin(TRACE_LOCK);
+        final Canvas canvas = surfaceHolder.lockCanvas();
+        Tracer.end(TRACE_LOCK);
+
+        if (canvas == null) {
+            Tracer.end(TRACE_FRAME);
+            return 0;
+        }
+
+        final long renderTime = recordPhase(FrameProfiler.PHASE_LOCK, lockTime);
+        Tracer.begin(TRACE_RENDER);
+        displayList.draw(canvas);
+        if (profilerOverlay != null) profilerOverlay.draw(canvas);
+        Tracer.end(TRACE_RENDER);
+        final long postTime = recordPhase(FrameProfiler.PHASE_RENDER, renderTime);
+
+        Tracer.begin(TRACE_POST);
+        surfaceHolder.unlockCanvasAndPost(canvas);
+
+        // Measure how long the touches drawn for the first time took to show up
+        final long now = SystemClock.uptimeMillis();
+        final int presentedEventCount = displayList.getPresentedEventCount();
+        for (int i = 0; i < presentedEventCount; i++) InputLatency.recordPresented(displayList.getPresentedEventTime(i), now);
+        Tracer.end(TRACE_POST);
+        final long endTime = recordPhase(FrameProfiler.PHASE_POST, postTime);
+
+        lastLockMicros = toMicros(renderTime - lockTime);
+        lastRenderMicros = toMicros(postTime - renderTime);
+        lastPostMicros = toMicros(endTime - postTime);
+        lastFrameTime = endTime - lockTime;
+        Metrics.increment(METRIC_FRAMES_RENDERED);
+        Tracer.end(TRACE_FRAME);
+
+        return endTime;
+    }
+
+    /**
+     * Marks the beginning of a frame, unless there is no surface to draw on.
+     *
+     * @return <code>true</code> if the frame may be drawn.
+     */
+    private synchronized boolean beginFrame() {
+        isRendering = hasSurface;
+        return isRendering;
+    }
+
+    /**
+     * Marks the end of a frame, waking up anyone waiting to take the surface away.
+     *
+     * @param endTime The value of {@link System#nanoTime()} when the frame was posted or 0 if it was not drawn.
+     */
+    private synchronized void endFrame(long endTime) {
+        isRendering = false;
+        notifyAll();
+
+        // Measure how long it took to show the first frame after the surface came back
+        if (resumeStartTime != 0 && endTime != 0) {
+            resumeHistogram.recordNanos(resumeStartTime, endTime);
+            Metrics.set(METRIC_RESUME_LATENCY, (endTime - resumeStartTime) / 1000);
+            Log.d(TAG, "Resumed in " + (endTime - resumeStartTime) / 1000 + " us");
+            resumeStartTime = 0;
+        }
+    }
+
+    /**
+     * Informs the render thread that the surface is being destroyed. This method
+     * blocks until the frame being drawn (if any) is posted, and no other frame is
+     * drawn until {@link #resumeRendering(long)} is called.
+     */
+    public synchronized void pauseRendering() {
+        hasSurface = false;
+
+        while (isRendering) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Thread interrupted while waiting for the frame to be posted", e);
+            }
+        }
+    }
+
+    /**
+     * Informs the render thread that there is a surface to draw on.
+     *
+     * @param surfaceRestoredTime The value of {@link System#nanoTime()} when the surface came back,
+     *                            or 0 if the time to show the first frame should not be measured.
+     */
+    public synchronized void resumeRendering(long surfaceRestoredTime) {
+        hasSurface = true;
+        resumeStartTime = surfaceRestoredTime;
+    }
+
+    /**
+     * Returns the sequence number of the last display list the render thread is done
+     * with. Display lists up to this one will never be drawn again.
+     *
+     * @return The display list's sequence number.
+     */
+    public long getRenderedSequence() {
+        return renderedSequence;
+    }
+
+    /**
+     * Returns how long the last frame took to be drawn, from locking to posting the canvas.
+     *
+     * @return The frame time in nanoseconds.
+     */
+    public long getLastFrameTime() {
+        return lastFrameTime;
+    }
+
+    /**
+     * Returns how long locking the canvas took on the last frame.
+     *
+     * @return The time in microseconds.
+     */
+    public int getLastLockMicros() {
+        return lastLockMicros;
+    }
+
+    /**
+     * Returns how long drawing the display list took on the last frame.
+     *
+     * @return The time in microseconds.
+     */
+    public int getLastRenderMicros() {
+        return lastRenderMicros;
+    }
+
+    /**
+     * Returns how long posting the canvas took on the last frame.
+     *
+     * @return The time in microseconds.
+     */
+    public int getLastPostMicros() {
+        return lastPostMicros;
+    }
+
+    /**
+     * Returns the histogram of the time between a new surface being available and the
+     * first frame being shown on it.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public LatencyHistogram getResumeHistogram() {
+        return resumeHistogram;
+    }
+
+    /**
+     * Records how long a phase of the frame took.
+     *
+     * @param phase     One of the {@link FrameProfiler} <code>PHASE_*</code> constants.
+     * @param startTime The value of {@link System#nanoTime()} when the phase started.
+     * @return The value of {@link System#nanoTime()} when the phase ended.
+     */
+    private long recordPhase(int phase, long startTime) {
+        final long endTime = System.nanoTime();
+        profiler.getHistogram(phase).recordNanos(startTime, endTime);
+        return endTime;
+    }
+
+    /**
+     * Converts a duration from nanoseconds to microseconds.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in microseconds.
+     */
+    private static int toMicros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * This class holds everything that has to be drawn on a frame: a background color and
+ * a list of sprites, each one with its position and alpha. The game states record
+ * the display list on the game thread, and the render thread draws it on the screen
+ * while the game thread goes on to the next tick.
+ * <p>
+ * The sprites are kept on primitive arrays, which only grow (on the first busy frames),
+ * so recording and drawing a display list does not create any objects. Once published,
+ * a display list is never changed until the render thread is done with it.
+ * </p>
+ *
+ * @see TripleBuffer
+ * @see SpriteRegistry
+ */
+public final class DisplayList {
+    // Number of sprites a display list can hold before growing
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Maximum number of touches whose results may show up for the first time on a frame
+    private static final int MAX_PRESENTED_EVENTS = 16;
+
+    // The sprites, in the order they are drawn
+    private int[] spriteIds = new int[INITIAL_CAPACITY];
+    private int[] positionsX = new int[INITIAL_CAPACITY];
+    private int[] positionsY = new int[INITIAL_CAPACITY];
+    private int[] alphas = new int[INITIAL_CAPACITY];
+    private int spriteCount;
+
+    // Color filling the screen before the sprites are drawn (transparent means no fill)
+    private int backgroundColor;
+
+    // Times of the touches whose results are drawn for the first time on this frame
+    private final long[] presentedEventTimes = new long[MAX_PRESENTED_EVENTS];
+    private int presentedEventCount;
+
+    // Sequence number of the frame, used to know when sprites are no longer drawn
+    private long sequence;
+
+    // Used to fade the translucent sprites (only touched by the thread drawing the list)
+    private final Paint alphaPaint = new Paint();
+
+    /**
+     * Removes everything from the display list, so a new frame can be recorded.
+     *
+     * @param sequence The sequence number of the new frame.
+     */
+    public void reset(long sequence) {
+        this.sequence = sequence;
+
+        spriteCount = 0;
+        presentedEventCount = 0;
+        backgroundColor = Color.TRANSPARENT;
+    }
+
+    /**
+     * Returns the sequence number of the frame recorded on the display list.
+     *
+     * @return The frame's sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sets the color filling the whole screen before the sprites are drawn.
+     *
+     * @param color The background color.
+     */
+    public void setBackgroundColor(int color) {
+        backgroundColor = color;
+    }
+
+    /**
+     * Adds a sprite to the display list. Sprites are drawn in the order they are added.
+     *
+     * @param spriteId The sprite identifier, returned by {@link SpriteRegistry#register(android.graphics.Bitmap)}.
+     * @param left     The position of the sprite's left side.
+     * @param top      The position of the sprite's top side.
+     * @param alpha    The sprite's opacity, from 0 to 255.
+     */
+    public void addSprite(int spriteId, int left, int top, int alpha) {
+        if (spriteCount == spriteIds.length) grow();
+
+        spriteIds[spriteCount] = spriteId;
+        positionsX[spriteCount] = left;
+        positionsY[spriteCount] = top;
+        alphas[spriteCount] = alpha;
+        spriteCount++;
+    }
+
+    /**
+     * Returns how many sprites were added to the display list.
+     *
+     * @return The number of sprites.
+     */
+    public int getSpriteCount() {
+        return spriteCount;
+    }
+
+    /**
+     * Reports that the result of a touch is drawn for the first time on this frame,
+     * so its latency can be measured once the frame is posted to the screen.
+     *
+     * @param eventTime The time of the touch.
+     */
+    public void markPresented(long eventTime) {
+        if (presentedEventCount < MAX_PRESENTED_EVENTS) presentedEventTimes[presentedEventCount++] = eventTime;
+    }
+
+    /**
+     * Returns how many touches are drawn for the first time on this frame.
+     *
+     * @return The number of touches.
+     */
+    public int getPresentedEventCount() {
+        return presentedEventCount;
+    }
+
+    /**
+     * Returns the time of a touch drawn for the first time on this frame.
+     *
+     * @param index The index of the touch, from 0 to {@link #getPresentedEventCount()} - 1.
+     * @return The time of the touch.
+     */
+    public long getPresentedEventTime(int index) {
+        return presentedEventTimes[index];
+    }
+
+    /**
+     * Draws the display list.
+     *
+     * @param canvas The canvas where the frame will be drawn.
+     */
+    public void draw(Canvas canvas) {
+        int alpha; // Avoid memory thrashing
+        Bitmap bitmap;
+
+        if (backgroundColor != Color.TRANSPARENT) canvas.drawColor(backgroundColor);
+
+        for (int i = 0; i < spriteCount; i++) {
+            bitmap = SpriteRegistry.get(spriteIds[i]);
+            alpha = alphas[i];
+
+            if (alpha >= 255) {
+                canvas.drawBitmap(bitmap, positionsX[i], positionsY[i], null);
+            } else if (alpha > 0) {
+                alphaPaint.setAlpha(alpha);
+                canvas.drawBitmap(bitmap, positionsX[i], positionsY[i], alphaPaint);
+            }
+        }
+    }
+
+    /**
+     * Doubles the capacity of the sprite arrays.
+     */
+    private void grow() {
+        final int capacity = spriteIds.length * 2;
+
+        spriteIds = copyOf(spriteIds, capacity);
+        positionsX = copyOf(positionsX, capacity);
+        positionsY = copyOf(positionsY, capacity);
+        alphas = copyOf(alphas, capacity);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -21,43 +21,204 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.GradientDrawable;
+import android.os.SystemClock;
 import br.com.oncipriani.mygame.R;
 import br.com.oncipriani.mygame.helpers.FisherYates;
+import br.com.oncipriani.mygame.helpers.SpatialGrid;
+import br.com.oncipriani.mygame.helpers.SweepAndPrune;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
 import br.com.oncipriani.mygame.objects.Cloud;
 import br.com.oncipriani.mygame.objects.Explosion;
 import br.com.oncipriani.mygame.objects.Star;
 import br.com.oncipriani.mygame.objects.factories.CloudFactory;
+import br.com.oncipriani.mygame.objects.factories.ExplosionFactory;
 import br.com.oncipriani.mygame.objects.factories.StarFactory;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Random;
 
 /**
  * This is the state where we expect to spend most of our time in.
  * It is where all the action happens.
  */
 public class GameRunningState extends GameState {
-    private static final Random RANDOM = new Random();
-    private final int screenWidth, screenHeight;
+    // Names of the spans on the trace
+    private static final int TRACE_DECODE = Tracer.registerName("GameRunningState.decodeBitmaps");
+    private static final int TRACE_RECORD = Tracer.registerName("GameRunningState.recordRewind");
+
+    // Metrics published by the state
+    private static final int METRIC_STARS = Metrics.registerGauge("stars.active");
+    private static final int METRIC_EXPLOSIONS = Metrics.registerGauge("explosions.active");
+    private static final int METRIC_PARTICLES = Metrics.registerGauge("particles.active");
+    private static final int METRIC_SPAWNED = Metrics.registerCounter("stars.spawned");
+    private static final int METRIC_HITS = Metrics.registerCounter("stars.hit");
+    private static final int METRIC_DESTROYED = Metrics.registerCounter("stars.destroyed");
+
+    // The screen's size and the objects the state works with
+    private int screenWidth, screenHeight;
     private final GameStateManager gameStateManager;
     private final Resources resources;
 
     // Maximum number of objects that can be on the screen at the same time
     private static final int MAX_STARS = 3;
-    private static final int MAX_SMALL_CLOUDS = 3;
-    private static final int MAX_MEDIUM_CLOUDS = 3;
-    private static final int MAX_LARGE_CLOUDS = 3;
+    private static final int MAX_CLOUDS_PER_TYPE = 3;
+    private static final int MAX_EXPLOSIONS = 16;
+
+    // Number of clouds of each type and of explosions allowed by the device's tier
+    private final int cloudsPerType;
+    private final int explosionBudget;
+
+    // How many times the normal number of stars and explosions is allowed (raised by the stress and high-density modes)
+    private int density = 1;
+    private int starLimit;
+    private int explosionLimit;
+
+    // Size of the cells of the grid used to find the stars crossed by a swipe
+    private static final int STAR_GRID_CELL_SIZE = 64;
 
     // Objects used throughout the game
     private ArrayList<Star> stars;
     private ArrayList<Explosion> explosions;
     private ArrayList<Cloud> clouds;
 
-    // Bitmaps for some of the objects
+    // Broad phase used to find the stars crossed by a swipe, rebuilt whenever the stars move
+    private SpatialGrid starGrid;
+    private boolean isStarGridDirty;
+    private int[] starCandidates;
+    private final int[] starBounds = new int[4];
+
+    // Broad phase used to find the stars colliding with each other
+    private SweepAndPrune starCollisions;
+
+    // Stars indexed by their collision proxy
+    private Star[] starsByProxy;
+
+    // Quality of the effects: the smallest cloud type drawn, the explosions' size and how the sky is drawn
+    private int minimumCloudType = Cloud.CLOUD_TYPE_SMALL;
+    private boolean isReducingParticles = false;
+    private boolean isDrawingSkyBitmap = true;
+    private int skyColor;
+
+    // Bitmaps for some of the objects (the sky is drawn from the gradient whenever the screen size changes)
+    private GradientDrawable skyBackgroundGradient;
     private Bitmap skyBackground;
+    private int skyBackgroundSpriteId;
     private Bitmap explosionBitmap;
 
+    // The last ticks of the game, kept so it can be rewound (about ten seconds at 50 ticks per second)
+    private static final int REWIND_TICKS = 500;
+    private static final int REWIND_ARENA_SIZE = 256 * 1024;
+    private static final int REWIND_KEYFRAME_INTERVAL = 25;
+    private static final int MAX_SNAPSHOT_SIZE = 8 * 1024;
+    private RewindBuffer rewindBuffer;
+    private ByteBuffer rewindSnapshot;
+    private long tick;
+
+    // The clouds are updated every few ticks (each one on a different tick) and interpolated in between
+    private static final int CLOUD_UPDATE_PERIOD = 4;
+
+    // The game is frozen while obscured by an overlay
+    private boolean isObscured = false;
+
+    // Loops over at least this many entities (the particles are counted one by one) are run on the worker pool.
+    // A normal game has about a dozen entities and a hundred particles, so only the stress and high-density modes get there
+    private static final int DEFAULT_PARALLEL_UPDATE_THRESHOLD = 256;
+    private static final int PARALLEL_GRAIN_SIZE = 128;
+    private int parallelUpdateThreshold = DEFAULT_PARALLEL_UPDATE_THRESHOLD;
+    private WorkerPool workerPool;
+
+    // Index of the first particle of each explosion, as if the particles of every explosion were in a single array
+    private int[] firstParticles;
+
+    // Loop bodies moving the entities, which may run on the worker pool
+    private final WorkerPool.Task cloudUpdater = new WorkerPool.Task() {
+        @Override
+        public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (isCloudUpdatedOnTick(i)) clouds.get(i).update(CLOUD_UPDATE_PERIOD);
+            }
+        }
+    };
+    private final WorkerPool.Task starUpdater = new WorkerPool.Task() {
+        @Override
+        public void run(int start, int end) {
+            for (int i = start; i < end; i++) stars.get(i).update(screenWidth);
+        }
+    };
+    private final WorkerPool.Task particleUpdater = new WorkerPool.Task() {
+        @Override
+        public void run(int start, int end) {
+            if (start >= end) return;
+
+            // Find the explosion holding the first particle, then go through the explosions from there
+            int index = Arrays.binarySearch(firstParticles, 0, explosions.size(), start);
+            if (index < 0) index = -index - 2;
+
+            Explosion explosion;
+            int first = start - firstParticles[index];
+            int last;
+            while (start < end) {
+                explosion = explosions.get(index);
+                last = Math.min(explosion.getParticleCount(), first + end - start);
+                explosion.updateParticles(first, last);
+                start += last - first;
+                first = 0;
+                index++;
+            }
+        }
+    };
+
+    // The data touched by each stage of the update (the factories share the placing grids and the random numbers)
+    private static final int DATA_CLOUDS = 1;
+    private static final int DATA_STARS = 1 << 1;
+    private static final int DATA_EXPLOSIONS = 1 << 2;
+    private static final int DATA_SPAWNING = 1 << 3;
+    private static final int DATA_PLACING_GRIDS = 1 << 4;
+    private static final int DATA_REWIND = 1 << 5;
+    private static final int DATA_WORLD = DATA_CLOUDS | DATA_STARS | DATA_EXPLOSIONS | DATA_SPAWNING;
+
+    // The stages of the update, run by the job scheduler
+    private final JobScheduler.Job cloudsJob = new JobScheduler.Job("GameRunningState.clouds", DATA_REWIND,
+            DATA_CLOUDS | DATA_PLACING_GRIDS) {
+        @Override
+        public void run() {
+            updateClouds();
+        }
+    };
+    private final JobScheduler.Job starsJob = new JobScheduler.Job("GameRunningState.stars", 0, DATA_STARS) {
+        @Override
+        public void run() {
+            updateStars();
+        }
+    };
+    private final JobScheduler.Job spawnJob = new JobScheduler.Job("GameRunningState.spawn", 0,
+            DATA_STARS | DATA_SPAWNING | DATA_PLACING_GRIDS) {
+        @Override
+        public void run() {
+            spawnStar();
+        }
+    };
+    private final JobScheduler.Job explosionsJob = new JobScheduler.Job("GameRunningState.explosions", 0,
+            DATA_EXPLOSIONS) {
+        @Override
+        public void run() {
+            updateExplosions();
+        }
+    };
+    private final JobScheduler.Job recordJob = new JobScheduler.Job("GameRunningState.record", DATA_WORLD,
+            DATA_REWIND) {
+        @Override
+        public void run() {
+            recordTick();
+        }
+    };
+
+    // Random numbers used by the game and its factories, saved with it
+    private final XorShiftRandom random = new XorShiftRandom();
+
     // Minimum, maximum and current delay before spawning the next star
     private static final int MIN_STAR_SPAWN_DELAY = 100;
     private static final int MAX_STAR_SPAWN_DELAY = 200;
@@ -70,39 +231,147 @@ public class GameRunningState extends GameState {
      * @param resources        Handler providing access to our game's resources.
      * @param screenWidth      The screen's width in pixels.
      * @param screenHeight     The screen's height in pixels.
+     * @param deviceTier       The {@link QualityGovernor} tier of the device, limiting the number of objects.
      */
-    public GameRunningState(GameStateManager gameStateManager, Resources resources, int screenWidth, int screenHeight) {
+    public GameRunningState(GameStateManager gameStateManager, Resources resources, int screenWidth, int screenHeight,
+                            int deviceTier) {
         super(true); // This state assumes control of the entire screen.
 
+        this.cloudsPerType = MAX_CLOUDS_PER_TYPE - deviceTier;
+        this.explosionBudget = MAX_EXPLOSIONS >> deviceTier;
+
         this.screenHeight = screenHeight;
         this.screenWidth = screenWidth;
         this.gameStateManager = gameStateManager;
         this.resources = resources;
     }
 
+    /**
+     * Multiplies how many stars and explosions may be on the screen at the same time, for
+     * the stress and high-density modes, and spawns the stars that much faster. The ticks
+     * of these modes are not recorded for rewinding, since their snapshots would not fit.
+     * Must be called before the state is entered.
+     *
+     * @param density How many times the normal number of objects, 1 for the normal game.
+     */
+    public void setDensity(int density) {
+        this.density = Math.max(1, density);
+    }
+
+    /**
+     * Sets how many entities a loop must go through for it to be run on the worker pool.
+     * The results are the same either way, since the entities are moved independently
+     * and everything touching shared state (recycling, removals, collisions and spawns)
+     * is done afterwards by the stage owning it, in the same order.
+     *
+     * @param threshold The minimum number of entities updated in parallel.
+     */
+    public void setParallelUpdateThreshold(int threshold) {
+        parallelUpdateThreshold = threshold;
+    }
+
+    /**
+     * Sets the pool running the large loops, instead of the one shared by the game.
+     * Used to compare pools of different sizes.
+     *
+     * @param pool The worker pool, or <code>null</code> for the default one.
+     */
+    public void setWorkerPool(WorkerPool pool) {
+        workerPool = pool;
+    }
+
+    /**
+     * Runs a loop over the entities, on the worker pool if there are enough of them.
+     *
+     * @param count   The number of entities.
+     * @param updater The loop body.
+     */
+    private void updateEntities(int count, WorkerPool.Task updater) {
+        if (count < parallelUpdateThreshold) {
+            updater.run(0, count);
+        } else if (workerPool != null) {
+            workerPool.parallelFor(count, PARALLEL_GRAIN_SIZE, updater);
+        } else {
+            WorkerPool.getDefault().parallelFor(count, PARALLEL_GRAIN_SIZE, updater);
+        }
+    }
+
     @Override
     public void update() {
-        int i;
-        Explosion explosion;
-        Star star;
+        // Nobody is playing while an overlay is on top, so the game waits for it to go away
+        if (isObscured) return;
+
+        // The stages are linked by the data they touch, the independent ones may run at the same time
+        final JobScheduler scheduler = JobScheduler.getDefault();
+        scheduler.submit(cloudsJob);
+        scheduler.submit(starsJob);
+        scheduler.submit(spawnJob);
+        scheduler.submit(explosionsJob);
+        scheduler.submit(recordJob);
+        scheduler.run();
+    }
+
+    /**
+     * Recycles the clouds gone, starting from the small (last) ones, then moves them
+     * ahead by a whole period. Only the clouds whose turn it is are touched.
+     */
+    private void updateClouds() {
         Cloud cloud;
 
-        // Update every cloud, starting from the small (last) ones
-        for (i = clouds.size() - 1; i >= 0; i--) {
+        for (int i = clouds.size() - 1; i >= 0; i--) {
+            if (!isCloudUpdatedOnTick(i)) continue;
             cloud = clouds.get(i);
-            cloud.update();
 
-            // Should we recycle the cloud?
+            // Should we recycle the cloud? (it is where it will be drawn on this frame)
             if (!cloud.isActive(screenWidth, screenHeight)) {
-                CloudFactory.recycleCloud(cloud, screenWidth);
+                CloudFactory.recycleCloud(cloud, screenWidth, random);
             }
         }
+        updateEntities(clouds.size(), cloudUpdater);
+    }
+
+    /**
+     * Returns if a cloud is updated on the current tick. Each cloud has its own phase,
+     * so about the same number of clouds is updated on every tick.
+     *
+     * @param index The cloud's index.
+     * @return <code>true</code> if the cloud must be updated.
+     */
+    private boolean isCloudUpdatedOnTick(int index) {
+        return (tick + index) % CLOUD_UPDATE_PERIOD == 0;
+    }
 
-        // Update every active star
+    /**
+     * Returns how many ticks a cloud was moved ahead of the frame being drawn.
+     *
+     * @param index The cloud's index.
+     * @return The number of ticks, from 1 to the update period.
+     */
+    private int getCloudTicksBehind(int index) {
+        // The tick was already increased by the update, so the cloud's last update was on the tick before
+        return CLOUD_UPDATE_PERIOD - (int) ((tick + index + CLOUD_UPDATE_PERIOD - 1) % CLOUD_UPDATE_PERIOD);
+    }
+
+    /**
+     * Moves every active star, updates the broad phase and makes the stars that hit
+     * each other during the tick bounce.
+     */
+    private void updateStars() {
+        int i;
+        Star star;
+
+        isStarGridDirty = true;
         final int activeStarCount = stars.size();
+        updateEntities(activeStarCount, starUpdater);
         for (i = 0; i < activeStarCount; i++) {
             star = stars.get(i);
-            star.update(screenWidth);
+
+            // The proxy covers the whole way the star moved, so the stars that crossed each other are paired
+            starCollisions.moveProxy(star.getCollisionProxy(),
+                    Math.min(star.getStartPosX(), star.getPosX()) - star.halfWidth,
+                    Math.min(star.getStartPosY(), star.getPosY()) - star.halfHeight,
+                    Math.max(star.getStartPosX(), star.getPosX()) + star.halfWidth,
+                    Math.max(star.getStartPosY(), star.getPosY()) + star.halfHeight);
 
 //            // Check if the star fell out of the screen (game over)
 //            if (!star.isActive(screenWidth, screenHeight)) {
@@ -111,108 +380,512 @@ public class GameRunningState extends GameState {
 //            }
         }
 
-        // Check if it's time to spawn a new star
+        // Make the stars that hit each other bounce, sweeping the pairs found by the broad phase
+        final int pairCount = starCollisions.findPairs();
+        for (i = 0; i < pairCount; i++) {
+            starsByProxy[starCollisions.getPairFirst(i)].collide(starsByProxy[starCollisions.getPairSecond(i)]);
+        }
+    }
+
+    /**
+     * Checks if it's time to spawn a new star.
+     */
+    private void spawnStar() {
         starSpawnDelay--;
-        if (starSpawnDelay <= 0 && activeStarCount < MAX_STARS) {
+        if (starSpawnDelay <= 0 && stars.size() < starLimit) {
             // Spawn a new star and reset the spawn delay counter
-            stars.add(StarFactory.createStar(resources, screenWidth));
-            starSpawnDelay = RANDOM.nextInt(((MAX_STAR_SPAWN_DELAY - MIN_STAR_SPAWN_DELAY) + 1)) + MIN_STAR_SPAWN_DELAY;
+            addStar(StarFactory.createStar(resources, screenWidth, random));
+            Metrics.increment(METRIC_SPAWNED);
+            starSpawnDelay = (random.nextInt(((MAX_STAR_SPAWN_DELAY - MIN_STAR_SPAWN_DELAY) + 1)) + MIN_STAR_SPAWN_DELAY) / density;
         }
+        Metrics.set(METRIC_STARS, stars.size());
+    }
 
-        // Update every explosion, starting from the last
+    /**
+     * Updates the particles of every explosion, then removes the explosions gone, starting
+     * from the last. The particles are split into chunks regardless of their explosion.
+     */
+    private void updateExplosions() {
+        int i;
+        Explosion explosion;
+        int particleCount = 0;
+
+        for (i = 0; i < explosions.size(); i++) {
+            explosion = explosions.get(i);
+            explosion.beginUpdate();
+            firstParticles[i] = particleCount;
+            particleCount += explosion.getParticleCount();
+        }
+        updateEntities(particleCount, particleUpdater);
+
+        particleCount = 0;
         for (i = explosions.size() - 1; i >= 0; i--) {
             explosion = explosions.get(i);
-            explosion.update();
 
-            // If the explosion is gone, remove it from the list
-            if (!explosion.isVisible()) explosions.remove(i);
+            // If the explosion is gone, remove it from the list and keep it for later
+            if (!explosion.isVisible()) {
+                ExplosionFactory.recycleExplosion(explosions.remove(i));
+            } else {
+                particleCount += explosion.getParticleCount();
+            }
         }
+
+        Metrics.set(METRIC_EXPLOSIONS, explosions.size());
+        Metrics.set(METRIC_PARTICLES, particleCount);
+    }
+
+    /**
+     * Keeps the tick, so the game can be rewound to it.
+     */
+    private void recordTick() {
+        tick++;
+
+        // The snapshots of the stress and high-density modes would not fit in the buffer
+        if (density > 1) return;
+
+        Tracer.begin(TRACE_RECORD);
+        rewindSnapshot.clear();
+        writeSnapshot(rewindSnapshot);
+        rewindSnapshot.flip();
+        rewindBuffer.record(tick, rewindSnapshot);
+        Tracer.end(TRACE_RECORD);
+    }
+
+    /**
+     * Returns the number of the current tick, increased on every update.
+     *
+     * @return The current tick.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Returns the oldest tick the game can be rewound to.
+     *
+     * @return The oldest retained tick or <code>-1</code> if there is none.
+     */
+    public long getOldestRetainedTick() {
+        return rewindBuffer.getOldestTick();
+    }
+
+    /**
+     * Brings the game back to a retained tick. The ticks after it are kept until the
+     * game is updated again, so the game may be stepped backwards and forwards.
+     *
+     * @param tick The tick to be restored.
+     * @return <code>true</code> if the tick was restored, <code>false</code> if it is not retained.
+     */
+    public boolean rewindTo(long tick) {
+        if (!rewindBuffer.seek(tick, rewindSnapshot)) return false;
+
+        readSnapshot(rewindSnapshot);
+        return true;
     }
 
     @Override
-    public void draw(Canvas canvas) {
+    public void draw(DisplayList displayList) {
         int i; // Avoid memory thrashing
+        Star star;
+        Cloud cloud;
 
         // Draw the sky background
-        canvas.drawBitmap(skyBackground, 0, 0, null);
+        if (isDrawingSkyBitmap) {
+            displayList.addSprite(skyBackgroundSpriteId, 0, 0, 255);
+        } else {
+            displayList.setBackgroundColor(skyColor);
+        }
 
-        // Draw every cloud, starting from the last
-        for (i = clouds.size() - 1; i >= 0; i--) clouds.get(i).draw(canvas);
+        // Draw every cloud, starting from the last (the smaller ones may be skipped)
+        for (i = clouds.size() - 1; i >= 0; i--) {
+            cloud = clouds.get(i);
+            if (cloud.type >= minimumCloudType) cloud.draw(displayList, getCloudTicksBehind(i));
+        }
 
-        // Draw every active star, starting from the last
-        for (i = stars.size() - 1; i >= 0; i--) stars.get(i).draw(canvas);
+        // Draw every active star, starting from the last, and remember where it was shown
+        final long drawTime = SystemClock.uptimeMillis();
+        isStarGridDirty = true;
+        for (i = stars.size() - 1; i >= 0; i--) {
+            star = stars.get(i);
+            star.recordPosition(drawTime);
+            star.draw(displayList);
+        }
 
         // Draw every explosion, starting from the last
-        for (i = explosions.size() - 1; i >= 0; i--) explosions.get(i).draw(canvas);
+        for (i = explosions.size() - 1; i >= 0; i--) explosions.get(i).draw(displayList);
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return !isObscured;
+    }
+
+    @Override
+    public boolean isLayerCacheable() {
+        // The game is frozen under an overlay, so it is drawn only once into a layer
+        return true;
+    }
+
+    /**
+     * Returns how many stars are active. Used by the headless harnesses to aim their touches.
+     *
+     * @return The number of active stars.
+     */
+    public int getStarCount() {
+        return stars.size();
+    }
+
+    /**
+     * Returns one of the active stars. The star must not be changed.
+     *
+     * @param index The star's index, from 0 to {@link #getStarCount()} - 1.
+     * @return The active star.
+     */
+    public Star getStar(int index) {
+        return stars.get(index);
+    }
+
+    @Override
+    public int getEntityCount() {
+        return stars.size() + clouds.size() + explosions.size();
+    }
+
+    @Override
+    public void setQualityTier(int tier) {
+        switch (tier) {
+            case QualityGovernor.TIER_HIGH:
+                minimumCloudType = Cloud.CLOUD_TYPE_SMALL;
+                isReducingParticles = false;
+                isDrawingSkyBitmap = true;
+                break;
+
+            case QualityGovernor.TIER_MEDIUM:
+                // Skip the farthest clouds and release less particles
+                minimumCloudType = Cloud.CLOUD_TYPE_MEDIUM;
+                isReducingParticles = true;
+                isDrawingSkyBitmap = true;
+                break;
+
+            default:
+                // Only draw the nearest clouds and replace the sky gradient by a solid color
+                minimumCloudType = Cloud.CLOUD_TYPE_LARGE;
+                isReducingParticles = true;
+                isDrawingSkyBitmap = false;
+                break;
+        }
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        int i;
+        Cloud cloud;
+
+        buffer.putLong(tick).putLong(random.getState()).putInt(starSpawnDelay);
+        StarFactory.writeSnapshot(buffer);
+        CloudFactory.writeSnapshot(buffer);
+
+        buffer.putInt(stars.size());
+        for (i = 0; i < stars.size(); i++) stars.get(i).writeSnapshot(buffer);
+
+        buffer.putInt(clouds.size());
+        for (i = 0; i < clouds.size(); i++) {
+            cloud = clouds.get(i);
+            buffer.put((byte) cloud.type);
+            cloud.writeSnapshot(buffer);
+        }
+
+        buffer.putInt(explosions.size());
+        for (i = 0; i < explosions.size(); i++) explosions.get(i).writeSnapshot(buffer);
     }
 
     @Override
-    public void handleActionDown(int eventX, int eventY) {
+    public void readSnapshot(ByteBuffer buffer) {
+        int i, count, type;
         Star star;
+        Explosion explosion;
+
+        // The tick sets which clouds are updated on the next ticks
+        tick = buffer.getLong();
+        random.setState(buffer.getLong());
+        starSpawnDelay = buffer.getInt();
+        StarFactory.readSnapshot(resources, buffer);
+        CloudFactory.readSnapshot(buffer);
+
+        // Replace the stars by the saved ones, reusing the recycled objects (without drawing random numbers)
+        for (i = stars.size() - 1; i >= 0; i--) removeStar(i);
+        count = buffer.getInt();
+        if (count < 0 || count > starLimit) throw new IllegalArgumentException("Invalid number of stars");
+        for (i = 0; i < count; i++) {
+            star = StarFactory.obtainStar(resources);
+            star.readSnapshot(buffer);
+            addStar(star);
+        }
+
+        // The clouds keep their bitmaps, so only the ones of the same type (in the same order) are restored
+        count = buffer.getInt();
+        if (count < 0) throw new IllegalArgumentException("Invalid number of clouds");
+        for (i = 0; i < count; i++) {
+            type = buffer.get();
+            if (i < clouds.size() && clouds.get(i).type == type) {
+                clouds.get(i).readSnapshot(buffer);
+            } else {
+                buffer.position(buffer.position() + Cloud.SNAPSHOT_SIZE);
+            }
+        }
+
+        // Replace the explosions by the saved ones, reusing the recycled objects
+        for (i = explosions.size() - 1; i >= 0; i--) ExplosionFactory.recycleExplosion(explosions.remove(i));
+        count = buffer.getInt();
+        if (count < 0 || count > MAX_EXPLOSIONS * density) throw new IllegalArgumentException("Invalid number of explosions");
+        for (i = 0; i < count; i++) {
+            explosion = ExplosionFactory.obtainExplosion(explosionBitmap);
+            explosion.readSnapshot(buffer);
+            explosions.add(explosion);
+        }
+
+        isStarGridDirty = true;
+    }
+
+    @Override
+    public void handleActionDown(int eventX, int eventY, long eventTime) {
+        // The touches belong to the overlay on top
+        if (isObscured) return;
 
         // Check if any of the active stars was touched
         for (int i = stars.size() - 1; i >= 0; i--) {
-            star = stars.get(i);
+            if (stars.get(i).handleActionDown(eventX, eventY, eventTime)) hitStar(i, eventTime);
+        }
+    }
 
-            if (star.handleActionDown(eventX, eventY)) {
-                final int posX = star.getPosX();
-                final int posY = star.getPosY();
-                final int explosionSize;
-
-                // If the star is still alive, release a few particles.
-                if (star.getEnergy() > 0) {
-                    explosionSize = Explosion.MIN_PARTICLES;
-                } else {
-                    // TODO: Update the player's score
-                    // Release a lot of particles if it is dead and remove it from the list of active stars
-                    explosionSize = Explosion.MAX_PARTICLES - RANDOM.nextInt(Explosion.MAX_PARTICLES / 2);
-                    stars.remove(i);
-                }
-                explosions.add(new Explosion(explosionBitmap, explosionSize, posX, posY));
-            }
+    @Override
+    public void handleActionMove(int startX, int startY, int endX, int endY, long eventTime) {
+        // The touches belong to the overlay on top
+        if (isObscured) return;
+
+        // Find the stars that may have been crossed by the swipe
+        if (isStarGridDirty) rebuildStarGrid();
+        final int candidateCount = starGrid.querySegment(startX, startY, endX, endY, starCandidates);
+
+        // Sort the candidates from the last star to the first, so removing one does not affect the others
+        Arrays.sort(starCandidates, 0, candidateCount);
+
+        // Slice every star crossed by the swipe
+        int index;
+        for (int i = candidateCount - 1; i >= 0; i--) {
+            index = starCandidates[i];
+            if (stars.get(index).handleSlice(startX, startY, endX, endY, eventTime)) hitStar(index, eventTime);
+        }
+    }
+
+    /**
+     * Releases an explosion from a star that was hit by the user.
+     * If the star is dead, it is also removed from the list of active stars.
+     *
+     * @param index     The star's index on the list of active stars.
+     * @param eventTime The time of the touch that hit the star.
+     */
+    private void hitStar(int index, long eventTime) {
+        final Star star = stars.get(index);
+        final int posX = star.getPosX();
+        final int posY = star.getPosY();
+        int explosionSize;
+
+        Metrics.increment(METRIC_HITS);
+
+        // If the star is still alive, release a few particles.
+        if (star.getEnergy() > 0) {
+            explosionSize = Explosion.MIN_PARTICLES;
+        } else {
+            // TODO: Update the player's score
+            // Release a lot of particles if it is dead and remove it from the list of active stars
+            explosionSize = Explosion.MAX_PARTICLES - random.nextInt(Explosion.MAX_PARTICLES / 2);
+            if (isReducingParticles) explosionSize = Explosion.MIN_PARTICLES + (explosionSize - Explosion.MIN_PARTICLES) / 2;
+            removeStar(index);
+            Metrics.increment(METRIC_DESTROYED);
+        }
+
+        // Don't release more explosions than the device can handle
+        if (explosions.size() < explosionLimit) {
+            explosions.add(ExplosionFactory.createExplosion(explosionBitmap, explosionSize, posX, posY, eventTime, random));
+        }
+    }
+
+    /**
+     * Adds a star to the list of active stars and to the collision broad phase.
+     *
+     * @param star The star to be added.
+     */
+    private void addStar(Star star) {
+        final int proxy = starCollisions.createProxy(star.getPosX() - star.halfWidth, star.getPosY() - star.halfHeight,
+                star.getPosX() + star.halfWidth, star.getPosY() + star.halfHeight);
+
+        if (proxy >= starsByProxy.length) {
+            final Star[] grown = new Star[starsByProxy.length * 2];
+            System.arraycopy(starsByProxy, 0, grown, 0, starsByProxy.length);
+            starsByProxy = grown;
+        }
+
+        starsByProxy[proxy] = star;
+        star.setCollisionProxy(proxy);
+        stars.add(star);
+        isStarGridDirty = true;
+    }
+
+    /**
+     * Removes a star from the list of active stars and from the collision broad phase.
+     *
+     * @param index The star's index on the list of active stars.
+     */
+    private void removeStar(int index) {
+        final Star star = stars.remove(index);
+        final int proxy = star.getCollisionProxy();
+
+        starCollisions.removeProxy(proxy);
+        starsByProxy[proxy] = null;
+        star.setCollisionProxy(-1);
+        isStarGridDirty = true;
+
+        StarFactory.recycleStar(star);
+    }
+
+    /**
+     * Inserts every active star in the grid used to find the stars crossed by a swipe.
+     */
+    private void rebuildStarGrid() {
+        final int activeStarCount = stars.size();
+
+        if (starCandidates.length < activeStarCount) starCandidates = new int[activeStarCount];
+
+        starGrid.clear();
+        for (int i = 0; i < activeStarCount; i++) {
+            stars.get(i).getTouchBounds(starBounds);
+            starGrid.insert(i, starBounds[0], starBounds[1], starBounds[2], starBounds[3]);
         }
+
+        isStarGridDirty = false;
     }
 
     @Override
     public void exiting() {
+        int i;
+
+        // Give the objects back to the factories, so they can be reused by the next game
+        for (i = stars.size() - 1; i >= 0; i--) removeStar(i);
+        for (i = explosions.size() - 1; i >= 0; i--) ExplosionFactory.recycleExplosion(explosions.remove(i));
 
+        Metrics.set(METRIC_STARS, 0);
+        Metrics.set(METRIC_EXPLOSIONS, 0);
+        Metrics.set(METRIC_PARTICLES, 0);
+
+        // Release the bitmaps owned by the state (once the render thread is done with them)
+        Metrics.add(Metrics.BITMAP_BYTES, -Metrics.getBitmapBytes(skyBackground) - Metrics.getBitmapBytes(explosionBitmap));
+        SpriteRegistry.recycle(skyBackground);
+        SpriteRegistry.recycle(explosionBitmap);
     }
 
     @Override
     public void entered() {
         // Initialize the game objects
-        stars = new ArrayList<Star>(MAX_STARS);
-        explosions = new ArrayList<Explosion>(MAX_STARS);
+        starLimit = MAX_STARS * density;
+        explosionLimit = explosionBudget * density;
+        stars = new ArrayList<Star>(starLimit);
+        explosions = new ArrayList<Explosion>(explosionLimit);
+        ExplosionFactory.preallocate(explosionLimit);
+        firstParticles = new int[MAX_EXPLOSIONS * density];
+        starGrid = new SpatialGrid(STAR_GRID_CELL_SIZE, screenWidth, screenHeight);
+        starCandidates = new int[starLimit];
+        starCollisions = new SweepAndPrune();
+        rewindBuffer = new RewindBuffer(REWIND_TICKS, REWIND_ARENA_SIZE, MAX_SNAPSHOT_SIZE, REWIND_KEYFRAME_INTERVAL);
+        rewindSnapshot = ByteBuffer.allocate(MAX_SNAPSHOT_SIZE);
+        tick = 0;
+        starsByProxy = new Star[starLimit];
+        isStarGridDirty = true;
 
         // The clouds must be populated from the first layer (front) to the last (back)
-        clouds = new ArrayList<Cloud>(MAX_SMALL_CLOUDS + MAX_MEDIUM_CLOUDS + MAX_LARGE_CLOUDS);
-        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_LARGE, MAX_LARGE_CLOUDS, screenWidth, screenHeight, resources)));
-        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_MEDIUM, MAX_MEDIUM_CLOUDS, screenWidth, screenHeight, resources)));
-        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_SMALL, MAX_SMALL_CLOUDS, screenWidth, screenHeight, resources)));
+        clouds = new ArrayList<Cloud>(cloudsPerType * 3);
+        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_LARGE, cloudsPerType, screenWidth, screenHeight, resources, random)));
+        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_MEDIUM, cloudsPerType, screenWidth, screenHeight, resources, random)));
+        clouds.addAll(Arrays.asList(CloudFactory.createClouds(Cloud.CLOUD_TYPE_SMALL, cloudsPerType, screenWidth, screenHeight, resources, random)));
 
         // Load the bitmap for the explosions
+        Tracer.begin(TRACE_DECODE);
         explosionBitmap = BitmapFactory.decodeResource(resources, R.drawable.star_small);
+        Metrics.add(Metrics.BITMAP_BYTES, Metrics.getBitmapBytes(explosionBitmap));
 
-        // Load the sky background gradient from the XML ...
-        GradientDrawable skyBackgroundGradient = (GradientDrawable) resources.getDrawable(R.drawable.sky_background);
+        // Load the sky background gradient from the XML
+        skyBackgroundGradient = (GradientDrawable) resources.getDrawable(R.drawable.sky_background);
         if (skyBackgroundGradient == null) throw new NullPointerException("Sky background gradient was not loaded!");
+        createSkyBackground();
+        Tracer.end(TRACE_DECODE);
+
+        // TODO: Implement some kind of "get ready" game state.
+    }
+
+    /**
+     * Generates the sky background Bitmap from the gradient for the current screen size,
+     * because it's faster to draw this way.
+     */
+    private void createSkyBackground() {
         skyBackgroundGradient.setBounds(0, 0, screenWidth, screenHeight);
 
-        // ... and then generate a new Bitmap from the Drawable, because it's faster to draw this way.
         skyBackground = Bitmap.createBitmap(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(skyBackground);
         skyBackgroundGradient.draw(canvas);
+        skyColor = skyBackground.getPixel(screenWidth / 2, screenHeight / 2);
+        skyBackgroundSpriteId = SpriteRegistry.register(skyBackground);
+        Metrics.add(Metrics.BITMAP_BYTES, Metrics.getBitmapBytes(skyBackground));
+    }
 
-        // TODO: Implement some kind of "get ready" game state.
+    @Override
+    public void resize(int width, int height) {
+        if (width == screenWidth && height == screenHeight) return;
+
+        int i;
+        Star star;
+        Cloud cloud;
+        final int oldWidth = screenWidth;
+        final int oldHeight = screenHeight;
+
+        screenWidth = width;
+        screenHeight = height;
+
+        // Only the data depending on the screen size is rebuilt, the sprites are kept
+        Metrics.add(Metrics.BITMAP_BYTES, -Metrics.getBitmapBytes(skyBackground));
+        SpriteRegistry.recycle(skyBackground);
+        createSkyBackground();
+        starGrid.resize(screenWidth, screenHeight);
+        CloudFactory.resize(screenWidth, screenHeight, random);
+        StarFactory.resize(screenWidth, random);
+
+        // Keep every object at the same relative position
+        for (i = 0; i < stars.size(); i++) {
+            star = stars.get(i);
+            star.setPos(star.getPosX() * width / oldWidth, star.getPosY() * height / oldHeight);
+            star.clearHistory();
+            starCollisions.moveProxy(star.getCollisionProxy(), star.getPosX() - star.halfWidth,
+                    star.getPosY() - star.halfHeight, star.getPosX() + star.halfWidth, star.getPosY() + star.halfHeight);
+        }
+
+        for (i = 0; i < clouds.size(); i++) {
+            cloud = clouds.get(i);
+            cloud.setPos(cloud.getPosX() * width / oldWidth, cloud.getPosY() * height / oldHeight);
+        }
+
+        for (i = 0; i < explosions.size(); i++) explosions.get(i).remap(oldWidth, oldHeight, width, height);
+
+        // The ticks recorded so far were laid out for the old size
+        rewindBuffer.clear();
+        isStarGridDirty = true;
     }
 
     @Override
     public void obscuring() {
-
+        // Freeze the game until the overlay goes away
+        isObscured = true;
     }
 
     @Override
     public void revealed() {
-
+        isObscured = false;
     }
 }
@@ -16,7 +16,10 @@
 
 package br.com.oncipriani.mygame.engine;
 
-import android.graphics.Canvas;
+import br.com.oncipriani.mygame.profiling.LatencyHistogram;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+import java.nio.ByteBuffer;
 
 /**
  * This Interface abstracts a state the game can be in.
@@ -40,6 +43,20 @@ public abstract class GameState {
     // Stores if game state takes exclusive ownership of the screen
     private final boolean isExclusive;
 
+    // Name used when reporting the state's statistics
+    private final String name;
+
+    // How long the state takes to update and to draw itself
+    private final LatencyHistogram updateHistogram = new LatencyHistogram();
+    private final LatencyHistogram drawHistogram = new LatencyHistogram();
+
+    // Maintained by the game state manager: the sprite holding the state's last frame while obscured, or -1
+    int layerSpriteId = -1;
+
+    // Names of the state's spans on the trace
+    private final int updateTraceName;
+    private final int drawTraceName;
+
     /**
      * Constructs a new <code>GameState</code>.
      *
@@ -47,6 +64,54 @@ public abstract class GameState {
      */
     protected GameState(boolean isExclusive) {
         this.isExclusive = isExclusive;
+        this.name = getClass().getSimpleName();
+        this.updateTraceName = Tracer.registerName(name + ".update");
+        this.drawTraceName = Tracer.registerName(name + ".draw");
+    }
+
+    /**
+     * Returns the name of the game state, used when reporting its statistics.
+     *
+     * @return The name of the game state.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the identifier of the name used to trace calls to {@link #update()}.
+     *
+     * @return The {@link br.com.oncipriani.mygame.profiling.Tracer} name identifier.
+     */
+    public int getUpdateTraceName() {
+        return updateTraceName;
+    }
+
+    /**
+     * Returns the identifier of the name used to trace calls to {@link #draw(DisplayList)}.
+     *
+     * @return The {@link br.com.oncipriani.mygame.profiling.Tracer} name identifier.
+     */
+    public int getDrawTraceName() {
+        return drawTraceName;
+    }
+
+    /**
+     * Returns the histogram of the time taken by each call to {@link #update()}.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public LatencyHistogram getUpdateHistogram() {
+        return updateHistogram;
+    }
+
+    /**
+     * Returns the histogram of the time taken by each call to {@link #draw(DisplayList)}.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public LatencyHistogram getDrawHistogram() {
+        return drawHistogram;
     }
 
     /**
@@ -67,19 +132,108 @@ public abstract class GameState {
     public abstract void update();
 
     /**
-     * Draws the state on the screen.
+     * Returns if what the state draws changed since it was last drawn. This is asked after
+     * every update, and the game loop only records and renders a new frame when some exposed
+     * state changed. Otherwise it sleeps until the next touch or a timer, which saves battery
+     * on static screens (menus, pause screens, etc.). Ticks are much further apart while
+     * nothing changes, so states that may return <code>false</code> must not count ticks to
+     * measure time. States that move on every tick don't need to override this method.
+     *
+     * @return <code>true</code> if the state must be drawn again.
+     */
+    public boolean hasChanged() {
+        return true;
+    }
+
+    /**
+     * Returns if the state looks the same for as long as it is obscured. If so, the game
+     * state manager draws the state once into an offscreen layer when it gets obscured
+     * and, until the state is revealed, draws only the layer instead of the whole state.
+     * States that keep moving under an overlay must not override this method.
+     *
+     * @return <code>true</code> if the state may be drawn from a cached layer while obscured.
+     */
+    public boolean isLayerCacheable() {
+        return false;
+    }
+
+    /**
+     * Records what the state looks like on the display list of the frame being drawn.
+     * The display list is drawn on the screen later, by the render thread, so the
+     * state must only add sprites and never touch the screen itself.
+     *
+     * @param displayList The display list of the frame.
+     */
+    public abstract void draw(DisplayList displayList);
+
+    /**
+     * Returns how many entities (actors, particles, etc.) the game state is currently
+     * handling. This is only used when reporting the state's statistics.
+     *
+     * @return The number of entities on the game state.
+     */
+    public abstract int getEntityCount();
+
+    /**
+     * Informs the game state of the quality of the effects it should draw. States
+     * that have no expensive effects don't need to override this method.
+     *
+     * @param tier One of the {@link QualityGovernor} <code>TIER_*</code> constants.
+     */
+    public void setQualityTier(int tier) {
+    }
+
+    /**
+     * Informs the game state that the screen changed its size (e.g. the device was
+     * rotated). States should rebuild only what depends on the screen size and keep
+     * their objects at the same relative position. States that don't depend on the
+     * screen size don't need to override this method.
      *
-     * @param canvas The canvas representing the screen.
+     * @param width  The screen's new width in pixels.
+     * @param height The screen's new height in pixels.
      */
-    public abstract void draw(Canvas canvas);
+    public void resize(int width, int height) {
+    }
+
+    /**
+     * Writes everything needed to restore the game state to a snapshot. States that
+     * have nothing worth saving don't need to override this method.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @see WorldSnapshot
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+    }
+
+    /**
+     * Restores the game state from a snapshot written by {@link #writeSnapshot(java.nio.ByteBuffer)}.
+     * The state has already been entered when this method is called.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @throws java.lang.IllegalArgumentException if the snapshot is not valid.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+    }
 
     /**
      * Informs the game state of a touch event.
      *
-     * @param eventX The location of the touch on the X axis.
-     * @param eventY The location on the touch on the Y axis.
+     * @param eventX    The location of the touch on the X axis.
+     * @param eventY    The location on the touch on the Y axis.
+     * @param eventTime The time the touch happened, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     */
+    public abstract void handleActionDown(int eventX, int eventY, long eventTime);
+
+    /**
+     * Informs the game state that a touch moved from one point to another (a swipe).
+     *
+     * @param startX    Where the touch started on the X axis.
+     * @param startY    Where the touch started on the Y axis.
+     * @param endX      Where the touch ended on the X axis.
+     * @param endY      Where the touch ended on the Y axis.
+     * @param eventTime The time the touch reached its end, in the {@link android.os.SystemClock#uptimeMillis()} time base.
      */
-    public abstract void handleActionDown(int eventX, int eventY);
+    public abstract void handleActionMove(int startX, int startY, int endX, int endY, long eventTime);
 
     /**
      * Notifies the game state it is about to be exited.
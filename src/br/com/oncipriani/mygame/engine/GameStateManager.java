@@ -16,9 +16,13 @@
 
 package br.com.oncipriani.mygame.engine;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.util.Log;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
@@ -27,11 +31,35 @@ import java.util.ArrayList;
 public class GameStateManager {
     private static final String TAG = GameStateManager.class.getSimpleName();
 
+    // Names of the spans on the trace
+    private static final int TRACE_PUSH = Tracer.registerName("GameStateManager.push");
+    private static final int TRACE_POP = Tracer.registerName("GameStateManager.pop");
+    private static final int TRACE_UPDATE = Tracer.registerName("GameStateManager.update");
+    private static final int TRACE_DRAW = Tracer.registerName("GameStateManager.draw");
+    private static final int TRACE_RESIZE = Tracer.registerName("GameStateManager.resize");
+    private static final int TRACE_CAPTURE = Tracer.registerName("GameStateManager.captureLayer");
+
+    // Metrics published by the manager
+    private static final int METRIC_LAYERS_CAPTURED = Metrics.registerCounter("states.layers_captured");
+
     // Stores all currently active game states.
     private ArrayList<GameState> activeStates;
     // Stores all game states from the last exclusive state.
     private ArrayList<GameState> exposedStates;
 
+    // The quality of the effects drawn by the states
+    private int qualityTier = QualityGovernor.TIER_HIGH;
+
+    // Determines if the stack changed since the last frame, so it must be drawn again
+    private boolean isStackChanged = true;
+
+    // Size of the layers the obscured states are cached on (0 until the screen size is known)
+    private int screenWidth;
+    private int screenHeight;
+
+    // Display list the obscured states are recorded on before being drawn into their layers
+    private final DisplayList layerDisplayList = new DisplayList();
+
     /**
      * Initializes a new game state manager.
      */
@@ -59,6 +87,7 @@ public class GameStateManager {
      * @param gameState Game state that will be pushed onto the stack.
      */
     public void push(GameState gameState) {
+        Tracer.begin(TRACE_PUSH);
         activeStates.add(gameState);
 
         if (gameState.isExclusive()) exposedStates.clear();
@@ -68,6 +97,9 @@ public class GameStateManager {
         notifyObscuredStates();
 
         gameState.entered();
+        gameState.setQualityTier(qualityTier);
+        isStackChanged = true;
+        Tracer.end(TRACE_PUSH);
     }
 
     /**
@@ -80,8 +112,10 @@ public class GameStateManager {
             throw new RuntimeException("Attempted to pop from an empty game state stack");
         }
 
+        Tracer.begin(TRACE_POP);
         GameState popped = activeStates.remove(activeStates.size() - 1);
         popped.exiting();
+        releaseLayer(popped);
 
         if (popped.isExclusive()) {
             rebuildExposedStates();
@@ -90,10 +124,20 @@ public class GameStateManager {
         }
 
         notifyRevealedStates();
+        isStackChanged = true;
+        Tracer.end(TRACE_POP);
 
         return popped;
     }
 
+    /**
+     * Removes every game state from the stack, from the most recent one to the first
+     * one, so each of them exits and gives back what it owns (bitmaps, layers, etc.).
+     */
+    public void popAll() {
+        while (!activeStates.isEmpty()) pop();
+    }
+
     /**
      * Notifies all previously exposed states that they have been obscured.
      */
@@ -135,51 +179,269 @@ public class GameStateManager {
             --index;
         }
 
-        // Now go forward and notify all revealed state
+        // Now go forward and notify all revealed state, which must be drawn live again
         while (index < activeStatesSize) {
+            releaseLayer(activeStates.get(index));
             activeStates.get(index).revealed();
             ++index;
         }
     }
 
+    /**
+     * Informs every active game state of the quality of the effects it should draw.
+     * States pushed later are informed as soon as they are entered.
+     *
+     * @param tier One of the {@link QualityGovernor} <code>TIER_*</code> constants.
+     */
+    public void setQualityTier(int tier) {
+        qualityTier = tier;
+        isStackChanged = true;
+        for (int i = 0; i < activeStates.size(); i++) activeStates.get(i).setQualityTier(tier);
+    }
+
+    /**
+     * Sets the size of the screen the game states are drawn on. Obscured states are
+     * only cached on layers once the screen size is known.
+     *
+     * @param width  The screen's width in pixels.
+     * @param height The screen's height in pixels.
+     */
+    public void setScreenSize(int width, int height) {
+        screenWidth = width;
+        screenHeight = height;
+    }
+
+    /**
+     * Informs every active game state that the screen changed its size.
+     *
+     * @param width  The screen's new width in pixels.
+     * @param height The screen's new height in pixels.
+     */
+    public void resize(int width, int height) {
+        Tracer.begin(TRACE_RESIZE);
+        setScreenSize(width, height);
+        isStackChanged = true;
+        for (int i = 0; i < activeStates.size(); i++) {
+            // The cached layers no longer fit the screen, so they are captured again on the next frame
+            releaseLayer(activeStates.get(i));
+            activeStates.get(i).resize(width, height);
+        }
+        Tracer.end(TRACE_RESIZE);
+    }
+
+    /**
+     * Writes a snapshot of every active game state, from the bottom of the stack.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        final int activeStatesSize = activeStates.size();
+
+        buffer.putInt(activeStatesSize);
+        for (int i = 0; i < activeStatesSize; i++) {
+            final GameState gameState = activeStates.get(i);
+            buffer.putInt(gameState.getName().hashCode());
+            gameState.writeSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Restores every active game state from a snapshot. The stack must hold the same
+     * game states it held when the snapshot was written.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @return <code>true</code> if the snapshot matches the stack and was restored.
+     */
+    public boolean readSnapshot(ByteBuffer buffer) {
+        final int activeStatesSize = activeStates.size();
+
+        if (buffer.getInt() != activeStatesSize) return false;
+        for (int i = 0; i < activeStatesSize; i++) {
+            final GameState gameState = activeStates.get(i);
+            if (buffer.getInt() != gameState.getName().hashCode()) return false;
+            gameState.readSnapshot(buffer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns how many game states are currently exposed.
+     *
+     * @return The number of exposed game states.
+     */
+    public int getExposedStateCount() {
+        return exposedStates.size();
+    }
+
+    /**
+     * Returns one of the currently exposed game states.
+     *
+     * @param index The state's index, starting from the bottom of the stack.
+     * @return The exposed game state.
+     */
+    public GameState getExposedState(int index) {
+        return exposedStates.get(index);
+    }
+
+    /**
+     * Returns how many entities the exposed game states are handling.
+     *
+     * @return The number of entities on the exposed game states.
+     */
+    public int getEntityCount() {
+        final int size = exposedStates.size();
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            count += exposedStates.get(i).getEntityCount();
+        }
+
+        return count;
+    }
+
     /**
      * Advances the time of the exposed game states.
      */
     public void update() {
         final int size = exposedStates.size();
+        GameState state;
+        long startTime;
 
+        Tracer.begin(TRACE_UPDATE);
         for (int i = 0; i < size; i++) {
-            exposedStates.get(i).update();
+            state = exposedStates.get(i);
+
+            Tracer.begin(state.getUpdateTraceName());
+            startTime = System.nanoTime();
+            state.update();
+            state.getUpdateHistogram().recordNanos(startTime, System.nanoTime());
+            Tracer.end(state.getUpdateTraceName());
+        }
+        Tracer.end(TRACE_UPDATE);
+    }
+
+    /**
+     * Returns if a new frame must be drawn, either because the stack changed or because
+     * an exposed game state changed since the last frame. States drawn from their cached
+     * layers are not asked, since their layer stays the same.
+     *
+     * @return <code>true</code> if the frame must be recorded again.
+     */
+    public boolean hasChanged() {
+        if (isStackChanged) return true;
+
+        final int size = exposedStates.size();
+        GameState state;
+
+        for (int i = 0; i < size; i++) {
+            state = exposedStates.get(i);
+            if (state.layerSpriteId < 0 && state.hasChanged()) return true;
         }
+
+        return false;
     }
 
     /**
      * Informs all exposed game states of a touch event.
      *
-     * @param eventX The location of the touch on the X axis.
-     * @param eventY The location of the touch on the Y axis.
+     * @param eventX    The location of the touch on the X axis.
+     * @param eventY    The location of the touch on the Y axis.
+     * @param eventTime The time the touch happened, in the {@link android.os.SystemClock#uptimeMillis()} time base.
      */
-    public void handleActionDown(int eventX, int eventY) {
+    public void handleActionDown(int eventX, int eventY, long eventTime) {
         final int size = exposedStates.size();
 
         for (int i = 0; i < size; i++) {
-            exposedStates.get(i).handleActionDown(eventX, eventY);
+            exposedStates.get(i).handleActionDown(eventX, eventY, eventTime);
         }
     }
 
     /**
-     * Instructs the exposed game states to render themselves.
+     * Informs all exposed game states that a touch moved from one point to another.
      *
-     * @param canvas The screen to draw on.
+     * @param startX    Where the touch started on the X axis.
+     * @param startY    Where the touch started on the Y axis.
+     * @param endX      Where the touch ended on the X axis.
+     * @param endY      Where the touch ended on the Y axis.
+     * @param eventTime The time the touch reached its end, in the {@link android.os.SystemClock#uptimeMillis()} time base.
      */
-    public void draw(Canvas canvas) {
+    public void handleActionMove(int startX, int startY, int endX, int endY, long eventTime) {
         final int size = exposedStates.size();
 
         for (int i = 0; i < size; i++) {
-            exposedStates.get(i).draw(canvas);
+            exposedStates.get(i).handleActionMove(startX, startY, endX, endY, eventTime);
         }
     }
 
+    /**
+     * Instructs the exposed game states to record themselves on a display list. Obscured
+     * states that may be cached are drawn into a layer on the first frame they are
+     * obscured, and only the layer is recorded from then on, until they are revealed.
+     *
+     * @param displayList The display list of the frame being drawn.
+     */
+    public void draw(DisplayList displayList) {
+        final int size = exposedStates.size();
+        GameState state;
+        long startTime;
+
+        Tracer.begin(TRACE_DRAW);
+        isStackChanged = false;
+        for (int i = 0; i < size; i++) {
+            state = exposedStates.get(i);
+
+            Tracer.begin(state.getDrawTraceName());
+            startTime = System.nanoTime();
+            // Every exposed state but the top one is obscured by the states above it
+            if (i < size - 1 && screenWidth > 0 && state.isLayerCacheable()) {
+                if (state.layerSpriteId < 0) captureLayer(state, displayList);
+                displayList.addSprite(state.layerSpriteId, 0, 0, 255);
+            } else {
+                state.draw(displayList);
+            }
+            state.getDrawHistogram().recordNanos(startTime, System.nanoTime());
+            Tracer.end(state.getDrawTraceName());
+        }
+        Tracer.end(TRACE_DRAW);
+    }
+
+    /**
+     * Draws an obscured game state into a new layer, which is registered as a sprite.
+     *
+     * @param state       The obscured game state.
+     * @param displayList The display list of the frame being drawn.
+     */
+    private void captureLayer(GameState state, DisplayList displayList) {
+        Tracer.begin(TRACE_CAPTURE);
+        final Bitmap layer = Bitmap.createBitmap(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
+
+        layerDisplayList.reset(displayList.getSequence());
+        state.draw(layerDisplayList);
+        layerDisplayList.draw(new Canvas(layer));
+
+        // Touches whose results show up on the layer are still presented on this frame
+        for (int i = 0; i < layerDisplayList.getPresentedEventCount(); i++) {
+            displayList.markPresented(layerDisplayList.getPresentedEventTime(i));
+        }
+
+        state.layerSpriteId = SpriteRegistry.register(layer);
+        Metrics.increment(METRIC_LAYERS_CAPTURED);
+        Tracer.end(TRACE_CAPTURE);
+    }
+
+    /**
+     * Retires the layer of a game state, if it has one, so the state is drawn live again.
+     *
+     * @param state The game state.
+     */
+    private void releaseLayer(GameState state) {
+        if (state.layerSpriteId < 0) return;
+
+        SpriteRegistry.recycle(SpriteRegistry.get(state.layerSpriteId));
+        state.layerSpriteId = -1;
+    }
+
     /**
      * Rebuilds the exposed states queue when an exclusive state has
      * been popped from the stack.
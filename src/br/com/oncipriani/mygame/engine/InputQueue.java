@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.os.SystemClock;
+import br.com.oncipriani.mygame.profiling.InputLatency;
+
+/**
+ * This class queues the touch events received on the UI thread so they can be
+ * handled by the game thread at the beginning of the next tick, instead of
+ * touching the game states while they are being updated or drawn.
+ * <p>
+ * The queue is double buffered: the UI thread writes to one buffer while the game
+ * thread dispatches the events of the other one, so the lock is only held for as
+ * long as it takes to write an event or to swap the buffers. No objects are created.
+ * </p>
+ */
+public final class InputQueue {
+    // Types of event
+    private static final int TYPE_DOWN = 0;
+    private static final int TYPE_MOVE = 1;
+
+    // Maximum number of events queued between two ticks
+    private static final int CAPACITY = 256;
+
+    /**
+     * The events queued on a single buffer.
+     */
+    private static final class Events {
+        final int[] types = new int[CAPACITY];
+        final int[] startX = new int[CAPACITY];
+        final int[] startY = new int[CAPACITY];
+        final int[] endX = new int[CAPACITY];
+        final int[] endY = new int[CAPACITY];
+        final long[] times = new long[CAPACITY];
+        int count;
+    }
+
+    private Events pending = new Events();
+    private Events dispatching = new Events();
+
+    /**
+     * Queues an {@link android.view.MotionEvent}.ACTION_DOWN event. The event is
+     * dropped if the queue is full.
+     *
+     * @param eventX    The location of the touch on the X axis.
+     * @param eventY    The location of the touch on the Y axis.
+     * @param eventTime The time the touch happened, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @return <code>true</code> if the event was queued.
+     */
+    public synchronized boolean queueActionDown(int eventX, int eventY, long eventTime) {
+        return queue(TYPE_DOWN, eventX, eventY, eventX, eventY, eventTime);
+    }
+
+    /**
+     * Queues a segment of an {@link android.view.MotionEvent}.ACTION_MOVE event.
+     * The event is dropped if the queue is full.
+     *
+     * @param startX    Where the touch started on the X axis.
+     * @param startY    Where the touch started on the Y axis.
+     * @param endX      Where the touch ended on the X axis.
+     * @param endY      Where the touch ended on the Y axis.
+     * @param eventTime The time the touch reached its end, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @return <code>true</code> if the event was queued.
+     */
+    public synchronized boolean queueActionMove(int startX, int startY, int endX, int endY, long eventTime) {
+        return queue(TYPE_MOVE, startX, startY, endX, endY, eventTime);
+    }
+
+    /**
+     * Returns if there are events waiting to be dispatched.
+     *
+     * @return <code>true</code> if some event was queued since the last dispatch.
+     */
+    public synchronized boolean hasPendingEvents() {
+        return pending.count > 0;
+    }
+
+    private boolean queue(int type, int startX, int startY, int endX, int endY, long eventTime) {
+        final Events events = pending;
+        final int index = events.count;
+        if (index == CAPACITY) return false;
+
+        events.types[index] = type;
+        events.startX[index] = startX;
+        events.startY[index] = startY;
+        events.endX[index] = endX;
+        events.endY[index] = endY;
+        events.times[index] = eventTime;
+        events.count = index + 1;
+
+        return true;
+    }
+
+    /**
+     * Dispatches every queued event to the game state manager, in the order they were
+     * received. Must be called by the game thread.
+     *
+     * @param gameStateManager The game state manager that will handle the events.
+     * @return The number of events dispatched.
+     */
+    public int dispatch(GameStateManager gameStateManager) {
+        final Events events;
+
+        // Swap the buffers, so the UI thread can keep queueing events while we dispatch them
+        synchronized (this) {
+            events = pending;
+            pending = dispatching;
+            dispatching = events;
+        }
+
+        final int count = events.count;
+        final long now = SystemClock.uptimeMillis();
+
+        for (int i = 0; i < count; i++) {
+            InputLatency.recordQueued(events.times[i], now);
+
+            if (events.types[i] == TYPE_DOWN) {
+                gameStateManager.handleActionDown(events.startX[i], events.startY[i], events.times[i]);
+            } else {
+                gameStateManager.handleActionMove(events.startX[i], events.startY[i], events.endX[i], events.endY[i],
+                        events.times[i]);
+            }
+        }
+
+        events.count = 0;
+        return count;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.util.Log;
+import br.com.oncipriani.mygame.profiling.AllocationCounter;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class runs the stages of a tick as a graph of jobs. Every job declares which
+ * data it reads and which data it writes, as bit masks. Each tick the jobs are
+ * submitted in program order and the scheduler links every job to the earlier ones
+ * it conflicts with (one writes what the other reads or writes), so independent
+ * jobs may run at the same time while the results stay the same as running them
+ * in order.
+ * <p>
+ * Every thread has its own deque of ready jobs: a thread takes the jobs it made
+ * ready from the end of its own deque and steals from the start of the others
+ * when it runs out. {@link #run()} is the barrier of the tick: the calling thread
+ * helps running the jobs and returns only when all of them are done.
+ * </p>
+ * <p>
+ * On single core devices the jobs simply run inline, in the order they were submitted.
+ * Submitting and running the jobs does not create any objects.
+ * </p>
+ */
+public final class JobScheduler {
+    private static final String TAG = JobScheduler.class.getSimpleName();
+
+    // Maximum number of jobs on a single tick
+    private static final int MAX_JOBS = 32;
+
+    /**
+     * A stage of the tick.
+     */
+    public abstract static class Job {
+        private final int readMask;
+        private final int writeMask;
+        private final int traceName;
+
+        /**
+         * Constructs a new job.
+         *
+         * @param name      The name of the job on the trace.
+         * @param readMask  The data read (but not written) by the job.
+         * @param writeMask The data written by the job.
+         */
+        protected Job(String name, int readMask, int writeMask) {
+            this.readMask = readMask;
+            this.writeMask = writeMask;
+            this.traceName = Tracer.registerName(name);
+        }
+
+        /**
+         * Runs the job. May be called from any thread, but never at the same time as a
+         * job touching the same data.
+         */
+        public abstract void run();
+
+        /**
+         * Returns if this job must run after another one submitted before it.
+         *
+         * @param job A job submitted before this one.
+         * @return <code>true</code> if the jobs touch the same data and at least one of them writes it.
+         */
+        boolean dependsOn(Job job) {
+            return (job.writeMask & (readMask | writeMask)) != 0 || (job.readMask & writeMask) != 0;
+        }
+    }
+
+    /**
+     * The ready jobs of a single thread. The owner pushes and pops at the end, the
+     * other threads steal from the start. Each job is pushed at most once per tick.
+     */
+    private static final class WorkDeque {
+        private final int[] jobs = new int[MAX_JOBS];
+        private int head;
+        private int tail;
+
+        synchronized void clear() {
+            head = 0;
+            tail = 0;
+        }
+
+        synchronized void push(int job) {
+            jobs[tail++] = job;
+        }
+
+        synchronized int pop() {
+            return tail > head ? jobs[--tail] : -1;
+        }
+
+        synchronized int steal() {
+            return tail > head ? jobs[head++] : -1;
+        }
+    }
+
+    // The scheduler shared by the game, created when first needed
+    private static JobScheduler defaultScheduler;
+
+    private final Thread[] workers;
+    private final WorkDeque[] deques;
+
+    // Bytes allocated by each worker, published after every job while the allocations are counted
+    private final AtomicLongArray workerAllocatedBytes;
+
+    // The jobs submitted for the tick and the graph linking them
+    private final Job[] jobs = new Job[MAX_JOBS];
+    private final int[][] dependents = new int[MAX_JOBS][MAX_JOBS];
+    private final int[] dependentCounts = new int[MAX_JOBS];
+    private final int[] dependencyCounts = new int[MAX_JOBS];
+    private int jobCount;
+
+    // State of the tick being run
+    private final AtomicIntegerArray remainingDependencies = new AtomicIntegerArray(MAX_JOBS);
+    private final AtomicInteger completedJobs = new AtomicInteger();
+    private volatile int tickJobCount;
+    private volatile RuntimeException failure;
+    private int generation;
+    private boolean isShutdown;
+
+    /**
+     * Constructs a new job scheduler.
+     *
+     * @param parallelism How many threads run the jobs, including the thread calling {@link #run()}.
+     */
+    public JobScheduler(int parallelism) {
+        workers = new Thread[Math.max(0, parallelism - 1)];
+        deques = new WorkDeque[workers.length + 1];
+        workerAllocatedBytes = new AtomicLongArray(workers.length);
+
+        for (int i = 0; i < deques.length; i++) deques[i] = new WorkDeque();
+
+        for (int i = 0; i < workers.length; i++) {
+            final int self = i + 1;
+            workers[i] = new Thread(TAG + "-" + i) {
+                @Override
+                public void run() {
+                    runWorker(self);
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Returns the scheduler shared by the game, with as many threads as there are cores.
+     *
+     * @return The default job scheduler.
+     */
+    public static synchronized JobScheduler getDefault() {
+        if (defaultScheduler == null) {
+            defaultScheduler = new JobScheduler(Runtime.getRuntime().availableProcessors());
+            Log.d(TAG, "Created a scheduler with " + defaultScheduler.getParallelism() + " threads");
+        }
+
+        return defaultScheduler;
+    }
+
+    /**
+     * Returns how many threads run the jobs, including the thread calling {@link #run()}.
+     *
+     * @return The scheduler's parallelism.
+     */
+    public int getParallelism() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Returns how many bytes the worker threads allocated while the allocations were
+     * counted by {@link br.com.oncipriani.mygame.profiling.AllocationCounter}. The jobs
+     * run by the thread calling {@link #run()} are not included. Every job of the last
+     * tick is included once {@link #run()} returns.
+     *
+     * @return The number of bytes allocated by the worker threads.
+     */
+    public long getWorkerAllocatedBytes() {
+        return AllocationCounter.sum(workerAllocatedBytes);
+    }
+
+    /**
+     * Adds a job to the current tick, after every job submitted before it that
+     * touches the same data. Must be called by the thread calling {@link #run()}.
+     *
+     * @param job The job to be run.
+     * @throws java.lang.IllegalStateException if there are too many jobs on the tick.
+     */
+    public void submit(Job job) {
+        if (jobCount == MAX_JOBS) throw new IllegalStateException("Too many jobs on a single tick!");
+
+        final int index = jobCount++;
+        jobs[index] = job;
+        dependentCounts[index] = 0;
+        dependencyCounts[index] = 0;
+
+        for (int i = 0; i < index; i++) {
+            if (job.dependsOn(jobs[i])) {
+                dependents[i][dependentCounts[i]++] = index;
+                dependencyCounts[index]++;
+            }
+        }
+    }
+
+    /**
+     * Runs every job submitted for the tick, returning when all of them are done.
+     * The scheduler is then ready for the jobs of the next tick.
+     *
+     * @throws java.lang.RuntimeException if a job failed (the first failure is rethrown).
+     */
+    public void run() {
+        final int count = jobCount;
+        if (count == 0) return;
+
+        try {
+            if (workers.length == 0) {
+                // Jobs are always submitted after the ones they depend on
+                for (int i = 0; i < count; i++) runJob(jobs[i]);
+            } else {
+                synchronized (this) {
+                    for (int i = 0; i < deques.length; i++) deques[i].clear();
+
+                    failure = null;
+                    completedJobs.set(0);
+                    tickJobCount = count;
+
+                    // Every counter is reset before the first push, since a worker finishing the last
+                    // tick may take a job as soon as it is pushed
+                    for (int i = 0; i < count; i++) remainingDependencies.set(i, dependencyCounts[i]);
+
+                    // Spread the jobs that are ready right away, so every thread starts at once
+                    int ready = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (dependencyCounts[i] == 0) deques[ready++ % deques.length].push(i);
+                    }
+
+                    generation++;
+                    notifyAll();
+                }
+
+                work(0);
+                if (failure != null) throw failure;
+            }
+        } finally {
+            for (int i = 0; i < count; i++) jobs[i] = null;
+            jobCount = 0;
+        }
+    }
+
+    /**
+     * Stops the worker threads once they are done with the current tick.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits for ticks and helps running their jobs until the scheduler is shut down.
+     *
+     * @param self The index of the thread's deque.
+     */
+    private void runWorker(int self) {
+        int seenGeneration = 0;
+
+        while (true) {
+            synchronized (this) {
+                while (!isShutdown && generation == seenGeneration) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Worker interrupted while waiting for a tick", e);
+                    }
+                }
+                if (isShutdown) return;
+
+                seenGeneration = generation;
+            }
+
+            work(self);
+        }
+    }
+
+    /**
+     * Runs ready jobs, its own first and then stolen ones, until every job of the tick is done.
+     *
+     * @param self The index of the thread's deque.
+     */
+    private void work(int self) {
+        int index;
+
+        while (completedJobs.get() < tickJobCount) {
+            index = deques[self].pop();
+            if (index < 0) index = steal(self);
+            if (index < 0) {
+                Thread.yield();
+                continue;
+            }
+
+            try {
+                runJob(jobs[index]);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            // Published before the job is marked as done, so the tick's barrier sees it
+            if (self > 0) AllocationCounter.publish(workerAllocatedBytes, self - 1);
+
+            // The jobs waiting only for this one are now ready
+            for (int i = 0; i < dependentCounts[index]; i++) {
+                if (remainingDependencies.decrementAndGet(dependents[index][i]) == 0) {
+                    deques[self].push(dependents[index][i]);
+                }
+            }
+            completedJobs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Steals a ready job from another thread.
+     *
+     * @param self The index of the thread's deque.
+     * @return The job's index or -1 if no job is ready.
+     */
+    private int steal(int self) {
+        int index;
+
+        for (int i = 1; i < deques.length; i++) {
+            index = deques[(self + i) % deques.length].steal();
+            if (index >= 0) return index;
+        }
+
+        return -1;
+    }
+
+    private static void runJob(Job job) {
+        Tracer.begin(job.traceName);
+        try {
+            job.run();
+        } finally {
+            Tracer.end(job.traceName);
+        }
+    }
+}
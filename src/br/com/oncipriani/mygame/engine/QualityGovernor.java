@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+/**
+ * This class chooses the quality of the effects drawn by the game, so the frame
+ * budget can be held on slow devices and during busy moments.
+ * <p>
+ * The governor keeps a moving average of how long each frame takes to be updated
+ * and drawn. It steps down one tier as soon as the average gets close to the budget
+ * and only steps back up after the average stayed well below the budget for a while.
+ * After every change it waits for the average to settle, so the tiers don't oscillate.
+ * </p>
+ */
+public final class QualityGovernor {
+    // The quality tiers, from the best to the fastest
+    public static final int TIER_HIGH = 0;
+    public static final int TIER_MEDIUM = 1;
+    public static final int TIER_LOW = 2;
+
+    // Weight of the last frame on the moving average
+    private static final double SMOOTHING = 0.1;
+
+    // The average frame time, relative to the budget, that makes us step down and up
+    private static final double STEP_DOWN_RATIO = 0.9;
+    private static final double STEP_UP_RATIO = 0.5;
+
+    // How many frames we wait after a change and how long we need headroom before stepping up
+    private static final int SETTLE_FRAMES = 50;
+    private static final int STEP_UP_FRAMES = 150;
+
+    private final long budgetNanos;
+    private double averageNanos;
+    private int tier;
+
+    private int framesSinceChange;
+    private int framesWithHeadroom;
+
+    /**
+     * Constructs a new quality governor.
+     *
+     * @param budgetNanos How long each frame can take to be updated and drawn, in nanoseconds.
+     * @param tier        The starting tier, one of the <code>TIER_*</code> constants.
+     */
+    public QualityGovernor(long budgetNanos, int tier) {
+        this.budgetNanos = budgetNanos;
+        this.tier = tier;
+    }
+
+    /**
+     * Records how long the last frame took and updates the quality tier if needed.
+     *
+     * @param frameNanos How long the frame took to be updated and drawn, in nanoseconds.
+     * @return <code>true</code> if the quality tier changed.
+     */
+    public boolean recordFrame(long frameNanos) {
+        if (averageNanos == 0) {
+            averageNanos = frameNanos;
+        } else {
+            averageNanos += (frameNanos - averageNanos) * SMOOTHING;
+        }
+
+        // Give the average some time to reflect the last change
+        if (framesSinceChange < SETTLE_FRAMES) {
+            framesSinceChange++;
+            return false;
+        }
+
+        if (averageNanos > budgetNanos * STEP_DOWN_RATIO) {
+            framesWithHeadroom = 0;
+            if (tier < TIER_LOW) return setTier(tier + 1);
+        } else if (averageNanos < budgetNanos * STEP_UP_RATIO) {
+            framesWithHeadroom++;
+            if (framesWithHeadroom >= STEP_UP_FRAMES && tier > TIER_HIGH) return setTier(tier - 1);
+        } else {
+            framesWithHeadroom = 0;
+        }
+
+        return false;
+    }
+
+    private boolean setTier(int tier) {
+        this.tier = tier;
+        framesSinceChange = 0;
+        framesWithHeadroom = 0;
+        return true;
+    }
+
+    /**
+     * Returns the current quality tier.
+     *
+     * @return One of the <code>TIER_*</code> constants.
+     */
+    public int getTier() {
+        return tier;
+    }
+
+    /**
+     * Returns the moving average of the frame time.
+     *
+     * @return The average frame time, in nanoseconds.
+     */
+    public long getAverageNanos() {
+        return (long) averageNanos;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps the recent history of a game state in memory, so any of the
+ * retained ticks can be restored (to rewind the game or to debug it).
+ * <p>
+ * Each tick is recorded as a snapshot written by {@link GameState#writeSnapshot(java.nio.ByteBuffer)}.
+ * Storing every snapshot would take too much memory, so only one in every few ticks is
+ * stored in full (a keyframe). The other ticks are stored as the difference to the tick
+ * before them: the snapshot is read as 32 bit words, XORed with the previous words, and
+ * only the words that changed are written, as varints, along with how many unchanged
+ * words were skipped. Since most of the world is the same from one tick to the next,
+ * the deltas are usually a small fraction of a snapshot.
+ * </p>
+ * <p>
+ * The frames are kept on a single ring of bytes, so recording does not create objects.
+ * When the ring is full the oldest frames are dropped, always keeping a keyframe as the
+ * oldest frame. Restoring a tick decodes at most one keyframe and the deltas after it,
+ * so it takes bounded time, and stepping forwards from the last restored tick only
+ * decodes the deltas in between (unless there is a keyframe closer to the target).
+ * </p>
+ */
+public final class RewindBuffer {
+    // The bytes holding the frames and where the next frame will be written
+    private final byte[] arena;
+    private int arenaHead;
+
+    // The frames, on a ring ordered by their ticks
+    private final int frameCapacity;
+    private final long[] frameTicks;
+    private final int[] frameOffsets;
+    private final int[] frameLengths;
+    private final int[] frameSizes;
+    private final boolean[] frameIsKeyframe;
+    private int firstFrame;
+    private int frameCount;
+
+    // How often the frames are stored in full
+    private final int keyframeInterval;
+    private int framesSinceKeyframe;
+
+    // The words of the last recorded snapshot and of the one being recorded
+    private final int maxSnapshotSize;
+    private int[] previousWords;
+    private int previousWordCount;
+    private int[] currentWords;
+    private boolean hasPrevious;
+
+    // The words of the last restored tick
+    private final int[] cursorWords;
+    private int cursorSize;
+    private long cursorTick = -1;
+
+    // Where the frames are encoded before being copied to the arena
+    private final byte[] scratch;
+
+    /**
+     * Constructs a new, empty, rewind buffer.
+     *
+     * @param frameCapacity    The maximum number of ticks retained.
+     * @param arenaSize        How many bytes are used to store the frames.
+     * @param maxSnapshotSize  The size of the largest snapshot that will be recorded, in bytes.
+     * @param keyframeInterval How often (in ticks) a snapshot is stored in full.
+     */
+    public RewindBuffer(int frameCapacity, int arenaSize, int maxSnapshotSize, int keyframeInterval) {
+        this.frameCapacity = frameCapacity;
+        this.maxSnapshotSize = maxSnapshotSize;
+        this.keyframeInterval = keyframeInterval;
+
+        arena = new byte[arenaSize];
+        frameTicks = new long[frameCapacity];
+        frameOffsets = new int[frameCapacity];
+        frameLengths = new int[frameCapacity];
+        frameSizes = new int[frameCapacity];
+        frameIsKeyframe = new boolean[frameCapacity];
+
+        final int maxWords = (maxSnapshotSize + 3) / 4;
+        previousWords = new int[maxWords];
+        currentWords = new int[maxWords];
+        cursorWords = new int[maxWords];
+
+        // A delta takes at most two 5 byte varints per word
+        scratch = new byte[Math.max(maxSnapshotSize, maxWords * 10)];
+    }
+
+    /**
+     * Records the snapshot of a tick. Ticks must be recorded in increasing order;
+     * recording a tick that is not newer than the newest retained one drops every
+     * tick from it on (e.g. when the game continues after being rewound).
+     *
+     * @param tick     The tick of the snapshot.
+     * @param snapshot The snapshot, from its position to its limit. The position is not changed.
+     * @throws java.lang.IllegalArgumentException if the snapshot is larger than the maximum size.
+     */
+    public void record(long tick, ByteBuffer snapshot) {
+        final int size = snapshot.remaining();
+        if (size > maxSnapshotSize) throw new IllegalArgumentException("Snapshot is too large");
+
+        if (frameCount > 0 && tick <= getNewestTick()) {
+            truncate(tick);
+            hasPrevious = false;
+        }
+
+        // Read the snapshot as words, padding the last one with zeros
+        final int wordCount = (size + 3) / 4;
+        final int position = snapshot.position();
+        for (int i = 0; i < wordCount; i++) currentWords[i] = 0;
+        for (int i = 0; i < size; i++) currentWords[i >> 2] |= (snapshot.get(position + i) & 0xFF) << (24 - ((i & 3) << 3));
+
+        // Store a delta, unless it's time for a keyframe or the delta would not be any smaller
+        boolean isKeyframe = !hasPrevious || framesSinceKeyframe >= keyframeInterval - 1;
+        int length = 0;
+        if (!isKeyframe) {
+            length = encodeDelta(wordCount);
+            if (length >= size) isKeyframe = true;
+        }
+
+        if (isKeyframe) {
+            for (int i = 0; i < size; i++) scratch[i] = snapshot.get(position + i);
+            length = size;
+        }
+
+        int offset = allocate(length);
+
+        // The delta can't be decoded if the frames before it were all dropped
+        if (!isKeyframe && frameCount == 0) {
+            isKeyframe = true;
+            for (int i = 0; i < size; i++) scratch[i] = snapshot.get(position + i);
+            length = size;
+            offset = allocate(length);
+        }
+
+        System.arraycopy(scratch, 0, arena, offset, length);
+        arenaHead = offset + length;
+
+        final int slot = (firstFrame + frameCount) % frameCapacity;
+        frameTicks[slot] = tick;
+        frameOffsets[slot] = offset;
+        frameLengths[slot] = length;
+        frameSizes[slot] = size;
+        frameIsKeyframe[slot] = isKeyframe;
+        frameCount++;
+
+        framesSinceKeyframe = isKeyframe ? 0 : framesSinceKeyframe + 1;
+
+        // The snapshot becomes the base of the next delta
+        final int[] words = previousWords;
+        previousWords = currentWords;
+        currentWords = words;
+        previousWordCount = wordCount;
+        hasPrevious = true;
+    }
+
+    /**
+     * Restores the snapshot of a retained tick.
+     *
+     * @param tick     The tick to be restored.
+     * @param snapshot The buffer where the snapshot is written. It is cleared before and flipped after.
+     * @return <code>true</code> if the tick was restored, <code>false</code> if it is not retained.
+     */
+    public boolean seek(long tick, ByteBuffer snapshot) {
+        final int target = findFrame(tick);
+        if (target < 0) return false;
+
+        // Find the last keyframe at or before the target
+        int keyframe = target;
+        while (!frameIsKeyframe[slot(keyframe)]) keyframe--;
+
+        // Continue from the last restored tick if we are moving forwards and it is past that keyframe
+        int index = cursorTick >= 0 && cursorTick <= tick ? findFrame(cursorTick) : -1;
+        if (index < keyframe) {
+            index = keyframe;
+            decodeFrame(index);
+        }
+
+        while (index < target) {
+            index++;
+            decodeFrame(index);
+        }
+        cursorTick = tick;
+
+        // Write the words back as bytes
+        snapshot.clear();
+        for (int i = 0; i < cursorSize; i++) snapshot.put((byte) (cursorWords[i >> 2] >>> (24 - ((i & 3) << 3))));
+        snapshot.flip();
+
+        return true;
+    }
+
+    /**
+     * Drops every retained tick.
+     */
+    public void clear() {
+        firstFrame = 0;
+        frameCount = 0;
+        arenaHead = 0;
+        hasPrevious = false;
+        cursorTick = -1;
+    }
+
+    /**
+     * Returns how many ticks are retained.
+     *
+     * @return The number of ticks retained.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the oldest tick that can be restored.
+     *
+     * @return The oldest retained tick or <code>-1</code> if there is none.
+     */
+    public long getOldestTick() {
+        return frameCount == 0 ? -1 : frameTicks[slot(0)];
+    }
+
+    /**
+     * Returns the newest tick that can be restored.
+     *
+     * @return The newest retained tick or <code>-1</code> if there is none.
+     */
+    public long getNewestTick() {
+        return frameCount == 0 ? -1 : frameTicks[slot(frameCount - 1)];
+    }
+
+    private int slot(int index) {
+        return (firstFrame + index) % frameCapacity;
+    }
+
+    /**
+     * Finds a tick using a binary search.
+     *
+     * @param tick The tick to be found.
+     * @return The index of the tick's frame or <code>-1</code> if it is not retained.
+     */
+    private int findFrame(long tick) {
+        int low = 0;
+        int high = frameCount - 1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final long middleTick = frameTicks[slot(middle)];
+
+            if (middleTick < tick) {
+                low = middle + 1;
+            } else if (middleTick > tick) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds where a frame will be written on the arena, dropping the oldest frames
+     * to make room for it.
+     *
+     * @param length The size of the frame in bytes.
+     * @return The offset of the frame on the arena.
+     */
+    private int allocate(int length) {
+        if (length > arena.length) throw new IllegalArgumentException("Frame is larger than the arena");
+
+        int offset = arenaHead;
+        if (offset + length > arena.length) {
+            // Wrap around, dropping the frames at the end of the arena (which are the oldest ones)
+            while (frameCount > 0 && frameOffsets[slot(0)] >= offset) dropOldest();
+            offset = 0;
+        }
+
+        // Drop the frames that would be overwritten
+        while (frameCount > 0 && (frameCount == frameCapacity || overlaps(slot(0), offset, length))) dropOldest();
+
+        // The oldest frame must always be a keyframe
+        while (frameCount > 0 && !frameIsKeyframe[slot(0)]) dropOldest();
+
+        return offset;
+    }
+
+    private boolean overlaps(int slot, int offset, int length) {
+        final int frameOffset = frameOffsets[slot];
+        return frameOffset < offset + length && offset < frameOffset + frameLengths[slot];
+    }
+
+    private void dropOldest() {
+        firstFrame = (firstFrame + 1) % frameCapacity;
+        frameCount--;
+    }
+
+    /**
+     * Drops every frame from a tick on.
+     *
+     * @param tick The first tick to be dropped.
+     */
+    private void truncate(long tick) {
+        int slot;
+        while (frameCount > 0 && frameTicks[slot = slot(frameCount - 1)] >= tick) {
+            arenaHead = frameOffsets[slot];
+            frameCount--;
+        }
+
+        if (cursorTick >= tick) cursorTick = -1;
+    }
+
+    /**
+     * Encodes the difference between the current and the previous words on the scratch buffer.
+     *
+     * @param wordCount The number of current words.
+     * @return The length of the encoded delta.
+     */
+    private int encodeDelta(int wordCount) {
+        int length = 0;
+        int skipped = 0;
+        int difference;
+
+        for (int i = 0; i < wordCount; i++) {
+            difference = currentWords[i] ^ (i < previousWordCount ? previousWords[i] : 0);
+            if (difference == 0) {
+                skipped++;
+            } else {
+                length = writeVarint(skipped, length);
+                length = writeVarint(difference, length);
+                skipped = 0;
+            }
+        }
+        if (skipped > 0) length = writeVarint(skipped, length);
+
+        return length;
+    }
+
+    private int writeVarint(int value, int offset) {
+        while ((value & ~0x7F) != 0) {
+            scratch[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[offset++] = (byte) value;
+
+        return offset;
+    }
+
+    /**
+     * Applies a frame to the cursor words. Keyframes replace them and deltas are
+     * XORed with them.
+     *
+     * @param index The index of the frame.
+     */
+    private void decodeFrame(int index) {
+        final int slot = slot(index);
+        final int size = frameSizes[slot];
+        final int wordCount = (size + 3) / 4;
+        int offset = frameOffsets[slot];
+
+        if (frameIsKeyframe[slot]) {
+            for (int i = 0; i < wordCount; i++) cursorWords[i] = 0;
+            for (int i = 0; i < size; i++) cursorWords[i >> 2] |= (arena[offset + i] & 0xFF) << (24 - ((i & 3) << 3));
+        } else {
+            // The words after the end of the previous snapshot start from zero
+            for (int i = (cursorSize + 3) / 4; i < wordCount; i++) cursorWords[i] = 0;
+
+            final int end = offset + frameLengths[slot];
+            int position = 0;
+            int value, shift;
+            while (offset < end) {
+                // Read how many words were skipped ...
+                value = 0;
+                shift = 0;
+                do {
+                    value |= (arena[offset] & 0x7F) << shift;
+                    shift += 7;
+                } while ((arena[offset++] & 0x80) != 0);
+
+                position += value;
+                if (position >= wordCount) break;
+
+                // ... and the difference of the next word
+                value = 0;
+                shift = 0;
+                do {
+                    value |= (arena[offset] & 0x7F) << shift;
+                    shift += 7;
+                } while ((arena[offset++] & 0x80) != 0);
+
+                cursorWords[position] ^= value;
+                position++;
+            }
+        }
+
+        cursorSize = size;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.graphics.Bitmap;
+
+/**
+ * This class gives every bitmap drawn by the game a small integer identifier, so
+ * display lists can refer to sprites using primitive arrays only.
+ * <p>
+ * Sprites are registered by the game thread and looked up by the render thread,
+ * which may still be drawing a display list recorded a few frames ago. Because of
+ * that, bitmaps must not be recycled directly: {@link #recycle(android.graphics.Bitmap)}
+ * retires them, and they are only recycled by {@link #advance(long, long)} once the
+ * render thread has finished every display list that could refer to them.
+ * </p>
+ * <p>
+ * Only the game thread may register, retire or advance. The render thread only calls
+ * {@link #get(int)}, and sees the registered bitmaps because they are published along
+ * with the display lists by the {@link TripleBuffer}.
+ * </p>
+ */
+public final class SpriteRegistry {
+    // Maximum number of sprites registered at the same time
+    private static final int CAPACITY = 64;
+
+    private static final Bitmap[] sprites = new Bitmap[CAPACITY];
+
+    // Frame being recorded when each sprite was retired, or -1 if it is still in use
+    private static final long[] retiredFrames = new long[CAPACITY];
+
+    // The display list currently being recorded by the game thread
+    private static long recordingFrame;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) retiredFrames[i] = -1;
+    }
+
+    private SpriteRegistry() {
+    }
+
+    /**
+     * Returns the identifier of a bitmap, registering it if necessary.
+     *
+     * @param bitmap The bitmap to be drawn.
+     * @return The sprite identifier.
+     * @throws java.lang.IllegalStateException if there are too many sprites registered.
+     */
+    public static int register(Bitmap bitmap) {
+        int free = -1;
+
+        for (int i = 0; i < CAPACITY; i++) {
+            if (sprites[i] == bitmap && retiredFrames[i] < 0) return i;
+            if (free < 0 && sprites[i] == null) free = i;
+        }
+
+        if (free < 0) throw new IllegalStateException("Too many sprites registered!");
+
+        sprites[free] = bitmap;
+        return free;
+    }
+
+    /**
+     * Returns the bitmap of a sprite.
+     *
+     * @param id The sprite identifier.
+     * @return The sprite's bitmap.
+     */
+    public static Bitmap get(int id) {
+        return sprites[id];
+    }
+
+    /**
+     * Retires a bitmap, which is recycled as soon as no display list still being
+     * drawn may refer to it. The bitmap must not be drawn from now on.
+     *
+     * @param bitmap The bitmap to be recycled.
+     */
+    public static void recycle(Bitmap bitmap) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (sprites[i] == bitmap && retiredFrames[i] < 0) {
+                retiredFrames[i] = recordingFrame;
+                return;
+            }
+        }
+
+        // Never drawn, so nobody else may be using it
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles the bitmaps no longer used by the render thread and informs which
+     * display list the game thread is about to record.
+     *
+     * @param recordingFrame The sequence number of the display list being recorded.
+     * @param renderedFrame  The sequence number of the last display list the render thread is done with.
+     */
+    public static void advance(long recordingFrame, long renderedFrame) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (retiredFrames[i] >= 0 && retiredFrames[i] <= renderedFrame) {
+                sprites[i].recycle();
+                sprites[i] = null;
+                retiredFrames[i] = -1;
+            }
+        }
+
+        SpriteRegistry.recordingFrame = recordingFrame;
+    }
+}
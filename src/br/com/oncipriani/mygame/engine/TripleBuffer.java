@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class implements a lock-free triple buffer between a single producer and a
+ * single consumer. The producer always has a buffer of its own to write to, and the
+ * consumer always reads the newest buffer published, so neither of them ever waits
+ * for the other. Intermediate buffers are dropped if the consumer falls behind.
+ * <p>
+ * The three buffers rotate between the producer (back), the consumer (front) and
+ * the one in the middle, whose index is swapped atomically along with a flag telling
+ * if it holds a buffer the consumer has not seen yet.
+ * </p>
+ *
+ * @param <T> The type of the buffers.
+ */
+public final class TripleBuffer<T> {
+    // Set on the middle index when it was published and not consumed yet
+    private static final int FLAG_NEW = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Object[] buffers = new Object[3];
+
+    // Owned by the producer and by the consumer, respectively
+    private int backIndex = 0;
+    private int frontIndex = 1;
+
+    private final AtomicInteger middle = new AtomicInteger(2);
+
+    /**
+     * Constructs a new triple buffer.
+     *
+     * @param first  One of the three buffers.
+     * @param second One of the three buffers.
+     * @param third  One of the three buffers.
+     */
+    public TripleBuffer(T first, T second, T third) {
+        buffers[0] = first;
+        buffers[1] = second;
+        buffers[2] = third;
+    }
+
+    /**
+     * Returns the buffer the producer may write to. Must be called by the producer only.
+     *
+     * @return The back buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public T getBackBuffer() {
+        return (T) buffers[backIndex];
+    }
+
+    /**
+     * Publishes the back buffer, making it the newest buffer available to the consumer.
+     * Must be called by the producer only.
+     */
+    public void publish() {
+        backIndex = middle.getAndSet(backIndex | FLAG_NEW) & INDEX_MASK;
+    }
+
+    /**
+     * Takes the newest buffer published, if there is one the consumer has not seen yet.
+     * Must be called by the consumer only.
+     *
+     * @return The newest buffer or <code>null</code> if nothing was published since the last call.
+     */
+    @SuppressWarnings("unchecked")
+    public T swapFront() {
+        if ((middle.get() & FLAG_NEW) == 0) return null;
+
+        frontIndex = middle.getAndSet(frontIndex) & INDEX_MASK;
+        return (T) buffers[frontIndex];
+    }
+}
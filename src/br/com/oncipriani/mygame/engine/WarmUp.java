@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.graphics.Canvas;
+import android.util.Log;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+import java.util.Random;
+
+/**
+ * This class runs the game for a short while before the first interactive frame,
+ * drawing on an offscreen canvas and swiping across the screen. This way the code
+ * of the hot paths gets compiled and the object pools and lazily initialized caches
+ * get filled before the player can notice the stutter.
+ */
+public final class WarmUp {
+    private static final String TAG = WarmUp.class.getSimpleName();
+
+    // Names of the spans on the trace
+    private static final int TRACE_WARM_UP = Tracer.registerName("WarmUp.run");
+
+    // Metrics published by the warm-up
+    private static final int METRIC_TICKS = Metrics.registerGauge("warmup.ticks");
+    private static final int METRIC_TIME = Metrics.registerGauge("warmup.time_ms");
+    private static final int METRIC_FIRST_TICK = Metrics.registerGauge("warmup.first_tick_us");
+    private static final int METRIC_LAST_TICK = Metrics.registerGauge("warmup.last_tick_us");
+
+    // How many ticks are averaged to compare the start and the end of the warm-up
+    private static final int SAMPLE_TICKS = 10;
+
+    // How often (in ticks) a swipe is made
+    private static final int SWIPE_PERIOD = 4;
+
+    /**
+     * Tells the warm-up when it must stop before its budget is over.
+     */
+    public interface Cancellation {
+        /**
+         * Returns if the warm-up must stop right away (e.g. the surface is gone and
+         * someone is waiting for the game thread). Called once per tick.
+         *
+         * @return <code>true</code> to stop the warm-up.
+         */
+        boolean isCancelled();
+    }
+
+    private WarmUp() {
+    }
+
+    /**
+     * Updates and draws the game states until the time budget or the tick limit is
+     * reached, swiping horizontally across the screen at random heights. The average
+     * tick time at the start and at the end of the warm-up is published as metrics,
+     * showing how much faster the game became. Nothing the warm-up counts (stars hit,
+     * spawned, etc.) or presents is kept, since the player did not touch anything yet.
+     *
+     * @param gameStateManager The game states to be run, already initialized. They should be thrown away afterwards.
+     * @param canvas           The offscreen canvas where the game states are drawn.
+     * @param budgetMillis     For how long the warm-up may run, in milliseconds.
+     * @param maxTicks         How many ticks the warm-up may run.
+     * @param cancellation     Checked before every tick, stops the warm-up early when cancelled.
+     * @return The number of ticks run.
+     */
+    public static int run(GameStateManager gameStateManager, Canvas canvas, long budgetMillis, int maxTicks,
+                          Cancellation cancellation) {
+        final Random random = new Random(0);
+        final DisplayList displayList = new DisplayList();
+        final int width = canvas.getWidth();
+        final int height = canvas.getHeight();
+
+        long firstTicksTime = 0;
+        long lastTicksTime = 0;
+        long tickStartTime, tickTime;
+        int posY;
+
+        // The counters are set back to these values once the throwaway game is done
+        final Metrics.Snapshot counters = Metrics.snapshot(new Metrics.Snapshot());
+
+        Tracer.begin(TRACE_WARM_UP);
+        final long startTime = System.nanoTime();
+        final long endTime = startTime + budgetMillis * 1000000L;
+
+        int ticks = 0;
+        while (ticks < maxTicks && (tickStartTime = System.nanoTime()) < endTime && !cancellation.isCancelled()) {
+            if (ticks % SWIPE_PERIOD == 0) {
+                posY = random.nextInt(height);
+                gameStateManager.handleActionMove(0, posY, width, posY, 0);
+            }
+            gameStateManager.update();
+            displayList.reset(ticks);
+            gameStateManager.draw(displayList);
+            displayList.draw(canvas);
+
+            // Sum the first ticks and keep a decaying sum (about the last SAMPLE_TICKS) of the latest ones
+            tickTime = System.nanoTime() - tickStartTime;
+            if (ticks < SAMPLE_TICKS) firstTicksTime += tickTime;
+            lastTicksTime = lastTicksTime - lastTicksTime / SAMPLE_TICKS + tickTime;
+
+            ticks++;
+        }
+
+        final long time = (System.nanoTime() - startTime) / 1000000;
+        Tracer.end(TRACE_WARM_UP);
+
+        // The display lists are drawn right away and never posted, so only the counters are left to discard
+        Metrics.restoreCounters(counters);
+
+        final int firstSamples = Math.min(ticks, SAMPLE_TICKS);
+        if (firstSamples > 0) {
+            final long firstTickMicros = firstTicksTime / firstSamples / 1000;
+            final long lastTickMicros = lastTicksTime / SAMPLE_TICKS / 1000;
+
+            Metrics.set(METRIC_FIRST_TICK, firstTickMicros);
+            Metrics.set(METRIC_LAST_TICK, lastTickMicros);
+            Log.d(TAG, "Warmed up for " + ticks + " ticks (" + time + " ms), ticks went from " + firstTickMicros +
+                    " us to " + lastTickMicros + " us");
+        }
+
+        Metrics.set(METRIC_TICKS, ticks);
+        Metrics.set(METRIC_TIME, time);
+
+        return ticks;
+    }
+}
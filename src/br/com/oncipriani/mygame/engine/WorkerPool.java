@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.util.Log;
+import br.com.oncipriani.mygame.profiling.AllocationCounter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class runs data-parallel loops on a fixed set of worker threads. The range of
+ * a loop is split into chunks, which are claimed by the workers and by the calling
+ * thread itself until there are none left, so the call returns as soon as the whole
+ * range was processed.
+ * <p>
+ * It plays the role of a <code>ForkJoinPool</code> (which is not available on the
+ * Android versions we support) for the flat loops of the game. Running a loop does
+ * not create any objects: the tasks are meant to be preallocated and reused.
+ * </p>
+ * <p>
+ * Only one loop runs on the pool at a time: a loop started while another one is
+ * running (e.g. by two jobs of the {@link JobScheduler}) runs inline on the thread
+ * that started it. On single core devices every loop runs inline.
+ * </p>
+ */
+public final class WorkerPool {
+    private static final String TAG = WorkerPool.class.getSimpleName();
+
+    /**
+     * A loop body processing a range of indices.
+     */
+    public interface Task {
+        /**
+         * Processes the indices from <code>start</code> (inclusive) to <code>end</code> (exclusive).
+         * Different ranges may be processed at the same time by different threads.
+         *
+         * @param start The first index of the range.
+         * @param end   The index after the last one of the range.
+         */
+        void run(int start, int end);
+    }
+
+    // The pool shared by the game, created when first needed
+    private static WorkerPool defaultPool;
+
+    private final Thread[] workers;
+
+    // Bytes allocated by each worker, published after every chunk while the allocations are counted
+    private final AtomicLongArray workerAllocatedBytes;
+
+    // The loop being run, published to the workers by the pool's lock
+    private Task task;
+    private int count;
+    private int grainSize;
+    private int chunkCount;
+    private int generation;
+    private boolean isShutdown;
+
+    // The loop's generation (high bits) and the next chunk to be claimed (low bits)
+    private final AtomicLong nextChunk = new AtomicLong();
+    private final AtomicInteger pendingChunks = new AtomicInteger();
+    private volatile RuntimeException failure;
+    private final AtomicBoolean isBusy = new AtomicBoolean();
+
+    /**
+     * Constructs a new worker pool.
+     *
+     * @param parallelism How many threads run each loop, including the calling thread.
+     */
+    public WorkerPool(int parallelism) {
+        workers = new Thread[Math.max(0, parallelism - 1)];
+        workerAllocatedBytes = new AtomicLongArray(workers.length);
+
+        for (int i = 0; i < workers.length; i++) {
+            final int self = i;
+            workers[i] = new Thread(TAG + "-" + i) {
+                @Override
+                public void run() {
+                    runWorker(self);
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Returns the pool shared by the game, with as many threads as there are cores.
+     *
+     * @return The default worker pool.
+     */
+    public static synchronized WorkerPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new WorkerPool(Runtime.getRuntime().availableProcessors());
+            Log.d(TAG, "Created a pool of " + defaultPool.getParallelism() + " threads");
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Returns how many threads run each loop, including the calling thread.
+     *
+     * @return The pool's parallelism.
+     */
+    public int getParallelism() {
+        return workers.length + 1;
+    }
+
+    /**
+     * Returns how many bytes the worker threads allocated while the allocations were
+     * counted by {@link br.com.oncipriani.mygame.profiling.AllocationCounter}. The chunks
+     * run by the thread calling {@link #parallelFor(int, int, Task)} are not included.
+     * Every chunk of the last loop is included once the call returns.
+     *
+     * @return The number of bytes allocated by the worker threads.
+     */
+    public long getWorkerAllocatedBytes() {
+        return AllocationCounter.sum(workerAllocatedBytes);
+    }
+
+    /**
+     * Runs a loop over a range of indices, returning once every index was processed.
+     *
+     * @param count     How many indices are processed, starting at 0.
+     * @param grainSize How many indices are processed by each chunk.
+     * @param task      The loop body.
+     */
+    public void parallelFor(int count, int grainSize, Task task) {
+        if (count <= 0) return;
+
+        final int chunkCount = (count + grainSize - 1) / grainSize;
+        if (workers.length == 0 || chunkCount == 1 || !isBusy.compareAndSet(false, true)) {
+            task.run(0, count);
+            return;
+        }
+
+        try {
+            runLoop(count, grainSize, chunkCount, task);
+        } finally {
+            isBusy.set(false);
+        }
+    }
+
+    /**
+     * Runs a loop on the workers and on the calling thread.
+     *
+     * @param count      How many indices are processed, starting at 0.
+     * @param grainSize  How many indices are processed by each chunk.
+     * @param chunkCount How many chunks the loop has.
+     * @param task       The loop body.
+     */
+    private void runLoop(int count, int grainSize, int chunkCount, Task task) {
+        final int generation;
+        synchronized (this) {
+            this.task = task;
+            this.count = count;
+            this.grainSize = grainSize;
+            this.chunkCount = chunkCount;
+            generation = ++this.generation;
+
+            failure = null;
+            pendingChunks.set(chunkCount);
+            nextChunk.set((long) generation << 32);
+            notifyAll();
+        }
+
+        // Help with the loop, then wait for the chunks claimed by the workers (they are short)
+        runChunks(task, count, grainSize, chunkCount, generation, -1);
+        while (pendingChunks.get() > 0) Thread.yield();
+
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Stops the worker threads once they are done with the current loop.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits for loops and helps running them until the pool is shut down.
+     *
+     * @param self The index of the worker.
+     */
+    private void runWorker(int self) {
+        int seenGeneration = 0;
+        Task task;
+        int count, grainSize, chunkCount, generation;
+
+        while (true) {
+            synchronized (this) {
+                while (!isShutdown && this.generation == seenGeneration) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Worker interrupted while waiting for a loop", e);
+                    }
+                }
+                if (isShutdown) return;
+
+                task = this.task;
+                count = this.count;
+                grainSize = this.grainSize;
+                chunkCount = this.chunkCount;
+                generation = this.generation;
+            }
+
+            seenGeneration = generation;
+            runChunks(task, count, grainSize, chunkCount, generation, self);
+        }
+    }
+
+    /**
+     * Claims and runs the chunks of a loop until there are none left. A chunk is only
+     * claimed if the loop is still the current one, so a late worker never runs a
+     * chunk of the next loop with the task of the previous one.
+     *
+     * @param task       The loop body.
+     * @param count      How many indices are processed.
+     * @param grainSize  How many indices are processed by each chunk.
+     * @param chunkCount How many chunks the loop has.
+     * @param generation The loop's generation.
+     * @param self       The index of the worker or <code>-1</code> for the thread that started the loop.
+     */
+    private void runChunks(Task task, int count, int grainSize, int chunkCount, int generation, int self) {
+        long next;
+        int chunk, start;
+
+        while (true) {
+            next = nextChunk.get();
+            chunk = (int) next;
+            if ((int) (next >>> 32) != generation || chunk >= chunkCount) return;
+            if (!nextChunk.compareAndSet(next, next + 1)) continue;
+
+            start = chunk * grainSize;
+            try {
+                task.run(start, Math.min(start + grainSize, count));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            // Published before the chunk is marked as done, so the thread waiting for the loop sees it
+            if (self >= 0) AllocationCounter.publish(workerAllocatedBytes, self);
+            pendingChunks.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.engine;
+
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class writes and reads snapshots of the whole game world, so the game can
+ * be restored if Android kills the process while it is in the background.
+ * <p>
+ * A snapshot is a compact binary buffer: a header identifying the format and its
+ * version, followed by the state of each game state on the stack, written by the
+ * game states themselves. No reflection is used and no objects are created while
+ * writing, so the snapshot can be taken during {@link android.app.Activity#onSaveInstanceState(android.os.Bundle)}.
+ * </p>
+ */
+public final class WorldSnapshot {
+    private static final String TAG = WorldSnapshot.class.getSimpleName();
+
+    // Identifies the snapshots ("MGWS") and their format
+    private static final int MAGIC = 0x4D475753;
+    private static final int VERSION = 3;
+
+    private WorldSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of every game state to a buffer. The buffer is cleared
+     * before and flipped after, so the snapshot can be read from it right away.
+     *
+     * @param gameStateManager The game state manager holding the game states.
+     * @param buffer           The buffer where the snapshot is written.
+     * @throws java.nio.BufferOverflowException if the buffer is too small for the snapshot.
+     */
+    public static void write(GameStateManager gameStateManager, ByteBuffer buffer) {
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(VERSION);
+        gameStateManager.writeSnapshot(buffer);
+        buffer.flip();
+    }
+
+    /**
+     * Restores every game state from a snapshot. The game state manager must hold the
+     * same game states, already entered, that it held when the snapshot was written.
+     *
+     * @param gameStateManager The game state manager holding the game states.
+     * @param buffer           The buffer holding the snapshot.
+     * @return <code>true</code> if the snapshot was restored, <code>false</code> if it is not valid,
+     * in which case the game states may have been partially restored.
+     */
+    public static boolean read(GameStateManager gameStateManager, ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                Log.w(TAG, "Not a world snapshot");
+                return false;
+            }
+
+            if (buffer.getInt() != VERSION) {
+                Log.w(TAG, "Unsupported world snapshot version");
+                return false;
+            }
+
+            return gameStateManager.readSnapshot(buffer);
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated world snapshot", e);
+            return false;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Corrupted world snapshot", e);
+            return false;
+        }
+    }
+}
@@ -16,28 +16,25 @@
 
 package br.com.oncipriani.mygame.helpers;
 
-import java.util.Random;
-
 /**
  * This class implements methods for initializing and shuffling arrays using Fisher-Yates shuffle.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Fisher%E2%80%93Yates_shuffle">Fisher–Yates shuffle on Wikipedia</a>.
  */
 public final class FisherYates {
-    private static final Random RANDOM = new Random();
-
     /**
      * Initializes an array using Fisher-Yates shuffle ("inside out" version), that
      * is, an array of size <i>n</i> will have <i>n</i> unique elements on the interval
      * [<code>min</code>, <code>max</code>]. Please note that <code>max</code> will not
      * be present in the array unless <i>n</i> is a multiple of (<code>max</code> - <code>min</code>).
      *
-     * @param array The array to be initialized.
-     * @param max   The maximum value that will be in the array.
-     * @param min   The minimum value that will be in the array.
+     * @param array  The array to be initialized.
+     * @param max    The maximum value that will be in the array.
+     * @param min    The minimum value that will be in the array.
+     * @param random The generator that picks the positions of the elements.
      * @throws java.lang.IllegalArgumentException if the array is too big for the specified interval.
      */
-    public static void initialize(int[] array, int min, int max) {
+    public static void initialize(int[] array, int min, int max, XorShiftRandom random) {
         final int size = array.length;
         final int stepping = (max - min) / size;
 
@@ -46,7 +43,7 @@ public final class FisherYates {
 
         array[0] = min;
         for (int i = 1, j; i < size; i++) {
-            j = RANDOM.nextInt(i + 1);
+            j = random.nextInt(i + 1);
             array[i] = array[j];
             array[j] = (i * stepping) + min;
         }
@@ -55,13 +52,14 @@ public final class FisherYates {
     /**
      * Shuffles an array using Fisher-Yates shuffle.
      *
-     * @param array The array to be shuffled.
+     * @param array  The array to be shuffled.
+     * @param random The generator that picks the new order of the elements.
      */
-    public static void shuffle(int[] array) {
+    public static void shuffle(int[] array, XorShiftRandom random) {
         int temp;
 
         for (int i = array.length - 1, j; i >= 1; i--) {
-            j = RANDOM.nextInt(i + 1);
+            j = random.nextInt(i + 1);
             temp = array[j];
             array[j] = array[i];
             array[i] = temp;
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.helpers;
+
+/**
+ * This class implements a uniform grid used as a broad phase for collision queries.
+ * Items are identified by an integer (e.g. their index on a list) and are inserted
+ * using their bounding box. Segment queries walk only the cells crossed by the
+ * segment, so the cost of a query does not depend on the total number of items.
+ * <p>
+ * The grid is meant to be cleared and rebuilt whenever the items move. Its storage
+ * is kept between rebuilds, so no objects are created once it has grown large enough.
+ * </p>
+ *
+ * @see <a href="http://www.cse.yorku.ca/~amana/research/grid.pdf">A Fast Voxel Traversal Algorithm for Ray Tracing</a>.
+ */
+public final class SpatialGrid {
+    private static final int INITIAL_ENTRIES = 64;
+
+    private final int cellSize;
+    private int columns;
+    private int rows;
+
+    // First entry of every cell (or -1 if the cell is empty)
+    private int[] cellHeads;
+
+    // The entries of every cell, stored as singly linked lists
+    private int[] entryItems = new int[INITIAL_ENTRIES];
+    private int[] entryNext = new int[INITIAL_ENTRIES];
+    private int entryCount;
+
+    // Query stamps used to report each item only once per query
+    private int[] itemStamps = new int[INITIAL_ENTRIES];
+    private int queryStamp;
+
+    /**
+     * Constructs a new grid covering the specified area.
+     *
+     * @param cellSize The size of each (square) cell in pixels.
+     * @param width    The width of the area covered by the grid in pixels.
+     * @param height   The height of the area covered by the grid in pixels.
+     * @throws java.lang.IllegalArgumentException if <code>cellSize</code> is <= 0.
+     */
+    public SpatialGrid(int cellSize, int width, int height) {
+        if (cellSize <= 0) throw new IllegalArgumentException("The cell size must be greater than 0!");
+
+        this.cellSize = cellSize;
+        resize(width, height);
+    }
+
+    /**
+     * Changes the area covered by the grid. This also removes every item from the grid.
+     *
+     * @param width  The width of the area covered by the grid in pixels.
+     * @param height The height of the area covered by the grid in pixels.
+     */
+    public void resize(int width, int height) {
+        columns = Math.max(1, (width + cellSize - 1) / cellSize);
+        rows = Math.max(1, (height + cellSize - 1) / cellSize);
+
+        if (cellHeads == null || cellHeads.length < columns * rows) cellHeads = new int[columns * rows];
+
+        clear();
+    }
+
+    /**
+     * Removes every item from the grid.
+     */
+    public void clear() {
+        final int cellCount = columns * rows;
+        for (int i = 0; i < cellCount; i++) cellHeads[i] = -1;
+
+        entryCount = 0;
+    }
+
+    /**
+     * Inserts an item in every cell touched by its bounding box. Boxes that go beyond
+     * the area covered by the grid are clamped to its borders.
+     *
+     * @param item The item's identifier. Must be >= 0.
+     * @param minX Left side of the item's bounding box.
+     * @param minY Top side of the item's bounding box.
+     * @param maxX Right side of the item's bounding box.
+     * @param maxY Bottom side of the item's bounding box.
+     */
+    public void insert(int item, int minX, int minY, int maxX, int maxY) {
+        final int firstColumn = toColumn(minX);
+        final int lastColumn = toColumn(maxX);
+        final int firstRow = toRow(minY);
+        final int lastRow = toRow(maxY);
+
+        if (item >= itemStamps.length) {
+            final int[] stamps = new int[Math.max(item + 1, itemStamps.length * 2)];
+            System.arraycopy(itemStamps, 0, stamps, 0, itemStamps.length);
+            itemStamps = stamps;
+        }
+
+        int cell;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                if (entryCount == entryItems.length) growEntries();
+
+                cell = row * columns + column;
+                entryItems[entryCount] = item;
+                entryNext[entryCount] = cellHeads[cell];
+                cellHeads[cell] = entryCount;
+                entryCount++;
+            }
+        }
+    }
+
+    /**
+     * Finds every item whose cells are crossed by a segment. Each item is reported
+     * only once, but the results are only candidates: the caller must still test
+     * each one of them against the segment.
+     *
+     * @param startX     The segment's start on the X axis.
+     * @param startY     The segment's start on the Y axis.
+     * @param endX       The segment's end on the X axis.
+     * @param endY       The segment's end on the Y axis.
+     * @param candidates Receives the items found. Should be large enough to hold every item in the grid.
+     * @return The number of items written to <code>candidates</code>.
+     */
+    public int querySegment(int startX, int startY, int endX, int endY, int[] candidates) {
+        // Start a new query, resetting the stamps if the counter wraps around
+        queryStamp++;
+        if (queryStamp == Integer.MAX_VALUE) {
+            for (int i = itemStamps.length - 1; i >= 0; i--) itemStamps[i] = 0;
+            queryStamp = 1;
+        }
+
+        int column = toColumn(startX);
+        int row = toRow(startY);
+        final int lastColumn = toColumn(endX);
+        final int lastRow = toRow(endY);
+
+        final int deltaX = endX - startX;
+        final int deltaY = endY - startY;
+        final int stepX = deltaX > 0 ? 1 : -1;
+        final int stepY = deltaY > 0 ? 1 : -1;
+
+        // Distance (as a fraction of the segment) to the next cell border and between borders on each axis
+        float nextX = Float.POSITIVE_INFINITY, nextY = Float.POSITIVE_INFINITY;
+        float stepLengthX = Float.POSITIVE_INFINITY, stepLengthY = Float.POSITIVE_INFINITY;
+
+        if (deltaX != 0) {
+            final int border = (column + (deltaX > 0 ? 1 : 0)) * cellSize;
+            nextX = (float) (border - startX) / deltaX;
+            stepLengthX = (float) cellSize / Math.abs(deltaX);
+        }
+
+        if (deltaY != 0) {
+            final int border = (row + (deltaY > 0 ? 1 : 0)) * cellSize;
+            nextY = (float) (border - startY) / deltaY;
+            stepLengthY = (float) cellSize / Math.abs(deltaY);
+        }
+
+        int found = collect(row * columns + column, candidates, 0);
+
+        // Walk through every cell crossed by the segment
+        while (column != lastColumn || row != lastRow) {
+            if (nextX < nextY) {
+                column += stepX;
+                nextX += stepLengthX;
+            } else {
+                row += stepY;
+                nextY += stepLengthY;
+            }
+
+            // Stop if we left the grid (the end point was clamped to its borders)
+            if (column < 0 || column >= columns || row < 0 || row >= rows) break;
+
+            found = collect(row * columns + column, candidates, found);
+        }
+
+        return found;
+    }
+
+    /**
+     * Copies the items of a cell that were not reported yet on the current query.
+     *
+     * @param cell       The cell index.
+     * @param candidates The array receiving the items.
+     * @param found      How many items were already found.
+     * @return The new number of items found.
+     */
+    private int collect(int cell, int[] candidates, int found) {
+        int item;
+
+        for (int entry = cellHeads[cell]; entry >= 0; entry = entryNext[entry]) {
+            item = entryItems[entry];
+
+            if (itemStamps[item] != queryStamp) {
+                itemStamps[item] = queryStamp;
+                candidates[found++] = item;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Doubles the capacity of the entries arrays.
+     */
+    private void growEntries() {
+        final int capacity = entryItems.length * 2;
+        final int[] items = new int[capacity];
+        final int[] next = new int[capacity];
+
+        System.arraycopy(entryItems, 0, items, 0, entryCount);
+        System.arraycopy(entryNext, 0, next, 0, entryCount);
+
+        entryItems = items;
+        entryNext = next;
+    }
+
+    private int toColumn(int posX) {
+        return Math.min(columns - 1, Math.max(0, posX / cellSize));
+    }
+
+    private int toRow(int posY) {
+        return Math.min(rows - 1, Math.max(0, posY / cellSize));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.helpers;
+
+/**
+ * This class implements the sweep and prune broad phase on the X axis. Every object
+ * is represented by a proxy holding its bounding box, and the proxies are kept on a
+ * list sorted by the left side of their boxes. Since objects move only a little
+ * between ticks, the list is almost sorted at the beginning of every tick and an
+ * insertion sort brings it back in order in nearly linear time.
+ * <p>
+ * After sorting, a single pass over the list finds every pair of boxes overlapping
+ * on the X axis, and only those are checked on the Y axis. No objects are created
+ * once the internal arrays have grown large enough.
+ * </p>
+ *
+ * @see <a href="http://en.wikipedia.org/wiki/Sweep_and_prune">Sweep and prune on Wikipedia</a>.
+ */
+public final class SweepAndPrune {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // The bounding box of each proxy
+    private int[] minX = new int[INITIAL_CAPACITY];
+    private int[] minY = new int[INITIAL_CAPACITY];
+    private int[] maxX = new int[INITIAL_CAPACITY];
+    private int[] maxY = new int[INITIAL_CAPACITY];
+
+    // Proxies that are not in use are kept on a stack for reuse
+    private int[] freeProxies = new int[INITIAL_CAPACITY];
+    private int freeProxyCount;
+    private int proxyCapacity;
+
+    // Proxies in use, sorted by the left side of their boxes
+    private int[] sorted = new int[INITIAL_CAPACITY];
+    private int sortedCount;
+
+    // Overlapping pairs found by the last call to findPairs (two proxies per pair)
+    private int[] pairs = new int[INITIAL_CAPACITY * 2];
+    private int pairCount;
+
+    /**
+     * Creates a new proxy for an object with the specified bounding box.
+     *
+     * @param left   Left side of the object's bounding box.
+     * @param top    Top side of the object's bounding box.
+     * @param right  Right side of the object's bounding box.
+     * @param bottom Bottom side of the object's bounding box.
+     * @return The proxy's identifier.
+     */
+    public int createProxy(int left, int top, int right, int bottom) {
+        final int proxy;
+
+        if (freeProxyCount > 0) {
+            proxy = freeProxies[--freeProxyCount];
+        } else {
+            if (proxyCapacity == minX.length) growProxies();
+            proxy = proxyCapacity++;
+        }
+
+        minX[proxy] = left;
+        minY[proxy] = top;
+        maxX[proxy] = right;
+        maxY[proxy] = bottom;
+
+        // Insert the proxy on its place on the sorted list
+        if (sortedCount == sorted.length) sorted = grow(sorted, sortedCount);
+
+        int i = sortedCount - 1;
+        while (i >= 0 && minX[sorted[i]] > left) {
+            sorted[i + 1] = sorted[i];
+            i--;
+        }
+        sorted[i + 1] = proxy;
+        sortedCount++;
+
+        return proxy;
+    }
+
+    /**
+     * Removes a proxy, making its identifier available for reuse.
+     *
+     * @param proxy The proxy's identifier.
+     */
+    public void removeProxy(int proxy) {
+        // Remove the proxy from the sorted list, keeping it sorted
+        int i = 0;
+        while (i < sortedCount && sorted[i] != proxy) i++;
+        if (i == sortedCount) throw new IllegalArgumentException("Invalid proxy!");
+
+        sortedCount--;
+        System.arraycopy(sorted, i + 1, sorted, i, sortedCount - i);
+
+        if (freeProxyCount == freeProxies.length) freeProxies = grow(freeProxies, freeProxyCount);
+        freeProxies[freeProxyCount++] = proxy;
+    }
+
+    /**
+     * Removes every proxy.
+     */
+    public void clear() {
+        sortedCount = 0;
+        freeProxyCount = 0;
+        proxyCapacity = 0;
+        pairCount = 0;
+    }
+
+    /**
+     * Updates the bounding box of a proxy. The list is only sorted again
+     * when {@link #findPairs()} is called.
+     *
+     * @param proxy  The proxy's identifier.
+     * @param left   Left side of the object's bounding box.
+     * @param top    Top side of the object's bounding box.
+     * @param right  Right side of the object's bounding box.
+     * @param bottom Bottom side of the object's bounding box.
+     */
+    public void moveProxy(int proxy, int left, int top, int right, int bottom) {
+        minX[proxy] = left;
+        minY[proxy] = top;
+        maxX[proxy] = right;
+        maxY[proxy] = bottom;
+    }
+
+    /**
+     * Sorts the proxies again and finds every pair of overlapping bounding boxes.
+     *
+     * @return The number of overlapping pairs found.
+     */
+    public int findPairs() {
+        int i, j, proxy, left;
+
+        // Insertion sort is nearly linear since the list was sorted on the last tick
+        for (i = 1; i < sortedCount; i++) {
+            proxy = sorted[i];
+            left = minX[proxy];
+
+            j = i - 1;
+            while (j >= 0 && minX[sorted[j]] > left) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = proxy;
+        }
+
+        // Sweep the list, checking each box only against the ones starting before it ends
+        int other, right;
+        pairCount = 0;
+        for (i = 0; i < sortedCount; i++) {
+            proxy = sorted[i];
+            right = maxX[proxy];
+
+            for (j = i + 1; j < sortedCount; j++) {
+                other = sorted[j];
+                if (minX[other] > right) break;
+
+                // The boxes overlap on the X axis, check the Y axis
+                if (minY[other] <= maxY[proxy] && maxY[other] >= minY[proxy]) {
+                    if (pairCount * 2 == pairs.length) pairs = grow(pairs, pairs.length);
+
+                    pairs[pairCount * 2] = proxy;
+                    pairs[pairCount * 2 + 1] = other;
+                    pairCount++;
+                }
+            }
+        }
+
+        return pairCount;
+    }
+
+    /**
+     * Returns the first proxy of a pair found by the last call to {@link #findPairs()}.
+     *
+     * @param pair The pair's index.
+     * @return The first proxy of the pair.
+     */
+    public int getPairFirst(int pair) {
+        return pairs[pair * 2];
+    }
+
+    /**
+     * Returns the second proxy of a pair found by the last call to {@link #findPairs()}.
+     *
+     * @param pair The pair's index.
+     * @return The second proxy of the pair.
+     */
+    public int getPairSecond(int pair) {
+        return pairs[pair * 2 + 1];
+    }
+
+    /**
+     * Doubles the capacity of the arrays holding the proxies' bounding boxes.
+     */
+    private void growProxies() {
+        minX = grow(minX, proxyCapacity);
+        minY = grow(minY, proxyCapacity);
+        maxX = grow(maxX, proxyCapacity);
+        maxY = grow(maxY, proxyCapacity);
+    }
+
+    /**
+     * Creates a copy of an array with twice its size.
+     *
+     * @param array The array to be copied.
+     * @param count How many elements of the array are in use.
+     * @return The new array.
+     */
+    private static int[] grow(int[] array, int count) {
+        final int[] grown = new int[Math.max(INITIAL_CAPACITY, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, count);
+        return grown;
+    }
+}
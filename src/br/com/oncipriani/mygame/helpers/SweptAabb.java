@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.helpers;
+
+/**
+ * This class implements continuous collision detection between axis aligned bounding
+ * boxes (AABB). Instead of checking if two boxes overlap after they moved, the
+ * methods here compute the time of impact within a tick, so fast objects can not
+ * tunnel through walls, other objects or touch segments.
+ * <p>
+ * Every method works with the displacement of a single tick, and the time of impact
+ * is always a fraction of that tick on the interval [0, 1].
+ * </p>
+ */
+public final class SweptAabb {
+    /**
+     * Holds the result of a sweep test. Instances are meant to be reused to avoid
+     * creating objects every tick.
+     */
+    public static final class Hit {
+        // Fraction of the tick at which the first impact happens
+        public float time;
+
+        // Normal of the surface that was hit (-1, 0 or 1 on each axis)
+        public int normalX;
+        public int normalY;
+
+        // Number of bounces performed by an interval sweep
+        public int bounces;
+    }
+
+    private SweptAabb() {
+    }
+
+    /**
+     * Moves a point inside the interval [<code>min</code>, <code>max</code>] by the
+     * specified displacement, reflecting it every time it hits one of the interval's
+     * limits. This correctly handles any number of bounces within a single tick.
+     * <p>
+     * A point starting outside the interval (e.g. pushed out by another object) is
+     * brought back to the nearest limit first. That only counts as a bounce if the
+     * point is moving further out; if it is already moving back inside, its
+     * direction is kept.
+     * </p>
+     *
+     * @param pos          The starting position, usually inside the interval.
+     * @param displacement How much the point moves during the tick.
+     * @param min          The interval's lower limit (e.g. the left wall plus the object's half width).
+     * @param max          The interval's upper limit (e.g. the right wall minus the object's half width).
+     * @param hit          Receives the time of the first impact, its normal and the number of bounces.
+     * @return The position at the end of the tick.
+     */
+    public static int sweepInterval(int pos, int displacement, int min, int max, Hit hit) {
+        hit.time = 1f;
+        hit.normalX = 0;
+        hit.normalY = 0;
+        hit.bounces = 0;
+
+        // If the interval is degenerated there is no room to move
+        if (max <= min) return min;
+
+        // Bring the point back inside the interval, bouncing only if it is moving further out
+        if (pos > max) {
+            pos = max;
+            if (displacement > 0) {
+                displacement = -displacement;
+                hit.time = 0f;
+                hit.normalX = -1;
+                hit.bounces++;
+            }
+        } else if (pos < min) {
+            pos = min;
+            if (displacement < 0) {
+                displacement = -displacement;
+                hit.time = 0f;
+                hit.normalX = 1;
+                hit.bounces++;
+            }
+        }
+
+        final int total = Math.abs(displacement);
+        int remaining = displacement;
+        int target;
+
+        while (true) {
+            target = pos + remaining;
+
+            if (target > max) {
+                // Hit the upper limit, travel the rest of the way backwards
+                if (hit.bounces == 0) {
+                    hit.time = (float) (max - pos) / total;
+                    hit.normalX = -1;
+                }
+                remaining = max - target;
+                pos = max;
+            } else if (target < min) {
+                // Hit the lower limit, travel the rest of the way forward
+                if (hit.bounces == 0) {
+                    hit.time = (float) (pos - min) / total;
+                    hit.normalX = 1;
+                }
+                remaining = min - target;
+                pos = min;
+            } else {
+                return target;
+            }
+
+            hit.bounces++;
+        }
+    }
+
+    /**
+     * Sweeps a moving box against another moving box. The test is done on the
+     * reference frame of the second box, so both boxes may be moving.
+     *
+     * @param aMinX Left side of the first box at the beginning of the tick.
+     * @param aMinY Top side of the first box at the beginning of the tick.
+     * @param aMaxX Right side of the first box at the beginning of the tick.
+     * @param aMaxY Bottom side of the first box at the beginning of the tick.
+     * @param aVelX Displacement of the first box on the X axis during the tick.
+     * @param aVelY Displacement of the first box on the Y axis during the tick.
+     * @param bMinX Left side of the second box at the beginning of the tick.
+     * @param bMinY Top side of the second box at the beginning of the tick.
+     * @param bMaxX Right side of the second box at the beginning of the tick.
+     * @param bMaxY Bottom side of the second box at the beginning of the tick.
+     * @param bVelX Displacement of the second box on the X axis during the tick.
+     * @param bVelY Displacement of the second box on the Y axis during the tick.
+     * @param hit   Receives the time of impact and the normal of the second box's side that was hit.
+     * @return <code>true</code> if the boxes touch during the tick.
+     */
+    public static boolean sweepBoxes(float aMinX, float aMinY, float aMaxX, float aMaxY, float aVelX, float aVelY,
+                                     float bMinX, float bMinY, float bMaxX, float bMaxY, float bVelX, float bVelY,
+                                     Hit hit) {
+        // Already overlapping at the start of the tick
+        if (aMaxX > bMinX && aMinX < bMaxX && aMaxY > bMinY && aMinY < bMaxY) {
+            hit.time = 0f;
+            hit.normalX = 0;
+            hit.normalY = 0;
+            hit.bounces = 0;
+            return true;
+        }
+
+        // Sweep the first box as a segment against the second box grown by the first one's size
+        final float halfWidth = (aMaxX - aMinX) * 0.5f;
+        final float halfHeight = (aMaxY - aMinY) * 0.5f;
+        final float centerX = aMinX + halfWidth;
+        final float centerY = aMinY + halfHeight;
+
+        return sweepSegment(centerX, centerY, centerX + aVelX - bVelX, centerY + aVelY - bVelY,
+                bMinX - halfWidth, bMinY - halfHeight, bMaxX + halfWidth, bMaxY + halfHeight, hit);
+    }
+
+    /**
+     * Finds where a segment enters a static box using the slab method.
+     *
+     * @param startX The segment's start on the X axis.
+     * @param startY The segment's start on the Y axis.
+     * @param endX   The segment's end on the X axis.
+     * @param endY   The segment's end on the Y axis.
+     * @param minX   Left side of the box.
+     * @param minY   Top side of the box.
+     * @param maxX   Right side of the box.
+     * @param maxY   Bottom side of the box.
+     * @param hit    Receives the fraction of the segment where it enters the box and the normal of that side.
+     * @return <code>true</code> if the segment touches the box.
+     */
+    public static boolean sweepSegment(float startX, float startY, float endX, float endY,
+                                       float minX, float minY, float maxX, float maxY, Hit hit) {
+        final float deltaX = endX - startX;
+        final float deltaY = endY - startY;
+
+        float entry = 0f, exit = 1f;
+        int normalX = 0, normalY = 0;
+        float near, far, temp;
+
+        // Clip the segment against the vertical slab
+        if (deltaX == 0f) {
+            if (startX < minX || startX > maxX) return false;
+        } else {
+            near = (minX - startX) / deltaX;
+            far = (maxX - startX) / deltaX;
+            if (near > far) {
+                temp = near;
+                near = far;
+                far = temp;
+            }
+
+            if (near > entry) {
+                entry = near;
+                normalX = deltaX > 0 ? -1 : 1;
+            }
+            if (far < exit) exit = far;
+            if (entry > exit) return false;
+        }
+
+        // Clip the segment against the horizontal slab
+        if (deltaY == 0f) {
+            if (startY < minY || startY > maxY) return false;
+        } else {
+            near = (minY - startY) / deltaY;
+            far = (maxY - startY) / deltaY;
+            if (near > far) {
+                temp = near;
+                near = far;
+                far = temp;
+            }
+
+            if (near > entry) {
+                entry = near;
+                normalX = 0;
+                normalY = deltaY > 0 ? -1 : 1;
+            }
+            if (far < exit) exit = far;
+            if (entry > exit) return false;
+        }
+
+        hit.time = entry;
+        hit.normalX = normalX;
+        hit.normalY = normalY;
+        hit.bounces = 0;
+
+        return true;
+    }
+}
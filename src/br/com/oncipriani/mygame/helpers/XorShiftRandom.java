@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.helpers;
+
+/**
+ * This class implements a small pseudorandom number generator (xorshift64*) whose
+ * state can be read and restored, so it can be saved along with the game.
+ * Unlike {@link java.util.Random}, it is not thread safe.
+ *
+ * @see <a href="http://en.wikipedia.org/wiki/Xorshift">Xorshift on Wikipedia</a>.
+ */
+public final class XorShiftRandom {
+    private long state;
+
+    /**
+     * Constructs a new generator seeded from the current time.
+     */
+    public XorShiftRandom() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * Constructs a new generator with the specified seed.
+     *
+     * @param seed The initial seed.
+     */
+    public XorShiftRandom(long seed) {
+        setState(seed);
+    }
+
+    /**
+     * Returns the current state of the generator.
+     *
+     * @return The generator's state.
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Restores a state returned by {@link #getState()}.
+     *
+     * @param state The generator's new state. Zero is replaced by a fixed non-zero value.
+     */
+    public void setState(long state) {
+        // The state must never be zero, or the generator would only return zeros
+        this.state = state != 0 ? state : 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Returns a pseudorandom integer between zero (inclusive) and <code>n</code> (exclusive).
+     *
+     * @param n The upper bound, which must be positive.
+     * @return A pseudorandom integer on the interval [0, <code>n</code>).
+     * @throws java.lang.IllegalArgumentException if <code>n</code> is not positive.
+     */
+    public int nextInt(int n) {
+        if (n <= 0) throw new IllegalArgumentException("n must be positive");
+
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+
+        // Use the high bits, which are the best ones
+        return (int) (((state * 0x2545F4914F6CDD1DL) >>> 33) % n);
+    }
+}
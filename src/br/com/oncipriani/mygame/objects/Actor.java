@@ -17,7 +17,8 @@
 package br.com.oncipriani.mygame.objects;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
+import br.com.oncipriani.mygame.engine.DisplayList;
+import br.com.oncipriani.mygame.engine.SpriteRegistry;
 
 /**
  * This class represents an actor in our game. An actor is any object that
@@ -33,6 +34,9 @@ public abstract class Actor {
 
     protected final Bitmap bitmap;
 
+    // Registered the first time the actor is drawn, since actors may be created outside the game thread
+    private int spriteId = -1;
+
     protected int posX;
     protected int posY;
 
@@ -114,12 +118,23 @@ public abstract class Actor {
     }
 
     /**
-     * Method that draws the object on the provided canvas.
+     * Returns the identifier of the actor's sprite, registering its bitmap the first time.
+     * Must be called by the game thread, like every other use of the {@link SpriteRegistry}.
+     *
+     * @return The sprite identifier.
+     */
+    protected final int getSpriteId() {
+        if (spriteId < 0) spriteId = SpriteRegistry.register(bitmap);
+        return spriteId;
+    }
+
+    /**
+     * Method that records the object on the provided display list.
      *
-     * @param canvas The canvas where the object will be drawn.
+     * @param displayList The display list of the frame being drawn.
      */
-    public void draw(Canvas canvas) {
-        canvas.drawBitmap(bitmap, posX - halfWidth, posY - halfHeight, null);
+    public void draw(DisplayList displayList) {
+        displayList.addSprite(getSpriteId(), posX - halfWidth, posY - halfHeight, 255);
     }
 
     /**
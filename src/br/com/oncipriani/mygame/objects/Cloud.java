@@ -17,8 +17,11 @@
 package br.com.oncipriani.mygame.objects;
 
 import android.graphics.Bitmap;
+import br.com.oncipriani.mygame.engine.DisplayList;
 import br.com.oncipriani.mygame.objects.components.Movement;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is a cloud that floats in the background.
  */
@@ -28,6 +31,9 @@ public class Cloud extends Actor {
     public static final int CLOUD_TYPE_MEDIUM = 1;
     public static final int CLOUD_TYPE_LARGE = 2;
 
+    // Number of bytes written by writeSnapshot()
+    public static final int SNAPSHOT_SIZE = 6 * 4;
+
     public final int type;
     private final Movement movement;
 
@@ -79,6 +85,28 @@ public class Cloud extends Actor {
         posX -= movement.speedX;
     }
 
+    /**
+     * Moves the cloud several ticks at once, so it does not need to be updated on
+     * every tick. The ticks in between are drawn by {@link #draw(DisplayList, int)}.
+     *
+     * @param ticks How many ticks the cloud moves.
+     */
+    public void update(int ticks) {
+        posX -= movement.speedX * ticks;
+    }
+
+    /**
+     * Records the cloud where it was a number of ticks before its current position.
+     * Since clouds move at a constant speed, this draws them exactly where they would
+     * be had they been updated on every tick.
+     *
+     * @param displayList The display list of the frame being drawn.
+     * @param ticksBehind How many ticks the cloud was moved ahead of the frame.
+     */
+    public void draw(DisplayList displayList, int ticksBehind) {
+        displayList.addSprite(getSpriteId(), posX + movement.speedX * ticksBehind - halfWidth, posY - halfHeight, 255);
+    }
+
     @Override
     public boolean isActive(int screenWidth, int screenHeight) {
         // Since clouds only move horizontally and from right to left, there is no
@@ -86,4 +114,25 @@ public class Cloud extends Actor {
         // somewhere inside the screen).
         return posX > (halfWidth * -1);
     }
+
+    /**
+     * Writes the cloud's position and speed to a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        buffer.putInt(posX).putInt(posY);
+        movement.writeSnapshot(buffer);
+    }
+
+    /**
+     * Restores the cloud's position and speed from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+        posX = buffer.getInt();
+        posY = buffer.getInt();
+        movement.readSnapshot(buffer);
+    }
 }
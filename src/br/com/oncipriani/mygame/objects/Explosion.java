@@ -17,13 +17,13 @@
 package br.com.oncipriani.mygame.objects;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
+import br.com.oncipriani.mygame.engine.DisplayList;
+import br.com.oncipriani.mygame.engine.SpriteRegistry;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
 import br.com.oncipriani.mygame.objects.components.Particle;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents a collection of particles originating at a
@@ -36,27 +36,61 @@ public class Explosion {
     public static final int MIN_PARTICLES = 2;
     public static final int MAX_PARTICLES = 6;
 
-    // The main components of the explosion
+    // The main components of the explosion (allocated for the largest size, so it can be reused)
     private final Particle[] particles;
-    private final int particleCount;
+    private int particleCount;
 
     // Members used to draw the particles
-    private final Bitmap particleBitmap;
-    private final Paint particlePaint;
-    private final int particleBitmapHalfWidth;
-    private final int particleBitmapHalfHeight;
+    private int particleSpriteId;
+    private int particleBitmapHalfWidth;
+    private int particleBitmapHalfHeight;
 
     private boolean isVisible;
 
+    // The time of the touch that caused the explosion and if it was already drawn
+    private long eventTime;
+    private boolean isPresented;
+
+    /**
+     * Creates a new Explosion object. The explosion is not visible until it is
+     * started by a call to {@link #reset(android.graphics.Bitmap, int, int, int, long, br.com.oncipriani.mygame.helpers.XorShiftRandom)}.
+     */
+    public Explosion() {
+        particles = new Particle[MAX_PARTICLES];
+        for (int i = 0; i < MAX_PARTICLES; i++) particles[i] = new Particle();
+    }
+
     /**
      * Creates a new Explosion object.
      *
-     * @param bitmap The image used for the explosion's particles.
-     * @param size   The number of particles of the explosion.
-     * @param posX   The explosion's origin on the X axis.
-     * @param posY   The explosion's origin on the Y axis.
+     * @param bitmap    The image used for the explosion's particles.
+     * @param size      The number of particles of the explosion.
+     * @param posX      The explosion's origin on the X axis.
+     * @param posY      The explosion's origin on the Y axis.
+     * @param eventTime The time of the touch that caused the explosion, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @param random    The generator that picks the directions and speeds of the particles.
      */
-    public Explosion(Bitmap bitmap, int size, int posX, int posY) {
+    public Explosion(Bitmap bitmap, int size, int posX, int posY, long eventTime, XorShiftRandom random) {
+        this();
+        reset(bitmap, size, posX, posY, eventTime, random);
+    }
+
+    /**
+     * Starts the explosion again from a new origin. This allows explosions that are
+     * no longer visible to be reused instead of creating new ones.
+     *
+     * @param bitmap    The image used for the explosion's particles.
+     * @param size      The number of particles of the explosion.
+     * @param posX      The explosion's origin on the X axis.
+     * @param posY      The explosion's origin on the Y axis.
+     * @param eventTime The time of the touch that caused the explosion, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @param random    The generator that picks the directions and speeds of the particles.
+     */
+    public void reset(Bitmap bitmap, int size, int posX, int posY, long eventTime, XorShiftRandom random) {
+        this.eventTime = eventTime;
+        isPresented = false;
+        isVisible = true;
+
         if (size < MIN_PARTICLES) {
             Log.w(TAG, "Tried to create an explosion with less than the minimum number of particles!");
             particleCount = MIN_PARTICLES;
@@ -71,23 +105,53 @@ public class Explosion {
         final int angleStepping = 360 / particleCount;
 
         // We start with a random angle that will be incremented by "angleStepping"
-        int angle = new Random().nextInt(360);
+        int angle = random.nextInt(360);
 
-        particles = new Particle[particleCount];
         for (int i = 0; i < particleCount; i++) {
-            particles[i] = new Particle(posX, posY, angle);
+            particles[i].reset(posX, posY, angle, random);
             angle += angleStepping;
         }
 
-        // Create the Paint used to fade the particle's image
-        particlePaint = new Paint();
-        particlePaint.setColor(Color.WHITE);
+        setBitmap(bitmap);
+    }
 
-        particleBitmap = bitmap;
+    /**
+     * Sets the image used for the explosion's particles, without starting it.
+     * Used before restoring the explosion from a snapshot.
+     *
+     * @param bitmap The image used for the explosion's particles.
+     */
+    public void setBitmap(Bitmap bitmap) {
+        particleSpriteId = SpriteRegistry.register(bitmap);
         particleBitmapHalfWidth = bitmap.getWidth() / 2;
         particleBitmapHalfHeight = bitmap.getHeight() / 2;
     }
 
+    /**
+     * Returns the number of particles released by the explosion.
+     *
+     * @return The explosion's number of particles.
+     */
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    /**
+     * Moves the particles to the same relative position on a screen of a different size.
+     *
+     * @param oldWidth  The screen's old width in pixels.
+     * @param oldHeight The screen's old height in pixels.
+     * @param newWidth  The screen's new width in pixels.
+     * @param newHeight The screen's new height in pixels.
+     */
+    public void remap(int oldWidth, int oldHeight, int newWidth, int newHeight) {
+        Particle particle;
+        for (int i = 0; i < particleCount; i++) {
+            particle = particles[i];
+            particle.setPos(particle.getPosX() * newWidth / oldWidth, particle.getPosY() * newHeight / oldHeight);
+        }
+    }
+
     /**
      * Returns <code>true</code> if the explosion is no longer visible,
      * that is, if there are no visible particles on screen.
@@ -99,21 +163,73 @@ public class Explosion {
     }
 
     public void update() {
+        beginUpdate();
+        updateParticles(0, particleCount);
+    }
+
+    /**
+     * Gets the explosion ready to have its particles updated by {@link #updateParticles(int, int)}.
+     * The explosion is considered gone until one of its particles is found still visible.
+     */
+    public void beginUpdate() {
         isVisible = false;
+    }
 
-        for (int i = 0; i < particleCount; i++) {
+    /**
+     * Updates a range of the explosion's particles. Different ranges may be updated by
+     * different threads at the same time, as long as {@link #beginUpdate()} was called
+     * before and {@link #isVisible()} is only called after every range is done.
+     *
+     * @param start The first particle updated.
+     * @param end   The particle after the last one updated.
+     */
+    public void updateParticles(int start, int end) {
+        for (int i = start; i < end; i++) {
             particles[i].update();
-            isVisible = isVisible || particles[i].isVisible();
+            if (particles[i].isVisible()) isVisible = true;
         }
     }
 
-    public void draw(Canvas canvas) {
+    public void draw(DisplayList displayList) {
+        // Measure how long it took for the touch to show up on the screen
+        if (!isPresented) {
+            isPresented = true;
+            displayList.markPresented(eventTime);
+        }
+
         for (int i = 0; i < particleCount; i++) {
             if (particles[i].isVisible()) {
-                particlePaint.setAlpha(particles[i].getAlpha());
-                canvas.drawBitmap(particleBitmap, particles[i].getPosX() - particleBitmapHalfWidth,
-                        particles[i].getPosY() - particleBitmapHalfHeight, particlePaint);
+                displayList.addSprite(particleSpriteId, particles[i].getPosX() - particleBitmapHalfWidth,
+                        particles[i].getPosY() - particleBitmapHalfHeight, particles[i].getAlpha());
             }
         }
     }
+
+    /**
+     * Writes the explosion's state to a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        buffer.put((byte) particleCount).put((byte) (isVisible ? 1 : 0));
+        for (int i = 0; i < particleCount; i++) particles[i].writeSnapshot(buffer);
+    }
+
+    /**
+     * Restores the explosion's state from a snapshot. The explosion must have been
+     * given its bitmap by {@link #setBitmap(android.graphics.Bitmap)} before.
+     * The touch that caused it is considered already shown.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @throws java.lang.IllegalArgumentException if the snapshot has an invalid number of particles.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+        final int count = buffer.get();
+        if (count < MIN_PARTICLES || count > MAX_PARTICLES) throw new IllegalArgumentException("Invalid number of particles");
+
+        particleCount = count;
+        isVisible = buffer.get() != 0;
+        isPresented = true;
+        for (int i = 0; i < particleCount; i++) particles[i].readSnapshot(buffer);
+    }
 }
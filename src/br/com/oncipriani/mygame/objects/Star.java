@@ -18,7 +18,12 @@ package br.com.oncipriani.mygame.objects;
 
 import android.graphics.Bitmap;
 import android.util.Log;
+import br.com.oncipriani.mygame.helpers.SweptAabb;
+import br.com.oncipriani.mygame.objects.components.HitMask;
 import br.com.oncipriani.mygame.objects.components.Movement;
+import br.com.oncipriani.mygame.objects.components.PositionHistory;
+
+import java.nio.ByteBuffer;
 
 /**
  * This is a star that bounces every time it's clicked and still have
@@ -37,22 +42,59 @@ public class Star extends Actor {
     private static final int GRAVITY = 2;
 
     // The star's attributes
-    private Movement movement;
+    private final Movement movement = new Movement();
     private int energy;
 
+    // Where the star was at the beginning of the tick, so its collisions with other stars can be swept
+    private int startPosX, startPosY;
+
+    // Positions where the star was recently displayed, used to compensate the input lag
+    private final PositionHistory history = new PositionHistory();
+
+    // Reusable result of the collision tests
+    private final SweptAabb.Hit hit = new SweptAabb.Hit();
+
+    // Collision mask shared by every star using the same bitmap (may be null)
+    private final HitMask hitMask;
+
+    // Identifier of the star on the collision broad phase
+    private int collisionProxy = -1;
+
     /**
      * Constructs a new star at the specified location. The star will falling at
      * the specified speed towards the indicated direction.
      *
-     * @param bitmap The Bitmap representing the star's image.
+     * @param bitmap  The Bitmap representing the star's image.
+     * @param hitMask The collision mask built from the bitmap or <code>null</code> to use the whole bitmap.
+     * @param posX    The star's position on the X axis.
+     * @param posY    The star's position on the Y axis.
+     * @param speed   The star's falling speed.
+     * @param angle   Angle indicating the fall direction (in degrees).
+     * @param energy  The star's initial energy level.
+     */
+    public Star(Bitmap bitmap, HitMask hitMask, int posX, int posY, int speed, int angle, int energy) {
+        super(bitmap, posX, posY);
+
+        this.hitMask = hitMask;
+        reset(posX, posY, speed, angle, energy);
+    }
+
+    /**
+     * Brings the star back at the specified location with new attributes. This allows
+     * stars that were destroyed to be reused instead of creating new ones.
+     *
      * @param posX   The star's position on the X axis.
      * @param posY   The star's position on the Y axis.
      * @param speed  The star's falling speed.
      * @param angle  Angle indicating the fall direction (in degrees).
      * @param energy The star's initial energy level.
      */
-    public Star(Bitmap bitmap, int posX, int posY, int speed, int angle, int energy) {
-        super(bitmap, posX, posY);
+    public void reset(int posX, int posY, int speed, int angle, int energy) {
+        setPos(posX, posY);
+        startPosX = posX;
+        startPosY = posY;
+        history.clear();
+        collisionProxy = -1;
 
         if (speed > MAX_SPEED) {
             Log.w(TAG, "Tried to create a star faster than the maximum allowed speed!");
@@ -62,7 +104,6 @@ public class Star extends Actor {
             speed = MIN_SPEED;
         }
 
-        movement = new Movement();
         movement.setMovement(speed, angle, 0, 0);
 
         if (energy > MAX_ENERGY) {
@@ -80,8 +121,28 @@ public class Star extends Actor {
         return energy;
     }
 
+    /**
+     * Returns the identifier of the star on the collision broad phase.
+     *
+     * @return The star's collision proxy or <code>-1</code> if it has none.
+     */
+    public int getCollisionProxy() {
+        return collisionProxy;
+    }
+
+    /**
+     * Sets the identifier of the star on the collision broad phase.
+     *
+     * @param collisionProxy The star's collision proxy or <code>-1</code> if it has none.
+     */
+    public void setCollisionProxy(int collisionProxy) {
+        this.collisionProxy = collisionProxy;
+    }
+
     @Override
     public void update() {
+        startPosX = posX;
+        startPosY = posY;
         posX += movement.speedX;
 
         if (movement.speedY < MAX_SPEED) movement.speedY += movement.accelerationY;
@@ -91,20 +152,157 @@ public class Star extends Actor {
     /**
      * Update the star's position while checking if it is going out of the
      * screen from the sides. Bounces if it is.
+     * <p>
+     * The movement on the X axis is swept against the sides of the screen, so the
+     * star bounces exactly where it hits them, even if it is fast enough to hit
+     * both sides during a single tick.
+     * </p>
      *
      * @param screenWidth The screen's width in pixels.
      */
     public void update(int screenWidth) {
-        update(); // Update the star's position
+        startPosX = posX;
+        startPosY = posY;
 
-        // Bounce if it is going out of the screen from the sides
-        if (posX + halfWidth > screenWidth) {
-            posX = screenWidth;
-            movement.speedX *= -1;
-        } else if (posX - halfWidth < 0) {
-            posX = 0;
-            movement.speedX *= -1;
+        // Move horizontally, bouncing on the sides of the screen
+        posX = SweptAabb.sweepInterval(posX, movement.speedX, halfWidth, screenWidth - halfWidth, hit);
+        if ((hit.bounces & 1) != 0) movement.speedX *= -1;
+
+        // The vertical movement is not bounded
+        if (movement.speedY < MAX_SPEED) movement.speedY += movement.accelerationY;
+        posY += movement.speedY;
+    }
+
+    /**
+     * Returns where the star was on the X axis at the beginning of the tick.
+     *
+     * @return The star's position on the X axis before its last update.
+     */
+    public int getStartPosX() {
+        return startPosX;
+    }
+
+    /**
+     * Returns where the star was on the Y axis at the beginning of the tick.
+     *
+     * @return The star's position on the Y axis before its last update.
+     */
+    public int getStartPosY() {
+        return startPosY;
+    }
+
+    /**
+     * Checks if this star hit another one during the tick and, if it did, makes both
+     * of them bounce. The stars are swept from where they were at the beginning of
+     * the tick, so fast stars can not go through each other, and are moved back to
+     * where they touched. The stars are treated as boxes of equal mass, so they
+     * exchange their speeds (and vertical accelerations) on the axis where they collided.
+     * <p>
+     * Stars that were already overlapping at the beginning of the tick (e.g. one was
+     * spawned on top of the other) are pushed apart instead.
+     * </p>
+     *
+     * @param other The other star.
+     * @return <code>true</code> if the stars collided.
+     */
+    public boolean collide(Star other) {
+        final int velX = posX - startPosX;
+        final int velY = posY - startPosY;
+        final int otherVelX = other.posX - other.startPosX;
+        final int otherVelY = other.posY - other.startPosY;
+
+        if (!SweptAabb.sweepBoxes(startPosX - halfWidth, startPosY - halfHeight, startPosX + halfWidth,
+                startPosY + halfHeight, velX, velY, other.startPosX - other.halfWidth, other.startPosY - other.halfHeight,
+                other.startPosX + other.halfWidth, other.startPosY + other.halfHeight, otherVelX, otherVelY, hit)) {
+            return false;
         }
+
+        final boolean isHorizontal;
+        if (hit.normalX != 0 || hit.normalY != 0) {
+            // Move both stars back to where they touched
+            posX = startPosX + Math.round(velX * hit.time);
+            posY = startPosY + Math.round(velY * hit.time);
+            other.posX = other.startPosX + Math.round(otherVelX * hit.time);
+            other.posY = other.startPosY + Math.round(otherVelY * hit.time);
+            isHorizontal = hit.normalX != 0;
+        } else {
+            final int overlapX = Math.min(posX + halfWidth, other.posX + other.halfWidth) -
+                    Math.max(posX - halfWidth, other.posX - other.halfWidth);
+            final int overlapY = Math.min(posY + halfHeight, other.posY + other.halfHeight) -
+                    Math.max(posY - halfHeight, other.posY - other.halfHeight);
+
+            // The stars were overlapping (or touching) at the beginning of the tick, but may have moved apart
+            if (overlapX <= 0 || overlapY <= 0) return false;
+
+            isHorizontal = overlapX < overlapY;
+            if (isHorizontal) {
+                // Push the stars apart horizontally
+                final int push = (overlapX + 1) / 2;
+                if (posX < other.posX) {
+                    posX -= push;
+                    other.posX += push;
+                } else {
+                    posX += push;
+                    other.posX -= push;
+                }
+            } else {
+                // Push the stars apart vertically
+                final int push = (overlapY + 1) / 2;
+                if (posY < other.posY) {
+                    posY -= push;
+                    other.posY += push;
+                } else {
+                    posY += push;
+                    other.posY -= push;
+                }
+            }
+        }
+
+        int temp;
+        if (isHorizontal) {
+            // Exchange the speeds if the stars are moving towards each other
+            if ((other.posX - posX) * (movement.speedX - other.movement.speedX) > 0) {
+                temp = movement.speedX;
+                movement.speedX = other.movement.speedX;
+                other.movement.speedX = temp;
+            }
+        } else {
+            // Exchange the speeds if the stars are moving towards each other. The gravity goes along
+            // with the speed, so a star never keeps falling slower than it can be hit without it
+            if ((other.posY - posY) * (movement.speedY - other.movement.speedY) > 0) {
+                temp = movement.speedY;
+                movement.speedY = other.movement.speedY;
+                other.movement.speedY = temp;
+
+                temp = movement.accelerationY;
+                movement.accelerationY = other.movement.accelerationY;
+                other.movement.accelerationY = temp;
+
+                // A star thrown upwards starts falling back
+                if (movement.speedY < 0) movement.accelerationY = GRAVITY;
+                if (other.movement.speedY < 0) other.movement.accelerationY = GRAVITY;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets the positions where the star was displayed, e.g. after it was moved
+     * to a screen of a different size.
+     */
+    public void clearHistory() {
+        history.clear();
+    }
+
+    /**
+     * Remembers that the star is being displayed at its current position. This
+     * should be called every time the star is drawn on the screen.
+     *
+     * @param time The time the frame is being drawn, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     */
+    public void recordPosition(long time) {
+        history.record(time, posX, posY);
     }
 
     @Override
@@ -116,29 +314,30 @@ public class Star extends Actor {
     /**
      * Informs the star of a touch event at the specified coordinates. If the event
      * happens on the bitmap surface then this method returns <code>true</code>.
+     * <p>
+     * Since the star may have moved a lot since the user saw it, the touch is tested
+     * against the position where the star was displayed at the time of the event.
+     * </p>
      *
-     * @param eventX The event's X coordinate.
-     * @param eventY The event's Y coordinate.
+     * @param eventX    The event's X coordinate.
+     * @param eventY    The event's Y coordinate.
+     * @param eventTime The time the event happened, in the {@link android.os.SystemClock#uptimeMillis()} time base.
      * @return <code>true</code> if the star was clicked. <code>false</code> otherwise.
      */
-    public boolean handleActionDown(int eventX, int eventY) {
+    public boolean handleActionDown(int eventX, int eventY, long eventTime) {
         // If the star is still recovering from the last bounce, do nothing
         if (movement.speedY < MIN_SPEED) return false;
 
+        // Rewind to the position the user was looking at when the event happened
+        final int sample = history.find(eventTime);
+        final int seenX = sample < 0 ? posX : history.getPosX(sample);
+        final int seenY = sample < 0 ? posY : history.getPosY(sample);
+
         // Check if the star was clicked
-        if (eventX >= (posX - halfWidth) && eventX <= (posX + halfWidth) &&
-                eventY >= (posY - halfHeight) && eventY <= (posY + halfHeight)) {
-            // Decrease the star's energy
-            energy--;
-
-            // Bounce if the star is still alive
-            if (energy > 0) {
-                movement.speedX *= -1;
-                movement.speedY *= -1;
-
-                // Gravity starts working now
-                movement.accelerationY = GRAVITY;
-            }
+        if (eventX >= (seenX - halfWidth) && eventX <= (seenX + halfWidth) &&
+                eventY >= (seenY - halfHeight) && eventY <= (seenY + halfHeight) &&
+                (hitMask == null || hitMask.contains(eventX - seenX + halfWidth, eventY - seenY + halfHeight))) {
+            hit();
 
             // The user clicked on the star
             return true;
@@ -147,4 +346,99 @@ public class Star extends Actor {
         // The user did not click on the star
         return false;
     }
+
+    /**
+     * Informs the star that the user swiped a finger from one point to another. If
+     * the swipe crosses the bitmap surface then this method returns <code>true</code>.
+     * Just like {@link #handleActionDown(int, int, long)}, the swipe is tested against
+     * the position where the star was displayed at the time of the event.
+     *
+     * @param startX    Where the swipe started on the X axis.
+     * @param startY    Where the swipe started on the Y axis.
+     * @param endX      Where the swipe ended on the X axis.
+     * @param endY      Where the swipe ended on the Y axis.
+     * @param eventTime The time the swipe reached its end, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @return <code>true</code> if the star was sliced. <code>false</code> otherwise.
+     */
+    public boolean handleSlice(int startX, int startY, int endX, int endY, long eventTime) {
+        // If the star is still recovering from the last bounce, do nothing
+        if (movement.speedY < MIN_SPEED) return false;
+
+        // Rewind to the position the user was looking at when the event happened
+        final int sample = history.find(eventTime);
+        final int seenX = sample < 0 ? posX : history.getPosX(sample);
+        final int seenY = sample < 0 ? posY : history.getPosY(sample);
+
+        // Check if the swipe crossed the star
+        final int left = seenX - halfWidth;
+        final int top = seenY - halfHeight;
+        if (SweptAabb.sweepSegment(startX, startY, endX, endY, left, top, seenX + halfWidth, seenY + halfHeight, hit) &&
+                (hitMask == null || hitMask.intersectsSegment(startX - left, startY - top, endX - left, endY - top))) {
+            hit();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Computes a bounding box containing the star at its current position and
+     * at every position it was recently displayed at. Touch events can only hit
+     * the star inside this box.
+     *
+     * @param bounds Receives, in this order, the minimum X, minimum Y, maximum X and maximum Y.
+     */
+    public void getTouchBounds(int[] bounds) {
+        bounds[0] = bounds[2] = posX;
+        bounds[1] = bounds[3] = posY;
+        history.growBounds(bounds);
+
+        bounds[0] -= halfWidth;
+        bounds[1] -= halfHeight;
+        bounds[2] += halfWidth;
+        bounds[3] += halfHeight;
+    }
+
+    /**
+     * Decreases the star's energy and makes it bounce if it is still alive.
+     */
+    private void hit() {
+        // Decrease the star's energy
+        energy--;
+
+        // Bounce if the star is still alive
+        if (energy > 0) {
+            movement.speedX *= -1;
+            movement.speedY *= -1;
+
+            // Gravity starts working now
+            movement.accelerationY = GRAVITY;
+        }
+    }
+
+    /**
+     * Writes the star's state to a snapshot. The positions where the star was
+     * displayed are not saved.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        buffer.putInt(posX).putInt(posY).putInt(energy);
+        movement.writeSnapshot(buffer);
+    }
+
+    /**
+     * Restores the star's state from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+        posX = buffer.getInt();
+        posY = buffer.getInt();
+        energy = buffer.getInt();
+        movement.readSnapshot(buffer);
+        startPosX = posX;
+        startPosY = posY;
+        history.clear();
+    }
 }
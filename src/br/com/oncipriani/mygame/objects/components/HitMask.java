@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.objects.components;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * This class holds a collision mask built from the alpha channel of a bitmap.
+ * Each bit tells if a block of pixels is opaque enough to be touched, so hit
+ * tests can ignore the transparent parts of an image with a single bit lookup.
+ * <p>
+ * Masks are built once, when the bitmap is loaded, and should be shared by
+ * every object using the same bitmap. They may also be built at a reduced
+ * resolution to save memory, in which case each bit covers a square block
+ * of pixels and is set if any pixel of the block is opaque.
+ * </p>
+ */
+public final class HitMask {
+    // Default alpha value above which a pixel can be touched
+    public static final int DEFAULT_ALPHA_THRESHOLD = 64;
+
+    // The bitmap's size and the mask's size (in blocks)
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+
+    // Each block is (1 << shift) pixels wide
+    private final int shift;
+
+    // The mask's bits, row after row
+    private final long[] bits;
+
+    /**
+     * Builds a full resolution mask using the default alpha threshold.
+     *
+     * @param bitmap The bitmap the mask will be built from.
+     */
+    public HitMask(Bitmap bitmap) {
+        this(bitmap, DEFAULT_ALPHA_THRESHOLD, 0);
+    }
+
+    /**
+     * Builds a mask from the alpha channel of a bitmap.
+     *
+     * @param bitmap         The bitmap the mask will be built from.
+     * @param alphaThreshold Pixels with an alpha value above this will be touchable.
+     * @param shift          Reduces the mask resolution: each bit covers a block of (1 << shift) by (1 << shift) pixels.
+     * @throws java.lang.IllegalArgumentException if <code>shift</code> is negative.
+     */
+    public HitMask(Bitmap bitmap, int alphaThreshold, int shift) {
+        if (shift < 0) throw new IllegalArgumentException("The mask resolution shift must not be negative!");
+
+        this.shift = shift;
+        width = bitmap.getWidth();
+        height = bitmap.getHeight();
+
+        final int blockSize = 1 << shift;
+        columns = (width + blockSize - 1) >> shift;
+        rows = (height + blockSize - 1) >> shift;
+        bits = new long[(columns * rows + 63) >> 6];
+
+        // Read the whole bitmap at once, since Bitmap.getPixel is slow
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        int bit;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (Color.alpha(pixels[y * width + x]) > alphaThreshold) {
+                    bit = (y >> shift) * columns + (x >> shift);
+                    bits[bit >> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a point of the bitmap can be touched.
+     *
+     * @param localX The point's position on the X axis, relative to the bitmap's left side.
+     * @param localY The point's position on the Y axis, relative to the bitmap's top side.
+     * @return <code>true</code> if the point is inside the bitmap and opaque enough to be touched.
+     */
+    public boolean contains(int localX, int localY) {
+        if (localX < 0 || localY < 0 || localX >= width || localY >= height) return false;
+
+        final int bit = (localY >> shift) * columns + (localX >> shift);
+        return (bits[bit >> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Checks if a segment crosses any touchable point of the bitmap. The segment is
+     * sampled once per block of the mask, so thin features are not skipped.
+     *
+     * @param startX The segment's start on the X axis, relative to the bitmap's left side.
+     * @param startY The segment's start on the Y axis, relative to the bitmap's top side.
+     * @param endX   The segment's end on the X axis, relative to the bitmap's left side.
+     * @param endY   The segment's end on the Y axis, relative to the bitmap's top side.
+     * @return <code>true</code> if the segment crosses a touchable point.
+     */
+    public boolean intersectsSegment(int startX, int startY, int endX, int endY) {
+        final int deltaX = endX - startX;
+        final int deltaY = endY - startY;
+        final int steps = Math.max(Math.abs(deltaX), Math.abs(deltaY)) >> shift;
+
+        if (steps == 0) return contains(startX, startY) || contains(endX, endY);
+
+        for (int i = 0; i <= steps; i++) {
+            if (contains(startX + deltaX * i / steps, startY + deltaY * i / steps)) return true;
+        }
+
+        return false;
+    }
+}
@@ -16,6 +16,8 @@
 
 package br.com.oncipriani.mygame.objects.components;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class keeps track of the bearing of an object in the 2D plane. It
  * holds the speed values on both axis and optionally an acceleration factor.
@@ -89,4 +91,25 @@ public final class Movement {
         // device's screen means a lower Y value), we must compensate for that.
         this.speedY = (int) Math.round(speed * Math.sin(radians)) * -1;
     }
+
+    /**
+     * Writes the speed and the acceleration to a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        buffer.putInt(speedX).putInt(speedY).putInt(accelerationX).putInt(accelerationY);
+    }
+
+    /**
+     * Reads the speed and the acceleration from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+        speedX = buffer.getInt();
+        speedY = buffer.getInt();
+        accelerationX = buffer.getInt();
+        accelerationY = buffer.getInt();
+    }
 }
@@ -17,8 +17,9 @@
 package br.com.oncipriani.mygame.objects.components;
 
 import android.graphics.Color;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents a single particle. May be used to create an explosion.
@@ -31,29 +32,47 @@ public class Particle {
     private static final int MIN_SPEED = 1;
     private static final int MAX_SPEED = 10;
 
-    // Random shared across every particle in the game
-    private static final Random RANDOM = new Random();
-
     // The particles attributes
     private final Movement movement;
     private int posX, posY, alpha;
     private boolean isVisible;
 
+    /**
+     * Constructs a new particle that is not visible until it is brought to life by
+     * {@link #reset(int, int, int, br.com.oncipriani.mygame.helpers.XorShiftRandom)}.
+     */
+    public Particle() {
+        movement = new Movement();
+    }
+
     /**
      * Constructs a new particle with random speed.
      *
-     * @param posX  The particle's position on the X axis.
-     * @param posY  The particle's position on the Y axis.
-     * @param angle The angle representing the direction where the particle will go (in degrees).
+     * @param posX   The particle's position on the X axis.
+     * @param posY   The particle's position on the Y axis.
+     * @param angle  The angle representing the direction where the particle will go (in degrees).
+     * @param random The generator that picks the particle's speed.
      */
-    public Particle(int posX, int posY, int angle) {
+    public Particle(int posX, int posY, int angle, XorShiftRandom random) {
+        this();
+        reset(posX, posY, angle, random);
+    }
+
+    /**
+     * Brings the particle back to life at the specified position, with a new random speed.
+     *
+     * @param posX   The particle's position on the X axis.
+     * @param posY   The particle's position on the Y axis.
+     * @param angle  The angle representing the direction where the particle will go (in degrees).
+     * @param random The generator that picks the particle's speed.
+     */
+    public void reset(int posX, int posY, int angle, XorShiftRandom random) {
         this.isVisible = true;
         this.posX = posX;
         this.posY = posY;
         this.alpha = Color.alpha(Color.WHITE);
 
-        movement = new Movement();
-        movement.setMovement(RANDOM.nextInt((MAX_SPEED - MIN_SPEED) + 1) + MIN_SPEED, angle, 0, 0);
+        movement.setMovement(random.nextInt((MAX_SPEED - MIN_SPEED) + 1) + MIN_SPEED, angle, 0, 0);
     }
 
     public boolean isVisible() {
@@ -68,6 +87,11 @@ public class Particle {
         return posY;
     }
 
+    public void setPos(int posX, int posY) {
+        this.posX = posX;
+        this.posY = posY;
+    }
+
     public int getAlpha() {
         return alpha;
     }
@@ -86,4 +110,27 @@ public class Particle {
             }
         }
     }
+
+    /**
+     * Writes the particle's state to a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void writeSnapshot(ByteBuffer buffer) {
+        buffer.putInt(posX).putInt(posY).putInt(alpha).put((byte) (isVisible ? 1 : 0));
+        movement.writeSnapshot(buffer);
+    }
+
+    /**
+     * Restores the particle's state from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public void readSnapshot(ByteBuffer buffer) {
+        posX = buffer.getInt();
+        posY = buffer.getInt();
+        alpha = buffer.getInt();
+        isVisible = buffer.get() != 0;
+        movement.readSnapshot(buffer);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.objects.components;
+
+/**
+ * This class keeps a small ring buffer with the most recent positions an object
+ * was displayed at, along with the time each position was shown on the screen.
+ * It allows touch events to be tested against what the user was actually seeing
+ * when the finger landed, instead of where the object is now.
+ */
+public final class PositionHistory {
+    // Number of positions kept (at 50 FPS this covers 160ms)
+    public static final int DEFAULT_CAPACITY = 8;
+
+    // The recorded samples, stored as parallel arrays to avoid creating objects
+    private final long[] times;
+    private final int[] positionsX;
+    private final int[] positionsY;
+    private final int capacity;
+
+    // Index of the next sample to be written and how many samples we have
+    private int head;
+    private int size;
+
+    /**
+     * Constructs a new, empty, position history with the default capacity.
+     */
+    public PositionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new, empty, position history.
+     *
+     * @param capacity The maximum number of positions that will be remembered.
+     * @throws java.lang.IllegalArgumentException if <code>capacity</code> is <= 0.
+     */
+    public PositionHistory(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("The history capacity must be greater than 0!");
+
+        this.capacity = capacity;
+        times = new long[capacity];
+        positionsX = new int[capacity];
+        positionsY = new int[capacity];
+    }
+
+    /**
+     * Records the position an object was displayed at, overwriting the oldest
+     * sample if the buffer is full. Samples must be recorded in chronological order.
+     *
+     * @param time The time the position was displayed, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @param posX The position on the X axis.
+     * @param posY The position on the Y axis.
+     */
+    public void record(long time, int posX, int posY) {
+        times[head] = time;
+        positionsX[head] = posX;
+        positionsY[head] = posY;
+
+        head = (head + 1) % capacity;
+        if (size < capacity) size++;
+    }
+
+    /**
+     * Forgets every recorded position.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns <code>true</code> if no position has been recorded yet.
+     *
+     * @return <code>true</code> if the history is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Computes the bounding box of every recorded position. The bounds are only
+     * grown, so the caller must initialize them (e.g. with the current position).
+     *
+     * @param bounds Array holding, in this order, the minimum X, minimum Y, maximum X and maximum Y.
+     */
+    public void growBounds(int[] bounds) {
+        for (int i = 0; i < size; i++) {
+            if (positionsX[i] < bounds[0]) bounds[0] = positionsX[i];
+            if (positionsY[i] < bounds[1]) bounds[1] = positionsY[i];
+            if (positionsX[i] > bounds[2]) bounds[2] = positionsX[i];
+            if (positionsY[i] > bounds[3]) bounds[3] = positionsY[i];
+        }
+    }
+
+    /**
+     * Finds the index of the sample that was on the screen at the specified time,
+     * that is, the most recent sample recorded at or before <code>time</code>. If
+     * the time is older than every sample, the oldest sample is used instead.
+     *
+     * @param time The time to rewind to, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @return The index of the sample or <code>-1</code> if the history is empty.
+     */
+    public int find(long time) {
+        if (size == 0) return -1;
+
+        // Walk backwards from the newest sample
+        int index = head;
+        for (int i = 0; i < size; i++) {
+            index = (index == 0 ? capacity : index) - 1;
+            if (times[index] <= time) return index;
+        }
+
+        // The event is older than anything we remember, use the oldest sample
+        return index;
+    }
+
+    /**
+     * Returns the position on the X axis of the sample at the specified index.
+     *
+     * @param index An index returned by {@link #find(long)}.
+     * @return The position on the X axis.
+     */
+    public int getPosX(int index) {
+        return positionsX[index];
+    }
+
+    /**
+     * Returns the position on the Y axis of the sample at the specified index.
+     *
+     * @param index An index returned by {@link #find(long)}.
+     * @return The position on the Y axis.
+     */
+    public int getPosY(int index) {
+        return positionsY[index];
+    }
+}
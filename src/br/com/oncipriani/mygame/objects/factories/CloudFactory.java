@@ -21,15 +21,21 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import br.com.oncipriani.mygame.R;
 import br.com.oncipriani.mygame.helpers.FisherYates;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
 import br.com.oncipriani.mygame.objects.Cloud;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 /**
  * This class provides methods for creating and recycling <code>Cloud</code> objects.
  */
 public final class CloudFactory {
-    private static final Random RANDOM = new Random();
+    // Names of the spans on the trace
+    private static final int TRACE_CREATE = Tracer.registerName("CloudFactory.createClouds");
+    private static final int TRACE_RECYCLE = Tracer.registerName("CloudFactory.recycleCloud");
+    private static final int TRACE_DECODE = Tracer.registerName("CloudFactory.decodeBitmaps");
 
     // How many of each type of cloud we have
     private static final int SMALL_CLOUDS_COUNT = 2;
@@ -54,6 +60,11 @@ public final class CloudFactory {
     private static int[] mediumCloudsPlacingGridY;
     private static int[] largeCloudsPlacingGridY;
 
+    // Height of each layer of clouds (the height of its highest cloud)
+    private static int smallCloudsLayerHeight;
+    private static int mediumCloudsLayerHeight;
+    private static int largeCloudsLayerHeight;
+
     // Indexes for each placing grid
     private static int cloudsPlacingGridIndexX;
     private static int smallCloudsPlacingGridIndex;
@@ -78,41 +89,29 @@ public final class CloudFactory {
      * @param screenWidth  The screen's width in pixels.
      * @param screenHeight The screen's height in pixels.
      * @param res          Handler providing access to our game's resources.
+     * @param random       The generator that picks the clouds' positions and speeds.
      * @return An array of <code>Cloud</code> objects with <code>count</code> objects.
      * @throws java.lang.IllegalArgumentException if <code>count</code> is <= 0.
      */
-    public static Cloud[] createClouds(int type, int count, int screenWidth, int screenHeight, Resources res) {
+    public static Cloud[] createClouds(int type, int count, int screenWidth, int screenHeight, Resources res, XorShiftRandom random) {
         if (count <= 0) throw new IllegalArgumentException("Cannot create an array of 0 or less elements!");
 
+        Tracer.begin(TRACE_CREATE);
+
         // Load the bitmaps and initialize the placing grids if necessary
         if (cloudsPlacingGridX == null) {
-            // Create the grids and initialize their index pointers
+            // Create the grids
             cloudsPlacingGridX = new int[PLACING_GRID_X_SIZE];
             smallCloudsPlacingGridY = new int[PLACING_GRID_Y_SIZE];
             mediumCloudsPlacingGridY = new int[PLACING_GRID_Y_SIZE];
             largeCloudsPlacingGridY = new int[PLACING_GRID_Y_SIZE];
-            cloudsPlacingGridIndexX = 0;
-            smallCloudsPlacingGridIndex = 0;
-            mediumCloudsPlacingGridIndex = 0;
-            largeCloudsPlacingGridIndex = 0;
-
-            // Initialize the X axis placing grid
-            FisherYates.initialize(cloudsPlacingGridX, 0, screenWidth);
-
-            // Initialize the small clouds and layer
-            int layerStartingPos = Math.round(screenHeight * 0.75f); // Small clouds start at 3/4 of the screen
-            int layerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_SMALL);
-            FisherYates.initialize(smallCloudsPlacingGridY, layerStartingPos, layerStartingPos + layerHeight);
-
-            // Initialize the medium clouds and layer
-            layerStartingPos += layerHeight; // Medium clouds start where the small clouds end
-            layerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_MEDIUM);
-            FisherYates.initialize(mediumCloudsPlacingGridY, layerStartingPos, layerHeight + layerStartingPos);
-
-            // Initialize the medium clouds and layer
-            layerStartingPos += layerHeight; // Large clouds start where the medium clouds end
-            layerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_LARGE);
-            FisherYates.initialize(largeCloudsPlacingGridY, layerStartingPos, layerHeight + layerStartingPos);
+
+            // Load the bitmaps, which define the height of each layer
+            smallCloudsLayerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_SMALL);
+            mediumCloudsLayerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_MEDIUM);
+            largeCloudsLayerHeight = loadCloudBitmaps(res, Cloud.CLOUD_TYPE_LARGE);
+
+            initializePlacingGrids(screenWidth, screenHeight, random);
         }
 
         Cloud[] clouds = new Cloud[count];
@@ -122,8 +121,8 @@ public final class CloudFactory {
             case Cloud.CLOUD_TYPE_SMALL:
                 for (int i = 0; i < count; i++) {
                     clouds[i] = new Cloud(getNextCloudBitmap(Cloud.CLOUD_TYPE_SMALL),
-                            getRandomCloudPosX(), getRandomCloudPosY(Cloud.CLOUD_TYPE_SMALL),
-                            RANDOM.nextInt((SMALL_CLOUD_MAX_SPEED - SMALL_CLOUD_MIN_SPEED) + 1) + SMALL_CLOUD_MIN_SPEED,
+                            getRandomCloudPosX(random), getRandomCloudPosY(Cloud.CLOUD_TYPE_SMALL, random),
+                            random.nextInt((SMALL_CLOUD_MAX_SPEED - SMALL_CLOUD_MIN_SPEED) + 1) + SMALL_CLOUD_MIN_SPEED,
                             Cloud.CLOUD_TYPE_SMALL);
                 }
                 break;
@@ -131,8 +130,8 @@ public final class CloudFactory {
             case Cloud.CLOUD_TYPE_MEDIUM:
                 for (int i = 0; i < count; i++) {
                     clouds[i] = new Cloud(getNextCloudBitmap(Cloud.CLOUD_TYPE_MEDIUM),
-                            getRandomCloudPosX(), getRandomCloudPosY(Cloud.CLOUD_TYPE_MEDIUM),
-                            RANDOM.nextInt((MEDIUM_CLOUD_MAX_SPEED - MEDIUM_CLOUD_MIN_SPEED) + 1) + MEDIUM_CLOUD_MIN_SPEED,
+                            getRandomCloudPosX(random), getRandomCloudPosY(Cloud.CLOUD_TYPE_MEDIUM, random),
+                            random.nextInt((MEDIUM_CLOUD_MAX_SPEED - MEDIUM_CLOUD_MIN_SPEED) + 1) + MEDIUM_CLOUD_MIN_SPEED,
                             Cloud.CLOUD_TYPE_MEDIUM);
                 }
                 break;
@@ -140,43 +139,157 @@ public final class CloudFactory {
             case Cloud.CLOUD_TYPE_LARGE:
                 for (int i = 0; i < count; i++) {
                     clouds[i] = new Cloud(getNextCloudBitmap(Cloud.CLOUD_TYPE_LARGE),
-                            getRandomCloudPosX(), getRandomCloudPosY(Cloud.CLOUD_TYPE_LARGE),
-                            RANDOM.nextInt((LARGE_CLOUD_MAX_SPEED - LARGE_CLOUD_MIN_SPEED) + 1) + LARGE_CLOUD_MIN_SPEED,
+                            getRandomCloudPosX(random), getRandomCloudPosY(Cloud.CLOUD_TYPE_LARGE, random),
+                            random.nextInt((LARGE_CLOUD_MAX_SPEED - LARGE_CLOUD_MIN_SPEED) + 1) + LARGE_CLOUD_MIN_SPEED,
                             Cloud.CLOUD_TYPE_LARGE);
                 }
                 break;
         }
 
+        Tracer.end(TRACE_CREATE);
+
         return clouds;
     }
 
+    /**
+     * Rebuilds the grids used to place the clouds for a new screen size. The bitmaps
+     * are kept. Does nothing if no cloud was created yet.
+     *
+     * @param screenWidth  The screen's new width in pixels.
+     * @param screenHeight The screen's new height in pixels.
+     * @param random       The generator that shuffles the grids.
+     */
+    public static void resize(int screenWidth, int screenHeight, XorShiftRandom random) {
+        if (cloudsPlacingGridX != null) initializePlacingGrids(screenWidth, screenHeight, random);
+    }
+
+    /**
+     * Writes the placing grids and their indexes to a snapshot, so the clouds
+     * recycled after restoring it are placed the same way.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @throws java.lang.IllegalStateException if no cloud was created yet.
+     */
+    public static void writeSnapshot(ByteBuffer buffer) {
+        if (cloudsPlacingGridX == null) throw new IllegalStateException("No cloud was created yet");
+
+        buffer.putInt(cloudsPlacingGridIndexX).putInt(smallCloudsPlacingGridIndex)
+                .putInt(mediumCloudsPlacingGridIndex).putInt(largeCloudsPlacingGridIndex);
+        writeGrid(buffer, cloudsPlacingGridX);
+        writeGrid(buffer, smallCloudsPlacingGridY);
+        writeGrid(buffer, mediumCloudsPlacingGridY);
+        writeGrid(buffer, largeCloudsPlacingGridY);
+    }
+
+    /**
+     * Restores the placing grids and their indexes from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @throws java.lang.IllegalStateException if no cloud was created yet.
+     * @throws java.lang.IllegalArgumentException if the snapshot has an invalid grid index.
+     */
+    public static void readSnapshot(ByteBuffer buffer) {
+        if (cloudsPlacingGridX == null) throw new IllegalStateException("No cloud was created yet");
+
+        final int indexX = buffer.getInt();
+        final int smallIndex = buffer.getInt();
+        final int mediumIndex = buffer.getInt();
+        final int largeIndex = buffer.getInt();
+        if (indexX < 0 || indexX > PLACING_GRID_X_SIZE || smallIndex < 0 || smallIndex > PLACING_GRID_Y_SIZE
+                || mediumIndex < 0 || mediumIndex > PLACING_GRID_Y_SIZE || largeIndex < 0 || largeIndex > PLACING_GRID_Y_SIZE) {
+            throw new IllegalArgumentException("Invalid placing grid index");
+        }
+
+        cloudsPlacingGridIndexX = indexX;
+        smallCloudsPlacingGridIndex = smallIndex;
+        mediumCloudsPlacingGridIndex = mediumIndex;
+        largeCloudsPlacingGridIndex = largeIndex;
+        readGrid(buffer, cloudsPlacingGridX);
+        readGrid(buffer, smallCloudsPlacingGridY);
+        readGrid(buffer, mediumCloudsPlacingGridY);
+        readGrid(buffer, largeCloudsPlacingGridY);
+    }
+
+    /**
+     * Writes every position of a placing grid to a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @param grid   The placing grid to be written.
+     */
+    private static void writeGrid(ByteBuffer buffer, int[] grid) {
+        for (int i = 0; i < grid.length; i++) buffer.putInt(grid[i]);
+    }
+
+    /**
+     * Reads every position of a placing grid from a snapshot.
+     *
+     * @param buffer The buffer holding the snapshot.
+     * @param grid   The placing grid to be filled.
+     */
+    private static void readGrid(ByteBuffer buffer, int[] grid) {
+        for (int i = 0; i < grid.length; i++) grid[i] = buffer.getInt();
+    }
+
+    /**
+     * Initializes the placing grids and their index pointers for the specified screen size.
+     *
+     * @param screenWidth  The screen's width in pixels.
+     * @param screenHeight The screen's height in pixels.
+     * @param random       The generator that shuffles the grids.
+     */
+    private static void initializePlacingGrids(int screenWidth, int screenHeight, XorShiftRandom random) {
+        cloudsPlacingGridIndexX = 0;
+        smallCloudsPlacingGridIndex = 0;
+        mediumCloudsPlacingGridIndex = 0;
+        largeCloudsPlacingGridIndex = 0;
+
+        // Initialize the X axis placing grid
+        FisherYates.initialize(cloudsPlacingGridX, 0, screenWidth, random);
+
+        // Initialize the small clouds layer
+        int layerStartingPos = Math.round(screenHeight * 0.75f); // Small clouds start at 3/4 of the screen
+        FisherYates.initialize(smallCloudsPlacingGridY, layerStartingPos, layerStartingPos + smallCloudsLayerHeight, random);
+
+        // Initialize the medium clouds layer
+        layerStartingPos += smallCloudsLayerHeight; // Medium clouds start where the small clouds end
+        FisherYates.initialize(mediumCloudsPlacingGridY, layerStartingPos, layerStartingPos + mediumCloudsLayerHeight, random);
+
+        // Initialize the large clouds layer
+        layerStartingPos += mediumCloudsLayerHeight; // Large clouds start where the medium clouds end
+        FisherYates.initialize(largeCloudsPlacingGridY, layerStartingPos, layerStartingPos + largeCloudsLayerHeight, random);
+    }
+
     /**
      * Repositions an existing Cloud object so it will be outside the right side of the screen.
      * This method also sets the speed of the cloud to a new random value.
      *
      * @param cloud       The Cloud object to be recycled.
      * @param screenWidth The screen's width in pixels.
+     * @param random      The generator that picks the cloud's new position and speed.
      */
-    public static void recycleCloud(Cloud cloud, int screenWidth) {
+    public static void recycleCloud(Cloud cloud, int screenWidth, XorShiftRandom random) {
+        Tracer.begin(TRACE_RECYCLE);
         final int posX = screenWidth + cloud.width;
 
         // Get a new position on the Y axis and a new speed based on the cloud type
         switch (cloud.type) {
             case Cloud.CLOUD_TYPE_SMALL:
-                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_SMALL));
-                cloud.setSpeedX(RANDOM.nextInt((SMALL_CLOUD_MAX_SPEED - SMALL_CLOUD_MIN_SPEED) + 1) + SMALL_CLOUD_MIN_SPEED);
+                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_SMALL, random));
+                cloud.setSpeedX(random.nextInt((SMALL_CLOUD_MAX_SPEED - SMALL_CLOUD_MIN_SPEED) + 1) + SMALL_CLOUD_MIN_SPEED);
                 break;
 
             case Cloud.CLOUD_TYPE_MEDIUM:
-                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_MEDIUM));
-                cloud.setSpeedX(RANDOM.nextInt((MEDIUM_CLOUD_MAX_SPEED - MEDIUM_CLOUD_MIN_SPEED) + 1) + MEDIUM_CLOUD_MIN_SPEED);
+                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_MEDIUM, random));
+                cloud.setSpeedX(random.nextInt((MEDIUM_CLOUD_MAX_SPEED - MEDIUM_CLOUD_MIN_SPEED) + 1) + MEDIUM_CLOUD_MIN_SPEED);
                 break;
 
             case Cloud.CLOUD_TYPE_LARGE:
-                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_LARGE));
-                cloud.setSpeedX(RANDOM.nextInt((LARGE_CLOUD_MAX_SPEED - LARGE_CLOUD_MIN_SPEED) + 1) + LARGE_CLOUD_MIN_SPEED);
+                cloud.setPos(posX, getRandomCloudPosY(Cloud.CLOUD_TYPE_LARGE, random));
+                cloud.setSpeedX(random.nextInt((LARGE_CLOUD_MAX_SPEED - LARGE_CLOUD_MIN_SPEED) + 1) + LARGE_CLOUD_MIN_SPEED);
                 break;
         }
+
+        Tracer.end(TRACE_RECYCLE);
     }
 
     /**
@@ -191,6 +304,8 @@ public final class CloudFactory {
         final Bitmap[] bitmaps;
         final int arraySize;
 
+        Tracer.begin(TRACE_DECODE);
+
         // Initialize the bitmap array for the specified cloud type and reset it's index pointer
         switch (cloudType) {
             case Cloud.CLOUD_TYPE_SMALL:
@@ -237,10 +352,13 @@ public final class CloudFactory {
                 throw new IllegalArgumentException("Invalid cloud type.");
         }
 
+        Tracer.end(TRACE_DECODE);
+
         // Find the highest cloud in the array
         int maxHeight = 0;
         for (int i = 0; i < arraySize; i++) {
             maxHeight = Math.max(maxHeight, bitmaps[i].getHeight());
+            Metrics.add(Metrics.BITMAP_BYTES, Metrics.getBitmapBytes(bitmaps[i]));
         }
 
         // Return the height of the highest cloud in the array
@@ -288,12 +406,13 @@ public final class CloudFactory {
     /**
      * Gets a random position from the clouds X positioning array.
      *
+     * @param random The generator that shuffles the grid once every position was used.
      * @return A random position from the clouds X positioning array.
      */
-    private static int getRandomCloudPosX() {
+    private static int getRandomCloudPosX(XorShiftRandom random) {
         // Check if it's time to reset the grid
         if (cloudsPlacingGridIndexX >= PLACING_GRID_X_SIZE) {
-            FisherYates.shuffle(cloudsPlacingGridX);
+            FisherYates.shuffle(cloudsPlacingGridX, random);
             cloudsPlacingGridIndexX = 0;
         }
 
@@ -310,17 +429,18 @@ public final class CloudFactory {
      * Gets a random position on the Y axis for a cloud of the specified type.
      *
      * @param cloudType The type of cloud to get a position on the Y axis for.
+     * @param random    The generator that shuffles the grid once every position was used.
      * @return A random position on the Y axis for the cloud.
      * @throws java.lang.IllegalArgumentException if the cloud type is invalid.
      */
-    private static int getRandomCloudPosY(int cloudType) {
+    private static int getRandomCloudPosY(int cloudType, XorShiftRandom random) {
         final int pos;
 
         switch (cloudType) {
             case Cloud.CLOUD_TYPE_SMALL:
                 // Check if it's time to reset the grid
                 if (smallCloudsPlacingGridIndex >= PLACING_GRID_Y_SIZE) {
-                    FisherYates.shuffle(smallCloudsPlacingGridY);
+                    FisherYates.shuffle(smallCloudsPlacingGridY, random);
                     smallCloudsPlacingGridIndex = 0;
                 }
 
@@ -334,7 +454,7 @@ public final class CloudFactory {
             case Cloud.CLOUD_TYPE_MEDIUM:
                 // Check if it's time to reset the grid
                 if (mediumCloudsPlacingGridIndex >= PLACING_GRID_Y_SIZE) {
-                    FisherYates.shuffle(mediumCloudsPlacingGridY);
+                    FisherYates.shuffle(mediumCloudsPlacingGridY, random);
                     mediumCloudsPlacingGridIndex = 0;
                 }
 
@@ -348,7 +468,7 @@ public final class CloudFactory {
             case Cloud.CLOUD_TYPE_LARGE:
                 // Check if it's time to reset the grid
                 if (largeCloudsPlacingGridIndex >= PLACING_GRID_Y_SIZE) {
-                    FisherYates.shuffle(largeCloudsPlacingGridY);
+                    FisherYates.shuffle(largeCloudsPlacingGridY, random);
                     largeCloudsPlacingGridIndex = 0;
                 }
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.objects.factories;
+
+import android.graphics.Bitmap;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
+import br.com.oncipriani.mygame.objects.Explosion;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
+
+/**
+ * This class provides methods for creating and recycling <code>Explosion</code> objects.
+ * <p>
+ * Explosions are created every time the user hits a star, so they are kept in a pool
+ * instead of being left for the garbage collector.
+ * </p>
+ */
+public final class ExplosionFactory {
+    // Names of the spans on the trace
+    private static final int TRACE_CREATE = Tracer.registerName("ExplosionFactory.createExplosion");
+
+    // Metrics published by the factory
+    private static final int METRIC_CREATED = Metrics.registerCounter("explosions.created");
+    private static final int METRIC_POOLED = Metrics.registerGauge("explosions.pooled");
+
+    // Maximum number of finished explosions kept for reuse
+    private static final int MAX_RECYCLED_EXPLOSIONS = 16;
+
+    // Explosions that are finished and can be reused
+    private static final Explosion[] recycledExplosions = new Explosion[MAX_RECYCLED_EXPLOSIONS];
+    private static int recycledExplosionCount = 0;
+
+    /**
+     * Starts an explosion at the specified position, reusing a recycled one if there is any.
+     *
+     * @param bitmap    The image used for the explosion's particles.
+     * @param size      The number of particles of the explosion.
+     * @param posX      The explosion's origin on the X axis.
+     * @param posY      The explosion's origin on the Y axis.
+     * @param eventTime The time of the touch that caused the explosion, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     * @param random    The generator that picks the directions and speeds of the particles.
+     * @return An Explosion object.
+     */
+    public static Explosion createExplosion(Bitmap bitmap, int size, int posX, int posY, long eventTime, XorShiftRandom random) {
+        final Explosion explosion;
+
+        Tracer.begin(TRACE_CREATE);
+        if (recycledExplosionCount > 0) {
+            recycledExplosionCount--;
+            explosion = recycledExplosions[recycledExplosionCount];
+            recycledExplosions[recycledExplosionCount] = null;
+            explosion.reset(bitmap, size, posX, posY, eventTime, random);
+            Metrics.set(METRIC_POOLED, recycledExplosionCount);
+        } else {
+            explosion = new Explosion(bitmap, size, posX, posY, eventTime, random);
+            Metrics.increment(METRIC_CREATED);
+        }
+        Tracer.end(TRACE_CREATE);
+
+        return explosion;
+    }
+
+    /**
+     * Takes an explosion from the pool, or creates a new one, without starting it, so
+     * its state can be restored from a snapshot. No random number is drawn.
+     *
+     * @param bitmap The image used for the explosion's particles.
+     * @return An Explosion object that is not visible yet.
+     */
+    public static Explosion obtainExplosion(Bitmap bitmap) {
+        final Explosion explosion;
+        if (recycledExplosionCount > 0) {
+            recycledExplosionCount--;
+            explosion = recycledExplosions[recycledExplosionCount];
+            recycledExplosions[recycledExplosionCount] = null;
+            Metrics.set(METRIC_POOLED, recycledExplosionCount);
+        } else {
+            explosion = new Explosion();
+            Metrics.increment(METRIC_CREATED);
+        }
+        explosion.setBitmap(bitmap);
+
+        return explosion;
+    }
+
+    /**
+     * Keeps a finished explosion, so it can be returned by a future call to
+     * {@link #createExplosion(android.graphics.Bitmap, int, int, int, long, br.com.oncipriani.mygame.helpers.XorShiftRandom)}.
+     * The explosion must not be used by the caller after being recycled.
+     *
+     * @param explosion The Explosion object to be recycled.
+     */
+    public static void recycleExplosion(Explosion explosion) {
+        if (recycledExplosionCount < MAX_RECYCLED_EXPLOSIONS) {
+            recycledExplosions[recycledExplosionCount] = explosion;
+            recycledExplosionCount++;
+            Metrics.set(METRIC_POOLED, recycledExplosionCount);
+        }
+    }
+
+    /**
+     * Fills the pool with new explosions, so they don't have to be created while
+     * the game is running.
+     *
+     * @param count The number of explosions that should be available on the pool.
+     */
+    public static void preallocate(int count) {
+        if (count > MAX_RECYCLED_EXPLOSIONS) count = MAX_RECYCLED_EXPLOSIONS;
+        while (recycledExplosionCount < count) {
+            recycledExplosions[recycledExplosionCount] = new Explosion();
+            recycledExplosionCount++;
+            Metrics.increment(METRIC_CREATED);
+        }
+        Metrics.set(METRIC_POOLED, recycledExplosionCount);
+    }
+}
@@ -21,90 +21,235 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import br.com.oncipriani.mygame.R;
 import br.com.oncipriani.mygame.helpers.FisherYates;
+import br.com.oncipriani.mygame.helpers.XorShiftRandom;
 import br.com.oncipriani.mygame.objects.Star;
+import br.com.oncipriani.mygame.objects.components.HitMask;
+import br.com.oncipriani.mygame.profiling.Metrics;
+import br.com.oncipriani.mygame.profiling.Tracer;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 /**
- * This class provides methods for creating <code>Star</code> objects.
+ * This class provides methods for creating and recycling <code>Star</code> objects.
  */
 public final class StarFactory {
-    private static final Random RANDOM = new Random();
+    // Names of the spans on the trace
+    private static final int TRACE_CREATE = Tracer.registerName("StarFactory.createStar");
+    private static final int TRACE_DECODE = Tracer.registerName("StarFactory.decodeBitmap");
+
+    // Metrics published by the factory
+    private static final int METRIC_CREATED = Metrics.registerCounter("stars.created");
+    private static final int METRIC_POOLED = Metrics.registerGauge("stars.pooled");
+
+    // Maximum number of destroyed stars kept for reuse
+    private static final int MAX_RECYCLED_STARS = 8;
 
     // Placing grid size
     private static final int PLACING_GRID_SIZE = 10;
 
-    // Array used to place the stars and its current index
-    private static int[] starPlacingGrid;
+    // Array used to place the stars and its current index (created along with the first star)
+    private static int[] starPlacingGrid = null;
     private static int starPlacingGridIndex;
 
     // The star bitmap and it's starting position on the Y axis
     private static Bitmap starBitmap = null;
     private static int starStartingPosY;
 
+    // The collision mask shared by every star
+    private static HitMask starHitMask;
+
+    // Stars that were destroyed and can be reused
+    private static final Star[] recycledStars = new Star[MAX_RECYCLED_STARS];
+    private static int recycledStarCount = 0;
+
     /**
      * Creates a new Star object with random speed, energy and fall angle.
      * The star will be positioned just outside the top of the screen.
+     * Stars that were recycled are reused before any new object is created.
      *
      * @param screenWidth The screen's width in pixels.
      * @param resources   Handler providing access to our game's resources.
+     * @param random      The generator that picks the star's position and attributes.
      * @return A new Star object.
      */
-    public static Star createStar(Resources resources, int screenWidth) {
+    public static Star createStar(Resources resources, int screenWidth, XorShiftRandom random) {
         int angle;
 
+        Tracer.begin(TRACE_CREATE);
+
         // Check if we are being called for the first time
-        if (starBitmap == null) initializeStars(resources, screenWidth);
+        if (starBitmap == null) loadBitmap(resources);
+        if (starPlacingGrid == null) {
+            starPlacingGrid = new int[PLACING_GRID_SIZE];
+            initializePlacingGrid(screenWidth, random);
+        }
 
         // Choose a new random position for the star using the positioning array
-        final int posX = getRandomStarPosX();
+        final int posX = getRandomStarPosX(random);
 
         // If the star will be placed on the right side of the screen, make it fall towards
         // the left side of the screen. Make it fall towards the right side otherwise.
         if (posX < screenWidth / 2) {
             // The angle must be between 270 and 285 degrees
-            angle = RANDOM.nextInt(285 - 270 + 1) + 270;
+            angle = random.nextInt(285 - 270 + 1) + 270;
         } else {
             // The angle must be between 255 and 270 degrees
-            angle = RANDOM.nextInt(270 - 255 + 1) + 255;
+            angle = random.nextInt(270 - 255 + 1) + 255;
         }
 
-        final int speed = RANDOM.nextInt((Star.MAX_SPEED - Star.MIN_SPEED) + 1) + Star.MIN_SPEED;
-        final int energy = RANDOM.nextInt((Star.MAX_ENERGY - Star.MIN_ENERGY) + 1) + Star.MIN_ENERGY;
+        final int speed = random.nextInt((Star.MAX_SPEED - Star.MIN_SPEED) + 1) + Star.MIN_SPEED;
+        final int energy = random.nextInt((Star.MAX_ENERGY - Star.MIN_ENERGY) + 1) + Star.MIN_ENERGY;
+
+        final Star star;
+        if (recycledStarCount > 0) {
+            recycledStarCount--;
+            star = recycledStars[recycledStarCount];
+            recycledStars[recycledStarCount] = null;
+            star.reset(posX, starStartingPosY, speed, angle, energy);
+            Metrics.set(METRIC_POOLED, recycledStarCount);
+        } else {
+            star = new Star(starBitmap, starHitMask, posX, starStartingPosY, speed, angle, energy);
+            Metrics.increment(METRIC_CREATED);
+        }
+        Tracer.end(TRACE_CREATE);
 
-        return new Star(starBitmap, posX, starStartingPosY, speed, angle, energy);
+        return star;
     }
 
     /**
-     * Loads the star's bitmap and places a single star on the screen.
+     * Takes a star from the pool, or creates a new one, without picking its position
+     * and attributes, so its state can be restored from a snapshot. No random number
+     * is drawn and the placing grid is left untouched.
      *
      * @param resources Handler providing access to our game's resources.
+     * @return A Star object whose state must be restored by the caller.
      */
-    private static void initializeStars(Resources resources, int screenWidth) {
+    public static Star obtainStar(Resources resources) {
+        if (starBitmap == null) loadBitmap(resources);
+
+        final Star star;
+        if (recycledStarCount > 0) {
+            recycledStarCount--;
+            star = recycledStars[recycledStarCount];
+            recycledStars[recycledStarCount] = null;
+            Metrics.set(METRIC_POOLED, recycledStarCount);
+        } else {
+            star = new Star(starBitmap, starHitMask, 0, starStartingPosY, Star.MIN_SPEED, 270, Star.MIN_ENERGY);
+            Metrics.increment(METRIC_CREATED);
+        }
+
+        return star;
+    }
+
+    /**
+     * Keeps a destroyed star, so it can be returned by a future call to
+     * {@link #createStar(android.content.res.Resources, int, br.com.oncipriani.mygame.helpers.XorShiftRandom)}. The star must not
+     * be used by the caller after being recycled.
+     *
+     * @param star The Star object to be recycled.
+     */
+    public static void recycleStar(Star star) {
+        if (recycledStarCount < MAX_RECYCLED_STARS) {
+            recycledStars[recycledStarCount] = star;
+            recycledStarCount++;
+            Metrics.set(METRIC_POOLED, recycledStarCount);
+        }
+    }
+
+    /**
+     * Loads the star's bitmap and builds its collision mask.
+     *
+     * @param resources Handler providing access to our game's resources.
+     */
+    private static void loadBitmap(Resources resources) {
         // Load the bitmap for the stars
+        Tracer.begin(TRACE_DECODE);
         starBitmap = BitmapFactory.decodeResource(resources, R.drawable.star_large);
+        Tracer.end(TRACE_DECODE);
+        Metrics.add(Metrics.BITMAP_BYTES, Metrics.getBitmapBytes(starBitmap));
         starStartingPosY = (starBitmap.getHeight() / 2) * -1;
 
+        // Build the collision mask once, so every star can share it
+        starHitMask = new HitMask(starBitmap);
+    }
+
+    /**
+     * Rebuilds the grid used to place the stars for a new screen width. The bitmap
+     * is kept. Does nothing if no star was created yet.
+     *
+     * @param screenWidth The screen's new width in pixels.
+     * @param random      The generator that shuffles the grid.
+     */
+    public static void resize(int screenWidth, XorShiftRandom random) {
+        if (starPlacingGrid != null) initializePlacingGrid(screenWidth, random);
+    }
+
+    /**
+     * Writes the placing grid and its index to a snapshot, so the stars created after
+     * restoring it are placed the same way.
+     *
+     * @param buffer The buffer holding the snapshot.
+     */
+    public static void writeSnapshot(ByteBuffer buffer) {
+        if (starPlacingGrid == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+
+        buffer.put((byte) 1).putInt(starPlacingGridIndex);
+        for (int i = 0; i < PLACING_GRID_SIZE; i++) buffer.putInt(starPlacingGrid[i]);
+    }
+
+    /**
+     * Restores the placing grid and its index from a snapshot.
+     *
+     * @param resources Handler providing access to our game's resources.
+     * @param buffer    The buffer holding the snapshot.
+     * @throws java.lang.IllegalArgumentException if the snapshot has an invalid grid index.
+     */
+    public static void readSnapshot(Resources resources, ByteBuffer buffer) {
+        // The grid is only created along with the first star
+        if (buffer.get() == 0) {
+            starPlacingGrid = null;
+            return;
+        }
+
+        final int index = buffer.getInt();
+        if (index < 0 || index > PLACING_GRID_SIZE) throw new IllegalArgumentException("Invalid placing grid index");
+
+        // The grid's margin depends on the bitmap, so it must be loaded before the next resize
+        if (starBitmap == null) loadBitmap(resources);
+        if (starPlacingGrid == null) starPlacingGrid = new int[PLACING_GRID_SIZE];
+
+        starPlacingGridIndex = index;
+        for (int i = 0; i < PLACING_GRID_SIZE; i++) starPlacingGrid[i] = buffer.getInt();
+    }
+
+    /**
+     * Initializes the placing grid and its index pointer for the specified screen width.
+     *
+     * @param screenWidth The screen's width in pixels.
+     * @param random      The generator that shuffles the grid.
+     */
+    private static void initializePlacingGrid(int screenWidth, XorShiftRandom random) {
         // Use the bitmap width as margin
         final int placingGridMargin = starBitmap.getWidth();
-
-        // Create the grid used to position the stars on the screen
-        starPlacingGrid = new int[PLACING_GRID_SIZE];
         starPlacingGridIndex = 0;
 
         // Initialize the grid using Fisher-Yates shuffle ("inside out" version).
-        FisherYates.initialize(starPlacingGrid, placingGridMargin, screenWidth - placingGridMargin);
+        FisherYates.initialize(starPlacingGrid, placingGridMargin, screenWidth - placingGridMargin, random);
     }
 
     /**
      * Gets a random position from the star positioning array.
      *
+     * @param random The generator that shuffles the grid once every position was used.
      * @return A random position from the star positioning array.
      */
-    private static int getRandomStarPosX() {
+    private static int getRandomStarPosX(XorShiftRandom random) {
         // Check if it's time to reset the grid
         if (starPlacingGridIndex >= PLACING_GRID_SIZE) {
-            FisherYates.shuffle(starPlacingGrid);
+            FisherYates.shuffle(starPlacingGrid, random);
             starPlacingGridIndex = 0;
         }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.os.Debug;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts the bytes allocated by the threads running the game loop, using
+ * the per-thread allocation counters of the runtime. A thread can only read its own
+ * counter, so the worker threads of the {@link br.com.oncipriani.mygame.engine.JobScheduler}
+ * and the {@link br.com.oncipriani.mygame.engine.WorkerPool} publish theirs through
+ * {@link #publish(AtomicLongArray, int)} every time they finish some work.
+ * <p>
+ * The counters slow down every allocation, so they are only enabled while someone
+ * is counting. When they are disabled, publishing returns right after checking a flag.
+ * </p>
+ */
+public final class AllocationCounter {
+    // How many callers are counting the allocations
+    private static int users;
+    private static volatile boolean isCounting;
+
+    private AllocationCounter() {
+    }
+
+    /**
+     * Enables the allocation counters of the runtime. Must be balanced by a call to {@link #stop()}.
+     */
+    public static synchronized void start() {
+        if (users++ == 0) {
+            Debug.startAllocCounting();
+            isCounting = true;
+        }
+    }
+
+    /**
+     * Disables the allocation counters once every caller of {@link #start()} is done.
+     */
+    public static synchronized void stop() {
+        if (users > 0 && --users == 0) {
+            isCounting = false;
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Returns how many bytes the calling thread allocated since the counters were enabled.
+     *
+     * @return The number of bytes allocated by the calling thread.
+     */
+    public static long getThreadBytes() {
+        return Debug.getThreadAllocSize();
+    }
+
+    /**
+     * Publishes how many bytes the calling thread allocated, so other threads can read it.
+     * Does nothing if the allocations are not being counted.
+     *
+     * @param bytes The bytes allocated by each thread of a pool.
+     * @param index The index of the calling thread on the pool.
+     */
+    public static void publish(AtomicLongArray bytes, int index) {
+        if (isCounting) bytes.set(index, Debug.getThreadAllocSize());
+    }
+
+    /**
+     * Sums the bytes published by the threads of a pool.
+     *
+     * @param bytes The bytes allocated by each thread of a pool.
+     * @return The total number of bytes.
+     */
+    public static long sum(AtomicLongArray bytes) {
+        long total = 0;
+        for (int i = 0; i < bytes.length(); i++) total += bytes.get(i);
+
+        return total;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import br.com.oncipriani.mygame.engine.JobScheduler;
+import br.com.oncipriani.mygame.engine.WorkerPool;
+
+/**
+ * This class checks that the main game loop does not allocate any memory once
+ * it reaches its steady state. Allocations eventually cause the garbage collector
+ * to pause the game, so they should only happen while loading. As soon as a phase
+ * of the loop allocates after the warm-up, the verifier fails with an exception
+ * naming the phase.
+ * <p>
+ * The allocations are counted by {@link AllocationCounter} on each thread working
+ * for the loop: the thread calling the verifier and the workers of the default
+ * {@link br.com.oncipriani.mygame.engine.JobScheduler} and
+ * {@link br.com.oncipriani.mygame.engine.WorkerPool}. Every allocation is counted
+ * as soon as it happens, and the other threads of the process (e.g. the UI thread
+ * handling a touch) are never blamed on the loop.
+ * </p>
+ */
+public final class AllocationVerifier {
+    // How many ticks are ignored while the game is loading
+    private final int warmUpTicks;
+    private long tick;
+
+    // The threads running the loop besides the one calling the verifier
+    private final JobScheduler scheduler = JobScheduler.getDefault();
+    private final WorkerPool pool = WorkerPool.getDefault();
+
+    // Bytes allocated by the loop's threads when the current phase began
+    private long phaseStartBytes;
+
+    /**
+     * Constructs a new allocation verifier and starts counting the allocations. The
+     * counting slows down every allocation, so it must be stopped by {@link #stop()}.
+     *
+     * @param warmUpTicks How many ticks may allocate before the loop is expected to reach its steady state.
+     */
+    public AllocationVerifier(int warmUpTicks) {
+        this.warmUpTicks = warmUpTicks;
+        AllocationCounter.start();
+    }
+
+    /**
+     * Stops counting the allocations. The verifier must not be used afterwards.
+     */
+    public void stop() {
+        AllocationCounter.stop();
+    }
+
+    /**
+     * Marks the beginning of a phase of the loop.
+     */
+    public void beginPhase() {
+        phaseStartBytes = getAllocatedBytes();
+    }
+
+    /**
+     * Marks the end of a phase of the loop.
+     *
+     * @param phase One of the {@link FrameProfiler} <code>PHASE_*</code> constants.
+     * @throws java.lang.IllegalStateException if the phase allocated anything after the warm-up.
+     */
+    public void endPhase(int phase) {
+        final long bytes = getAllocatedBytes() - phaseStartBytes;
+
+        if (bytes <= 0 || tick < warmUpTicks) return;
+
+        throw new IllegalStateException("The " + FrameProfiler.getPhaseName(phase) + " phase allocated " + bytes +
+                " bytes on tick " + tick + " of the steady state");
+    }
+
+    /**
+     * Marks the end of a tick of the loop.
+     */
+    public void endTick() {
+        tick++;
+    }
+
+    /**
+     * Returns how many bytes the loop's threads allocated since the verifier was created.
+     * Must be called by the thread running the loop.
+     *
+     * @return The number of bytes allocated.
+     */
+    private long getAllocatedBytes() {
+        return AllocationCounter.getThreadBytes() + scheduler.getWorkerAllocatedBytes() + pool.getWorkerAllocatedBytes();
+    }
+}
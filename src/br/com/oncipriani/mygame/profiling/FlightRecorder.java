@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class keeps a compact binary record of the last frames of the main game loop
+ * on a fixed size circular buffer. It is cheap enough to be always on, and it can
+ * be dumped to a file when something goes wrong (a crash, the surface being destroyed
+ * or on demand) so stutters can be analyzed offline using <code>scripts/analyze_flight_record.sh</code>.
+ * <p>
+ * The file starts with a header (magic number, version, record size and record count)
+ * followed by the records in chronological order. Every value is little endian.
+ * </p>
+ */
+public final class FlightRecorder {
+    // Identifies the file format
+    public static final int MAGIC = 0x4D474652; // "MGFR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    // Layout of each record: tick, lock, update, draw, post and frame times (in us),
+    // entity count, frames skipped and number of garbage collections since the last record
+    public static final int RECORD_SIZE = 8 + 5 * 4 + 4 + 4 + 4;
+
+    // Default number of records kept (about 80 seconds at 50 FPS)
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer header;
+    private final int capacity;
+    private int recordCount;
+
+    // Detects garbage collections without creating objects: the sentinel is only
+    // reachable through a weak reference, so it disappears on every collection
+    private WeakReference<Object> gcSentinel = new WeakReference<Object>(new Object());
+
+    /**
+     * Constructs a new flight recorder with the default capacity.
+     */
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new flight recorder.
+     *
+     * @param capacity How many records are kept before the oldest ones are overwritten.
+     */
+    public FlightRecorder(int capacity) {
+        this.capacity = capacity;
+
+        buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the record of a single frame, overwriting the oldest record if the buffer is full.
+     *
+     * @param tick          The frame's number.
+     * @param lockMicros    Time spent locking the canvas.
+     * @param updateMicros  Time spent updating the game (including the frames skipped).
+     * @param drawMicros    Time spent drawing the game.
+     * @param postMicros    Time spent posting the canvas.
+     * @param frameMicros   Time spent on the whole frame (including sleeping).
+     * @param entityCount   Number of entities on the exposed game states.
+     * @param framesSkipped Number of frames updated without being rendered.
+     */
+    public synchronized void record(long tick, int lockMicros, int updateMicros, int drawMicros, int postMicros,
+                                    int frameMicros, int entityCount, int framesSkipped) {
+        if (!buffer.hasRemaining()) buffer.clear();
+
+        buffer.putLong(tick);
+        buffer.putInt(lockMicros);
+        buffer.putInt(updateMicros);
+        buffer.putInt(drawMicros);
+        buffer.putInt(postMicros);
+        buffer.putInt(frameMicros);
+        buffer.putInt(entityCount);
+        buffer.putInt(framesSkipped);
+        buffer.putInt(countCollections());
+
+        if (recordCount < capacity) recordCount++;
+    }
+
+    /**
+     * Writes every record kept to a file, from the oldest to the newest, with a single
+     * (gathering) write. The file is overwritten if it already exists.
+     *
+     * @param file The file the records will be written to.
+     * @throws java.io.IOException if the file could not be written.
+     */
+    public synchronized void dump(File file) throws IOException {
+        final int position = buffer.position();
+        final boolean wrapped = recordCount == capacity;
+
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(RECORD_SIZE);
+        header.putInt(recordCount);
+        header.flip();
+
+        // The oldest records are after the current position if the buffer wrapped around
+        final ByteBuffer oldest = buffer.duplicate();
+        final ByteBuffer newest = buffer.duplicate();
+        if (wrapped) {
+            oldest.position(position).limit(capacity * RECORD_SIZE);
+        } else {
+            oldest.position(0).limit(0);
+        }
+        newest.position(0).limit(position);
+
+        final FileOutputStream stream = new FileOutputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            final ByteBuffer[] parts = {header, oldest, newest};
+            final long size = HEADER_SIZE + (long) recordCount * RECORD_SIZE;
+
+            // A single write is enough for regular files, but the channel contract allows partial writes
+            long written = 0;
+            while (written < size) written += channel.write(parts);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Counts the garbage collections since the last call.
+     *
+     * @return The number of garbage collections (at most 1) since the last call.
+     */
+    private int countCollections() {
+        if (gcSentinel.get() != null) return 0;
+
+        gcSentinel = new WeakReference<Object>(new Object());
+        return 1;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the latency histograms for each phase of the main game loop,
+ * along with how many frames were rendered and how many were skipped.
+ */
+public final class FrameProfiler {
+    // The phases of the main game loop (draw records the display list, render draws it on the screen)
+    public static final int PHASE_LOCK = 0;
+    public static final int PHASE_UPDATE = 1;
+    public static final int PHASE_DRAW = 2;
+    public static final int PHASE_RENDER = 3;
+    public static final int PHASE_POST = 4;
+    public static final int PHASE_FRAME = 5;
+    public static final int PHASE_COUNT = 6;
+
+    // Names used when reporting each phase
+    private static final String[] PHASE_NAMES = {"lock", "update", "draw", "render", "post", "frame"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASE_COUNT];
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+
+    /**
+     * Constructs a new, empty, frame profiler.
+     */
+    public FrameProfiler() {
+        for (int i = 0; i < PHASE_COUNT; i++) histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Returns the histogram of a phase of the main game loop.
+     *
+     * @param phase One of the <code>PHASE_*</code> constants.
+     * @return The phase's histogram.
+     */
+    public LatencyHistogram getHistogram(int phase) {
+        return histograms[phase];
+    }
+
+    /**
+     * Returns the name of a phase of the main game loop.
+     *
+     * @param phase One of the <code>PHASE_*</code> constants.
+     * @return The phase's name.
+     */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Records that a frame was rendered, and how many frames had to be skipped
+     * (updated without rendering) to catch up after it.
+     *
+     * @param skipped The number of frames skipped.
+     */
+    public void recordFrame(int skipped) {
+        framesRendered.incrementAndGet();
+        if (skipped > 0) framesSkipped.addAndGet(skipped);
+    }
+
+    /**
+     * Returns how many frames were rendered.
+     *
+     * @return The number of frames rendered.
+     */
+    public long getFramesRendered() {
+        return framesRendered.get();
+    }
+
+    /**
+     * Returns how many frames were skipped.
+     *
+     * @return The number of frames skipped.
+     */
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    /**
+     * Removes every value recorded.
+     */
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) histograms[i].reset();
+
+        framesRendered.set(0);
+        framesSkipped.set(0);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class implements a low priority thread that watches the heartbeat published
+ * by the main game loop. When a tick takes longer than a configurable threshold, the
+ * watchdog samples the stack of the game thread at short intervals until the tick
+ * finishes, and appends the samples to a file as a folded-stack profile (the input
+ * format of flame graph tools). It works as a sampling profiler for long frames only,
+ * so it costs nothing while the game runs smoothly.
+ * <p>
+ * Between ticks the watchdog waits for the next one to begin, so it does not wake the
+ * CPU up while the game thread is parked or idle. During a tick it only wakes up once
+ * the tick reaches the threshold.
+ * </p>
+ *
+ * @see <a href="https://github.com/brendangregg/FlameGraph">FlameGraph</a>.
+ */
+public final class FrameWatchdog extends Thread {
+    private static final String TAG = FrameWatchdog.class.getSimpleName();
+
+    // How often the stack is sampled during a long tick
+    private static final long SAMPLE_INTERVAL = 1;
+
+    private final Thread watchedThread;
+    private final long thresholdNanos;
+    private final File outputFile;
+
+    // The heartbeat published by the watched thread. The start time is 0 between ticks.
+    private volatile long tickNumber;
+    private volatile long tickStartTime;
+
+    // Signaled by the watched thread when a tick begins while the watchdog is waiting for one
+    private final Object heartbeat = new Object();
+    private volatile boolean isWaiting;
+
+    // Determines if this thread should keep running or not
+    private volatile boolean keepRunning = true;
+
+    // Samples of the current long tick, indexed by their folded stacks
+    private final Map<String, Integer> samples = new HashMap<String, Integer>();
+    private final StringBuilder foldedStack = new StringBuilder();
+
+    /**
+     * Constructs a new watchdog.
+     *
+     * @param watchedThread   The thread publishing the heartbeat.
+     * @param thresholdMillis Ticks longer than this (in milliseconds) are sampled.
+     * @param outputFile      File the folded stacks of the long ticks are appended to.
+     */
+    public FrameWatchdog(Thread watchedThread, long thresholdMillis, File outputFile) {
+        super(FrameWatchdog.class.getSimpleName());
+
+        this.watchedThread = watchedThread;
+        this.thresholdNanos = thresholdMillis * 1000000L;
+        this.outputFile = outputFile;
+
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Publishes the beginning of a tick. Must be called by the watched thread.
+     *
+     * @param tick The tick's number.
+     */
+    public void beginTick(long tick) {
+        tickNumber = tick;
+        tickStartTime = System.nanoTime();
+
+        if (isWaiting) {
+            synchronized (heartbeat) {
+                heartbeat.notify();
+            }
+        }
+    }
+
+    /**
+     * Publishes the end of a tick. Must be called by the watched thread.
+     */
+    public void endTick() {
+        tickStartTime = 0;
+    }
+
+    /**
+     * Signals the watchdog to stop.
+     */
+    public void quit() {
+        keepRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        long startTime, tick, remaining;
+
+        while (keepRunning) {
+            try {
+                waitForTick();
+
+                // Sleep until the tick reaches the threshold, then check if it is still running
+                startTime = tickStartTime;
+                tick = tickNumber;
+                if (startTime == 0) continue;
+                remaining = thresholdNanos - (System.nanoTime() - startTime);
+                if (remaining > 0) Thread.sleep(remaining / 1000000L + 1);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (tickNumber != tick || tickStartTime != startTime) continue;
+
+            // The tick is taking too long, sample it until it finishes
+            final int sampleCount = sampleTick(tick);
+
+            // The tick may have ended between the check and the first sample
+            if (sampleCount > 0) {
+                final long duration = ((tickStartTime == 0 ? System.nanoTime() : tickStartTime) - startTime) / 1000000L;
+                writeSamples(tick, duration, sampleCount);
+            }
+        }
+    }
+
+    /**
+     * Waits until a tick is running. The flag is raised before the heartbeat is checked,
+     * so a tick beginning in between always signals it.
+     *
+     * @throws java.lang.InterruptedException if the watchdog was told to stop.
+     */
+    private void waitForTick() throws InterruptedException {
+        synchronized (heartbeat) {
+            try {
+                while (keepRunning) {
+                    isWaiting = true;
+                    if (tickStartTime != 0) break;
+                    heartbeat.wait();
+                }
+            } finally {
+                isWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Samples the stack of the watched thread until the current tick finishes.
+     *
+     * @param tick The number of the tick being sampled.
+     * @return The number of samples taken.
+     */
+    private int sampleTick(long tick) {
+        StackTraceElement[] stack;
+        StackTraceElement frame;
+        Integer count;
+        String key;
+        int sampleCount = 0;
+
+        samples.clear();
+        while (keepRunning && tickNumber == tick && tickStartTime != 0) {
+            stack = watchedThread.getStackTrace();
+
+            // Fold the stack from the root (last element) to the leaf (first element)
+            foldedStack.setLength(0);
+            for (int i = stack.length - 1; i >= 0; i--) {
+                frame = stack[i];
+                foldedStack.append(frame.getClassName()).append('.').append(frame.getMethodName());
+                if (i > 0) foldedStack.append(';');
+            }
+
+            if (stack.length > 0) {
+                key = foldedStack.toString();
+                count = samples.get(key);
+                samples.put(key, count == null ? 1 : count + 1);
+                sampleCount++;
+            }
+
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        return sampleCount;
+    }
+
+    /**
+     * Appends the samples of a long tick to the output file.
+     *
+     * @param tick        The tick's number.
+     * @param duration    How long the tick took, in milliseconds.
+     * @param sampleCount How many samples were taken.
+     */
+    private void writeSamples(long tick, long duration, int sampleCount) {
+        Log.w(TAG, "Tick " + tick + " took " + duration + "ms, " + sampleCount + " stack samples taken");
+
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), "UTF-8"));
+            try {
+                for (Map.Entry<String, Integer> sample : samples.entrySet()) {
+                    writer.write(sample.getKey());
+                    writer.write(' ');
+                    writer.write(String.valueOf(sample.getValue()));
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the long tick samples", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+/**
+ * This class measures the input latency of the game: how long touch events wait
+ * before the game thread handles them, and how long it takes from a touch to the
+ * first frame showing its result (touch-to-photon), as seen by the game loop.
+ * <p>
+ * Every time comes from the {@link android.os.SystemClock#uptimeMillis()} time
+ * base, the same one used by {@link android.view.MotionEvent#getEventTime()}.
+ * Presentations are reported by the render thread, once the frame carrying
+ * them on its display list is posted.
+ * </p>
+ */
+public final class InputLatency {
+    private static final LatencyHistogram queueHistogram = new LatencyHistogram();
+    private static final LatencyHistogram presentHistogram = new LatencyHistogram();
+
+    private InputLatency() {
+    }
+
+    /**
+     * Records that the game thread received an event.
+     *
+     * @param eventTime The time of the event.
+     * @param now       The time the game thread received it.
+     */
+    public static void recordQueued(long eventTime, long now) {
+        queueHistogram.record((now - eventTime) * 1000);
+    }
+
+    /**
+     * Records that the result of an event was shown for the first time.
+     *
+     * @param eventTime The time of the event.
+     * @param now       The time the frame showing its result was posted.
+     * @see br.com.oncipriani.mygame.engine.DisplayList#markPresented(long)
+     */
+    public static void recordPresented(long eventTime, long now) {
+        presentHistogram.record((now - eventTime) * 1000);
+    }
+
+    /**
+     * Returns the histogram of the time events wait before being handled by the game thread.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public static LatencyHistogram getQueueHistogram() {
+        return queueHistogram;
+    }
+
+    /**
+     * Returns the histogram of the time between an event and the first frame showing its result.
+     *
+     * @return The histogram, in microseconds.
+     */
+    public static LatencyHistogram getPresentHistogram() {
+        return presentHistogram;
+    }
+}
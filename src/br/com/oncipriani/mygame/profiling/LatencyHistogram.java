@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements a fixed size histogram of latencies in microseconds. The
+ * buckets are log-linear (like HdrHistogram): every power of two is split into
+ * 16 linear sub buckets, so every recorded value is kept with a precision better
+ * than 7% no matter how large it is.
+ * <p>
+ * Recording is lock free and never creates objects, and the percentiles can be read
+ * from any thread while the histogram is being written.
+ * </p>
+ *
+ * @see <a href="http://hdrhistogram.org/">HdrHistogram</a>.
+ */
+public final class LatencyHistogram {
+    // Every power of two is split into (1 << SUB_BUCKET_BITS) buckets
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Values up to 2^31 microseconds (more than half an hour) are kept
+    private static final int MAX_EXPONENT = 31 - SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT + 1) * SUB_BUCKET_COUNT;
+    private static final long MAX_VALUE = (1L << 31) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records a single value.
+     *
+     * @param micros The value to be recorded, in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        else if (micros > MAX_VALUE) micros = MAX_VALUE;
+
+        counts.incrementAndGet(toIndex(micros));
+        totalCount.incrementAndGet();
+
+        long max = maxValue.get();
+        while (micros > max && !maxValue.compareAndSet(max, micros)) max = maxValue.get();
+    }
+
+    /**
+     * Records the time elapsed between two readings of {@link System#nanoTime()}.
+     *
+     * @param startNanos The first reading.
+     * @param endNanos   The second reading.
+     */
+    public void recordNanos(long startNanos, long endNanos) {
+        record((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Returns how many values were recorded.
+     *
+     * @return The number of values recorded.
+     */
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return The largest value recorded, in microseconds.
+     */
+    public long getMaxValue() {
+        return maxValue.get();
+    }
+
+    /**
+     * Returns the value at the specified percentile. The value returned is the upper
+     * limit of the bucket holding the percentile, so it never underestimates it.
+     *
+     * @param percentile The percentile, on the interval [0, 100].
+     * @return The value at the percentile, in microseconds, or <code>0</code> if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long total = totalCount.get();
+        if (total == 0) return 0;
+
+        // The number of values that must be below (or at) the answer
+        long target = (long) Math.ceil(total * (percentile / 100.0));
+        if (target < 1) target = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(toHighestValue(i), maxValue.get());
+        }
+
+        return maxValue.get();
+    }
+
+    /**
+     * Removes every value recorded. Values recorded concurrently with this call may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) counts.set(i, 0);
+
+        totalCount.set(0);
+        maxValue.set(0);
+    }
+
+    /**
+     * Finds the bucket for a value.
+     *
+     * @param value A value on the interval [0, MAX_VALUE].
+     * @return The bucket's index.
+     */
+    private static int toIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        // Values on [2^n, 2^(n+1)) are split into SUB_BUCKET_COUNT buckets
+        final int exponent = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + exponent * SUB_BUCKET_COUNT + (int) ((value >> exponent) - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the largest value that is kept on a bucket.
+     *
+     * @param index The bucket's index.
+     * @return The largest value of the bucket.
+     */
+    private static long toHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        final int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        final int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class holds the engine's counters and gauges, such as how many objects are
+ * alive or how many touches were handled. Unlike the profiler, it does not measure
+ * time: it tells what the engine is doing, so it can be read by the overlay, by the
+ * quality governor or by anything else that needs it.
+ * <p>
+ * Metrics must be registered once (usually on a static initializer) and are then
+ * referred to by their identifiers. Each metric is expected to have a single writer,
+ * usually the game thread, so updating a value is a plain read followed by an ordered
+ * write, which costs about the same as writing a field. Any thread may read the values
+ * or take a {@link Snapshot} without locking.
+ * </p>
+ */
+public final class Metrics {
+    // Maximum number of metrics that can be registered
+    private static final int CAPACITY = 64;
+
+    // Types of metric
+    public static final int TYPE_COUNTER = 0;
+    public static final int TYPE_GAUGE = 1;
+
+    private static final AtomicLongArray values = new AtomicLongArray(CAPACITY);
+
+    // Registered names and types, indexed by their identifiers
+    private static final ArrayList<String> names = new ArrayList<String>();
+    private static final int[] types = new int[CAPACITY];
+
+    // How many bytes are taken by the bitmaps loaded by the game, shared by everyone loading them
+    public static final int BITMAP_BYTES = registerGauge("bitmaps.bytes");
+
+    /**
+     * The values of every metric at a given moment. A snapshot can be reused
+     * to avoid creating new objects every time the metrics are read.
+     */
+    public static final class Snapshot {
+        private final long[] values = new long[CAPACITY];
+        private int count;
+        private long time;
+
+        /**
+         * Returns the value of a metric when the snapshot was taken.
+         *
+         * @param id The metric's identifier.
+         * @return The metric's value.
+         */
+        public long get(int id) {
+            return values[id];
+        }
+
+        /**
+         * Returns how many metrics were registered when the snapshot was taken.
+         *
+         * @return The number of metrics on the snapshot.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns when the snapshot was taken.
+         *
+         * @return The time of the snapshot, in the {@link android.os.SystemClock#uptimeMillis()} time base.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns how fast a counter grew since an older snapshot.
+         *
+         * @param id       The counter's identifier.
+         * @param previous A snapshot taken before this one.
+         * @return The counter's growth per second or <code>0</code> if no time passed between the snapshots.
+         */
+        public double getRate(int id, Snapshot previous) {
+            final long elapsed = time - previous.time;
+            if (elapsed <= 0) return 0;
+
+            return (values[id] - previous.values[id]) * 1000.0 / elapsed;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a counter, a metric that only grows (e.g. how many stars were spawned).
+     *
+     * @param name The metric's name.
+     * @return The identifier used to update the counter.
+     */
+    public static int registerCounter(String name) {
+        return register(name, TYPE_COUNTER);
+    }
+
+    /**
+     * Registers a gauge, a metric that goes up and down (e.g. how many stars are alive).
+     *
+     * @param name The metric's name.
+     * @return The identifier used to update the gauge.
+     */
+    public static int registerGauge(String name) {
+        return register(name, TYPE_GAUGE);
+    }
+
+    private static int register(String name, int type) {
+        synchronized (names) {
+            final int id = names.size();
+            if (id == CAPACITY) throw new IllegalStateException("Too many metrics registered");
+
+            types[id] = type;
+            names.add(name);
+            return id;
+        }
+    }
+
+    /**
+     * Increments a counter (or a gauge) by one. Must only be called by the metric's writer thread.
+     *
+     * @param id The metric's identifier.
+     */
+    public static void increment(int id) {
+        values.lazySet(id, values.get(id) + 1);
+    }
+
+    /**
+     * Adds a value to a counter (or a gauge). Must only be called by the metric's writer thread.
+     *
+     * @param id    The metric's identifier.
+     * @param delta The value to be added.
+     */
+    public static void add(int id, long delta) {
+        values.lazySet(id, values.get(id) + delta);
+    }
+
+    /**
+     * Sets the current value of a gauge. Must only be called by the metric's writer thread.
+     *
+     * @param id    The gauge's identifier.
+     * @param value The gauge's new value.
+     */
+    public static void set(int id, long value) {
+        values.lazySet(id, value);
+    }
+
+    /**
+     * Returns the current value of a metric. May be called by any thread.
+     *
+     * @param id The metric's identifier.
+     * @return The metric's value.
+     */
+    public static long get(int id) {
+        return values.get(id);
+    }
+
+    /**
+     * Returns how many metrics are registered.
+     *
+     * @return The number of metrics registered.
+     */
+    public static int getCount() {
+        synchronized (names) {
+            return names.size();
+        }
+    }
+
+    /**
+     * Returns the name of a metric.
+     *
+     * @param id The metric's identifier.
+     * @return The metric's name.
+     */
+    public static String getName(int id) {
+        synchronized (names) {
+            return names.get(id);
+        }
+    }
+
+    /**
+     * Returns the type of a metric.
+     *
+     * @param id The metric's identifier.
+     * @return {@link #TYPE_COUNTER} or {@link #TYPE_GAUGE}.
+     */
+    public static int getType(int id) {
+        synchronized (names) {
+            return types[id];
+        }
+    }
+
+    /**
+     * Copies the current value of every metric to a snapshot. May be called by any
+     * thread. The values are read one by one, so a snapshot taken while the game
+     * thread is running may mix values from two consecutive ticks.
+     *
+     * @param snapshot The snapshot that will hold the values.
+     * @return The snapshot.
+     */
+    public static Snapshot snapshot(Snapshot snapshot) {
+        final int count = getCount();
+
+        for (int i = 0; i < count; i++) snapshot.values[i] = values.get(i);
+        snapshot.count = count;
+        snapshot.time = SystemClock.uptimeMillis();
+
+        return snapshot;
+    }
+
+    /**
+     * Sets every counter back to its value on a snapshot, discarding what was counted
+     * since then. Gauges are kept, since they describe the current state of the engine.
+     * Must only be called by the counters' writer thread.
+     *
+     * @param snapshot A snapshot taken by {@link #snapshot(Snapshot)}.
+     */
+    public static void restoreCounters(Snapshot snapshot) {
+        for (int i = 0; i < snapshot.count; i++) {
+            if (getType(i) == TYPE_COUNTER) values.lazySet(i, snapshot.values[i]);
+        }
+    }
+
+    /**
+     * Computes how many bytes a bitmap takes in memory.
+     *
+     * @param bitmap The bitmap.
+     * @return The size of the bitmap's pixels in bytes.
+     */
+    public static long getBitmapBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import br.com.oncipriani.mygame.engine.GameState;
+import br.com.oncipriani.mygame.engine.GameStateManager;
+
+/**
+ * This class draws the frame time percentiles of the main game loop and of every
+ * exposed game state on top of the screen. The text is formatted into preallocated
+ * buffers, so drawing the overlay does not create any objects.
+ * <p>
+ * The text is formatted by the game thread, which owns the game states, and drawn
+ * by the render thread. A line may show up half refreshed for a frame, which is
+ * harmless for a debugging aid.
+ * </p>
+ */
+public final class ProfilerOverlay {
+    // Number of frames between refreshes of the text (the percentiles barely change between frames)
+    private static final int REFRESH_INTERVAL = 25;
+
+    // Limits for the text
+    private static final int MAX_LINES = 16;
+    private static final int MAX_LINE_LENGTH = 64;
+    private static final float TEXT_SIZE = 14f;
+    private static final float MARGIN = 4f;
+
+    private final TextLine[] lines = new TextLine[MAX_LINES];
+    private volatile int lineCount;
+    private int framesUntilRefresh;
+
+    private final Paint textPaint;
+    private final Paint backgroundPaint;
+
+    /**
+     * Constructs a new profiler overlay.
+     */
+    public ProfilerOverlay() {
+        for (int i = 0; i < MAX_LINES; i++) lines[i] = new TextLine(MAX_LINE_LENGTH);
+
+        textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(Color.YELLOW);
+        textPaint.setTextSize(TEXT_SIZE);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+
+        backgroundPaint = new Paint();
+        backgroundPaint.setColor(Color.BLACK);
+        backgroundPaint.setAlpha(160);
+    }
+
+    /**
+     * Refreshes the text every few frames. Must be called by the game thread.
+     *
+     * @param profiler         The profiler holding the main game loop histograms.
+     * @param gameStateManager The game state manager holding the exposed game states.
+     */
+    public void update(FrameProfiler profiler, GameStateManager gameStateManager) {
+        if (framesUntilRefresh <= 0) {
+            refresh(profiler, gameStateManager);
+            framesUntilRefresh = REFRESH_INTERVAL;
+        }
+        framesUntilRefresh--;
+    }
+
+    /**
+     * Draws the overlay on the screen.
+     *
+     * @param canvas The canvas representing the screen.
+     */
+    public void draw(Canvas canvas) {
+        final int lineCount = this.lineCount;
+        final float lineHeight = TEXT_SIZE + 2f;
+        canvas.drawRect(0, 0, canvas.getWidth(), lineCount * lineHeight + MARGIN * 2, backgroundPaint);
+
+        for (int i = 0; i < lineCount; i++) lines[i].draw(canvas, MARGIN, MARGIN + (i + 1) * lineHeight - 2f, textPaint);
+    }
+
+    /**
+     * Formats the text with the current percentiles.
+     *
+     * @param profiler         The profiler holding the main game loop histograms.
+     * @param gameStateManager The game state manager holding the exposed game states.
+     */
+    private void refresh(FrameProfiler profiler, GameStateManager gameStateManager) {
+        lineCount = 0;
+
+        lines[lineCount++].clear().append("phase           p50   p95   p99 (us)");
+
+        for (int phase = 0; phase < FrameProfiler.PHASE_COUNT; phase++) {
+            format(FrameProfiler.getPhaseName(phase), null, profiler.getHistogram(phase));
+        }
+
+        format("input.queue", null, InputLatency.getQueueHistogram());
+        format("input.photon", null, InputLatency.getPresentHistogram());
+
+        GameState state;
+        final int stateCount = gameStateManager.getExposedStateCount();
+        for (int i = 0; i < stateCount && lineCount < MAX_LINES - 2; i++) {
+            state = gameStateManager.getExposedState(i);
+            format(state.getName(), ".update", state.getUpdateHistogram());
+            format(state.getName(), ".draw", state.getDrawHistogram());
+        }
+
+        if (lineCount < MAX_LINES) {
+            lines[lineCount++].clear().append("frames ").append(profiler.getFramesRendered())
+                    .append(" skipped ").append(profiler.getFramesSkipped());
+        }
+    }
+
+    /**
+     * Formats a single line with the percentiles of a histogram.
+     *
+     * @param name      The name of what was measured.
+     * @param suffix    Text appended to the name (may be null).
+     * @param histogram The histogram.
+     */
+    private void format(String name, String suffix, LatencyHistogram histogram) {
+        if (lineCount >= MAX_LINES) return;
+
+        final TextLine line = lines[lineCount++].clear().append(name);
+        if (suffix != null) line.append(suffix);
+        while (line.length() < 12) line.append(' ');
+
+        line.append(histogram.getValueAtPercentile(50), 6)
+                .append(histogram.getValueAtPercentile(95), 6)
+                .append(histogram.getValueAtPercentile(99), 6);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * This class holds a single line of text on a preallocated buffer of characters.
+ * It allows numbers to be formatted and drawn on every frame without creating any
+ * <code>String</code> objects.
+ */
+public final class TextLine {
+    private final char[] chars;
+    private int length;
+
+    /**
+     * Constructs a new, empty, line of text.
+     *
+     * @param capacity The maximum number of characters on the line. Anything beyond that is discarded.
+     */
+    public TextLine(int capacity) {
+        chars = new char[capacity];
+    }
+
+    /**
+     * Removes every character from the line.
+     *
+     * @return This line.
+     */
+    public TextLine clear() {
+        length = 0;
+        return this;
+    }
+
+    /**
+     * Appends a string to the line.
+     *
+     * @param text The string to be appended.
+     * @return This line.
+     */
+    public TextLine append(String text) {
+        final int count = Math.min(text.length(), chars.length - length);
+
+        text.getChars(0, count, chars, length);
+        length += count;
+
+        return this;
+    }
+
+    /**
+     * Appends a single character to the line.
+     *
+     * @param c The character to be appended.
+     * @return This line.
+     */
+    public TextLine append(char c) {
+        if (length < chars.length) chars[length++] = c;
+
+        return this;
+    }
+
+    /**
+     * Appends a number to the line, in decimal.
+     *
+     * @param value The number to be appended.
+     * @return This line.
+     */
+    public TextLine append(long value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+
+        // Count the digits, then write them backwards
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) digits++;
+
+        final int count = Math.min(digits, chars.length - length);
+        for (int i = digits - 1; i >= 0; i--) {
+            if (i < count) chars[length + i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        length += count;
+
+        return this;
+    }
+
+    /**
+     * Appends a number to the line, padding it with spaces on the left.
+     *
+     * @param value The number to be appended.
+     * @param width The minimum number of characters used by the number.
+     * @return This line.
+     */
+    public TextLine append(long value, int width) {
+        int digits = value < 0 ? 2 : 1;
+        for (long remaining = Math.abs(value) / 10; remaining > 0; remaining /= 10) digits++;
+
+        for (int i = digits; i < width; i++) append(' ');
+
+        return append(value);
+    }
+
+    /**
+     * Returns the number of characters on the line.
+     *
+     * @return The number of characters on the line.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Draws the line on a canvas.
+     *
+     * @param canvas The canvas to draw on.
+     * @param x      The position of the text's start on the X axis.
+     * @param y      The position of the text's baseline on the Y axis.
+     * @param paint  The paint used to draw the text.
+     */
+    public void draw(Canvas canvas, float x, float y, Paint paint) {
+        canvas.drawText(chars, 0, length, x, y, paint);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Otavio Nery Cipriani
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package br.com.oncipriani.mygame.profiling;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * This class implements a lightweight tracer for the game engine. Code marks the
+ * beginning and the end of interesting spans (and the value of counters) and the
+ * events are stored on preallocated per-thread buffers. The session can then be
+ * exported as Chrome trace-event JSON, which can be opened on chrome://tracing or
+ * on the Perfetto UI to see exactly where the time of a slow frame went.
+ * <p>
+ * Names must be registered once (usually on a static initializer) and are then
+ * referred to by their identifiers, so recording an event never creates objects.
+ * When tracing is disabled every method returns right after checking a flag.
+ * </p>
+ *
+ * @see <a href="https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU">Trace Event Format</a>.
+ */
+public final class Tracer {
+    // Types of event
+    private static final byte TYPE_BEGIN = 0;
+    private static final byte TYPE_END = 1;
+    private static final byte TYPE_COUNTER = 2;
+
+    // Maximum number of events kept for each thread
+    private static final int BUFFER_CAPACITY = 1 << 16;
+
+    // Not volatile on purpose: it is read on every event and only changes between sessions
+    private static boolean enabled = false;
+
+    // Registered names, indexed by their identifiers
+    private static final ArrayList<String> names = new ArrayList<String>();
+
+    // Every buffer ever created, so they can be exported
+    private static final ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+
+    private static final ThreadLocal<Buffer> threadBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            final Buffer buffer = new Buffer(Thread.currentThread());
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    /**
+     * The events recorded by a single thread.
+     */
+    private static final class Buffer {
+        final long threadId;
+        final String threadName;
+
+        final long[] timestamps = new long[BUFFER_CAPACITY];
+        final long[] values = new long[BUFFER_CAPACITY];
+        final int[] nameIds = new int[BUFFER_CAPACITY];
+        final byte[] types = new byte[BUFFER_CAPACITY];
+
+        // Written only by the owner thread, read when exporting
+        volatile int count;
+        int dropped;
+
+        Buffer(Thread thread) {
+            threadId = thread.getId();
+            threadName = thread.getName();
+        }
+
+        void add(byte type, int nameId, long value) {
+            final int index = count;
+            if (index == BUFFER_CAPACITY) {
+                dropped++;
+                return;
+            }
+
+            timestamps[index] = System.nanoTime();
+            types[index] = type;
+            nameIds[index] = nameId;
+            values[index] = value;
+            count = index + 1;
+        }
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * Enables or disables tracing. Should be called between sessions, since threads
+     * may take a while to notice the change.
+     *
+     * @param enabled <code>true</code> to start recording events.
+     */
+    public static void setEnabled(boolean enabled) {
+        Tracer.enabled = enabled;
+    }
+
+    /**
+     * Returns if tracing is enabled.
+     *
+     * @return <code>true</code> if events are being recorded.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers the name of a span or a counter. Registering the same name again
+     * returns the identifier it already has, so objects created many times (e.g.
+     * game states) may register their names on their constructors.
+     *
+     * @param name The name shown on the trace viewer.
+     * @return The identifier used to record events with this name.
+     */
+    public static int registerName(String name) {
+        synchronized (names) {
+            final int id = names.indexOf(name);
+            if (id >= 0) return id;
+
+            names.add(name);
+            return names.size() - 1;
+        }
+    }
+
+    /**
+     * Marks the beginning of a span on the current thread.
+     *
+     * @param nameId The span's name identifier.
+     */
+    public static void begin(int nameId) {
+        if (!enabled) return;
+        threadBuffer.get().add(TYPE_BEGIN, nameId, 0);
+    }
+
+    /**
+     * Marks the end of a span on the current thread.
+     *
+     * @param nameId The span's name identifier.
+     */
+    public static void end(int nameId) {
+        if (!enabled) return;
+        threadBuffer.get().add(TYPE_END, nameId, 0);
+    }
+
+    /**
+     * Records the current value of a counter.
+     *
+     * @param nameId The counter's name identifier.
+     * @param value  The counter's value.
+     */
+    public static void counter(int nameId, long value) {
+        if (!enabled) return;
+        threadBuffer.get().add(TYPE_COUNTER, nameId, value);
+    }
+
+    /**
+     * Discards every event recorded so far. Must not be called while other threads are recording.
+     */
+    public static void reset() {
+        synchronized (buffers) {
+            for (int i = buffers.size() - 1; i >= 0; i--) {
+                buffers.get(i).count = 0;
+                buffers.get(i).dropped = 0;
+            }
+        }
+    }
+
+    /**
+     * Exports every event recorded so far as Chrome trace-event JSON.
+     *
+     * @param file The file where the trace will be written. It is overwritten if it already exists.
+     * @throws java.io.IOException if the file could not be written.
+     */
+    public static void export(File file) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+        try {
+            writer.write("{\"traceEvents\":[\n");
+            boolean first = true;
+
+            synchronized (buffers) {
+                Buffer buffer;
+                for (int b = 0; b < buffers.size(); b++) {
+                    buffer = buffers.get(b);
+
+                    // Name the thread's track
+                    if (!first) writer.write(",\n");
+                    first = false;
+                    writer.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":0,\"tid\":" + buffer.threadId +
+                            ",\"args\":{\"name\":\"" + escape(buffer.threadName) + "\"}}");
+
+                    final int count = buffer.count;
+                    for (int i = 0; i < count; i++) {
+                        writer.write(",\n{\"ph\":\"");
+                        writer.write(buffer.types[i] == TYPE_BEGIN ? "B" : buffer.types[i] == TYPE_END ? "E" : "C");
+                        writer.write("\",\"name\":\"" + escape(getName(buffer.nameIds[i])) + "\",\"pid\":0,\"tid\":" +
+                                buffer.threadId + ",\"ts\":" + toMicros(buffer.timestamps[i]));
+                        if (buffer.types[i] == TYPE_COUNTER) writer.write(",\"args\":{\"value\":" + buffer.values[i] + "}");
+                        writer.write("}");
+                    }
+
+                    if (buffer.dropped > 0) {
+                        writer.write(",\n{\"ph\":\"i\",\"s\":\"t\",\"name\":\"" + buffer.dropped +
+                                " events dropped\",\"pid\":0,\"tid\":" + buffer.threadId + ",\"ts\":" +
+                                (count > 0 ? toMicros(buffer.timestamps[count - 1]) : "0") + "}");
+                    }
+                }
+            }
+
+            writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String getName(int nameId) {
+        synchronized (names) {
+            return names.get(nameId);
+        }
+    }
+
+    private static String toMicros(long nanos) {
+        final long fraction = nanos % 1000;
+        return (nanos / 1000) + (fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".") + fraction;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}